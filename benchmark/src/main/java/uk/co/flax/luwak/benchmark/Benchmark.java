@@ -22,6 +22,7 @@ import java.util.List;
 
 import com.google.common.collect.Iterables;
 import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.batching.AdaptiveBatcher;
 
 public class Benchmark {
 
@@ -37,6 +38,17 @@ public class Benchmark {
         return results;
     }
 
+    public static <T extends QueryMatch> BenchmarkResults<T> run(Monitor monitor, Iterable<InputDocument> documents,
+                                                                 AdaptiveBatcher batcher, MatcherFactory<T> matcherFactory) throws IOException {
+        BenchmarkResults<T> results = new BenchmarkResults<>();
+        Iterator<InputDocument> it = documents.iterator();
+        while (it.hasNext()) {
+            Matches<T> matches = batcher.match(monitor, batcher.nextBatch(it), matcherFactory);
+            results.add(matches);
+        }
+        return results;
+    }
+
     public static Iterable<DocumentBatch> batchDocuments(Iterable<InputDocument> documents, int batchsize) {
         Iterable<List<InputDocument>> partitions = Iterables.partition(documents, batchsize);
         final Iterator<List<InputDocument>> it = partitions.iterator();
@@ -0,0 +1,106 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.ScoringMatcher;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Measures the cost of running candidate queries through a {@link CandidateMatcher}
+ *
+ * Every query in the Monitor is selected as a candidate for every document, and results
+ * are reported per candidate query.  Run with the GC profiler (as {@link #main(String...)}
+ * does) to see the bytes allocated per candidate, reported as gc.alloc.rate.norm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CandidateMatcherBenchmark {
+
+    private static final int QUERY_COUNT = 1000;
+
+    private static final int VOCABULARY = 200;
+
+    private static final String FIELD = "text";
+
+    @Param({ "simple", "scoring" })
+    public String matcher;
+
+    private Monitor monitor;
+    private InputDocument document;
+    private MatcherFactory<? extends QueryMatch> factory;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+
+        monitor = new Monitor(new LuceneQueryParser(FIELD), new MatchAllPresearcher());
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            String query = "+term" + random.nextInt(VOCABULARY) + " term" + random.nextInt(VOCABULARY);
+            queries.add(new MonitorQuery(Integer.toString(i), query));
+        }
+        monitor.update(queries);
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < VOCABULARY / 2; i++) {
+            text.append("term").append(random.nextInt(VOCABULARY)).append(" ");
+        }
+        document = InputDocument.builder("doc").addField(FIELD, text.toString(), StandardBenchmark.ANALYZER).build();
+
+        factory = "scoring".equals(matcher) ? ScoringMatcher.FACTORY : SimpleMatcher.FACTORY;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        monitor.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERY_COUNT)
+    public Matches<? extends QueryMatch> matchCandidates() throws IOException {
+        return monitor.match(document, factory);
+    }
+
+    public static void main(String... args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CandidateMatcherBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,126 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.ForkJoinMatcher;
+import uk.co.flax.luwak.matchers.ParallelMatcher;
+import uk.co.flax.luwak.matchers.PartitionMatcher;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Compares the multi-threaded matchers over a large set of fast candidate queries
+ *
+ * Every query in the Monitor is selected as a candidate for every document, so the cost
+ * of handing candidates to worker threads and combining their results dominates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParallelMatcherBenchmark {
+
+    private static final int QUERY_COUNT = 20000;
+
+    private static final int VOCABULARY = 500;
+
+    private static final int THREADS = 4;
+
+    private static final String FIELD = "text";
+
+    @Param({ "parallel", "partition", "forkjoin" })
+    public String matcher;
+
+    private Monitor monitor;
+    private InputDocument document;
+    private ExecutorService executor;
+    private MatcherFactory<QueryMatch> factory;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+
+        monitor = new Monitor(new LuceneQueryParser(FIELD), new MatchAllPresearcher());
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            queries.add(new MonitorQuery(Integer.toString(i), "term" + random.nextInt(VOCABULARY)));
+        }
+        monitor.update(queries);
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < VOCABULARY / 2; i++) {
+            text.append("term").append(random.nextInt(VOCABULARY)).append(" ");
+        }
+        document = InputDocument.builder("doc").addField(FIELD, text.toString(), StandardBenchmark.ANALYZER).build();
+
+        switch (matcher) {
+            case "parallel":
+                executor = Executors.newFixedThreadPool(THREADS);
+                factory = ParallelMatcher.factory(executor, SimpleMatcher.FACTORY, THREADS);
+                break;
+            case "partition":
+                executor = Executors.newFixedThreadPool(THREADS);
+                factory = PartitionMatcher.factory(executor, SimpleMatcher.FACTORY, THREADS);
+                break;
+            case "forkjoin":
+                ForkJoinPool pool = new ForkJoinPool(THREADS);
+                executor = pool;
+                factory = ForkJoinMatcher.factory(pool, SimpleMatcher.FACTORY);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown matcher " + matcher);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        executor.shutdown();
+        monitor.close();
+    }
+
+    @Benchmark
+    public Matches<QueryMatch> matchCandidates() throws IOException {
+        return monitor.match(document, factory);
+    }
+
+    public static void main(String... args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ParallelMatcherBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+}
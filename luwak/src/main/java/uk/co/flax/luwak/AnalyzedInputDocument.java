@@ -0,0 +1,427 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.tokenattributes.*;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.IndexableFieldType;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.AttributeFactory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+
+/**
+ * An InputDocument that holds the output of analysis, rather than field values to be analyzed.
+ *
+ * Running analysis can be the most expensive part of building a {@link DocumentBatch}.  If a
+ * document is to be matched by several Monitors, it can be analyzed once, and the resulting
+ * AnalyzedInputDocument passed to each of them:
+ * <pre>
+ *     AnalyzedInputDocument analyzed = AnalyzedInputDocument.analyze(doc);
+ *     monitor1.match(analyzed, SimpleMatcher.FACTORY);
+ *     monitor2.match(analyzed, SimpleMatcher.FACTORY);
+ * </pre>
+ *
+ * The terms, positions, offsets and payloads of each indexed field are held in a compact
+ * binary form, which can also be written out with {@link #writeTo(DataOutput)} or
+ * {@link #toBytes()}, and read back in elsewhere with {@link #readFrom(DataInput)} or
+ * {@link #fromBytes(BytesRef)}.
+ *
+ * Multiple values for the same field are merged into a single stream, using the position
+ * and offset gaps of the analyzer for that field.  Each field keeps the index options and
+ * norms setting of its original values.  Values of fields that are not indexed are not
+ * retained.
+ */
+public class AnalyzedInputDocument extends InputDocument {
+
+    private static final int VERSION = 2;
+
+    private static final int HAS_OFFSETS = 1;
+    private static final int HAS_PAYLOADS = 2;
+
+    private static final int OMIT_NORMS = 1;
+
+    private final Map<String, BytesRef> fields;
+
+    private AnalyzedInputDocument(String id, Map<String, BytesRef> fields) {
+        super(id, buildDocument(id, fields), new PerFieldAnalyzerWrapper(new KeywordAnalyzer()));
+        this.fields = fields;
+    }
+
+    private static Document buildDocument(String id, Map<String, BytesRef> fields) {
+        Document doc = new Document();
+        for (Map.Entry<String, BytesRef> field : fields.entrySet()) {
+            doc.add(new AnalyzedField(field.getKey(), field.getValue()));
+        }
+        doc.add(new StringField(ID_FIELD, id, Field.Store.YES));
+        return doc;
+    }
+
+    /**
+     * Run analysis over an InputDocument
+     * @param doc the InputDocument to analyze
+     * @return an AnalyzedInputDocument holding the analyzed content of the InputDocument
+     * @throws IOException on analysis errors
+     */
+    public static AnalyzedInputDocument analyze(InputDocument doc) throws IOException {
+        if (doc instanceof AnalyzedInputDocument)
+            return (AnalyzedInputDocument) doc;
+
+        Analyzer analyzer = doc.getAnalyzers();
+        Map<String, FieldEncoder> encoders = new LinkedHashMap<>();
+        for (IndexableField field : doc.getDocument()) {
+            if (ID_FIELD.equals(field.name()) || field.fieldType().indexOptions() == IndexOptions.NONE)
+                continue;
+            FieldEncoder encoder = encoders.get(field.name());
+            if (encoder == null) {
+                encoder = new FieldEncoder();
+                encoders.put(field.name(), encoder);
+            }
+            encoder.add(field, analyzer);
+        }
+
+        Map<String, BytesRef> fields = new LinkedHashMap<>();
+        for (Map.Entry<String, FieldEncoder> entry : encoders.entrySet()) {
+            fields.put(entry.getKey(), entry.getValue().encode());
+        }
+        return new AnalyzedInputDocument(doc.getId(), fields);
+    }
+
+    /**
+     * Write this document to a {@link DataOutput}
+     * @param out the output
+     * @throws IOException on error
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeVInt(VERSION);
+        out.writeString(getId());
+        out.writeVInt(fields.size());
+        for (Map.Entry<String, BytesRef> field : fields.entrySet()) {
+            out.writeString(field.getKey());
+            out.writeVInt(field.getValue().length);
+            out.writeBytes(field.getValue().bytes, field.getValue().offset, field.getValue().length);
+        }
+    }
+
+    /**
+     * Read a document from a {@link DataInput}
+     * @param in the input
+     * @return the AnalyzedInputDocument
+     * @throws IOException on error
+     */
+    public static AnalyzedInputDocument readFrom(DataInput in) throws IOException {
+        int version = in.readVInt();
+        if (version != VERSION)
+            throw new IOException("Unknown AnalyzedInputDocument version " + version);
+        String id = in.readString();
+        int fieldCount = in.readVInt();
+        Map<String, BytesRef> fields = new LinkedHashMap<>();
+        for (int i = 0; i < fieldCount; i++) {
+            String name = in.readString();
+            byte[] bytes = new byte[in.readVInt()];
+            in.readBytes(bytes, 0, bytes.length);
+            fields.put(name, new BytesRef(bytes));
+        }
+        return new AnalyzedInputDocument(id, fields);
+    }
+
+    /**
+     * @return a serialized representation of this document
+     */
+    public BytesRef toBytes() {
+        BytesRefBuilderDataOutput out = new BytesRefBuilderDataOutput();
+        try {
+            writeTo(out);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);  // in-memory, so should never happen
+        }
+        return out.bytes.toBytesRef();
+    }
+
+    /**
+     * Deserialize a document
+     * @param bytes a serialized representation of an AnalyzedInputDocument, as returned by {@link #toBytes()}
+     * @return the AnalyzedInputDocument
+     * @throws IOException if the bytes cannot be read
+     */
+    public static AnalyzedInputDocument fromBytes(BytesRef bytes) throws IOException {
+        return readFrom(new ByteArrayDataInput(bytes.bytes, bytes.offset, bytes.length));
+    }
+
+    /*
+     * Each field is encoded as:
+     *   indexOptions, typeFlags
+     *   numTerms, [termLength, termBytes]*
+     *   flags, numTokens, [termOrd, posInc, (startOffsetDelta, offsetLength)?, (payloadLength, payloadBytes)?]*
+     */
+    private static class FieldEncoder {
+
+        private final BytesRefHash terms = new BytesRefHash();
+        private final BytesRefBuilderDataOutput out = new BytesRefBuilderDataOutput();
+
+        private final List<int[]> tokenData = new ArrayList<>();
+        private final List<BytesRef> payloads = new ArrayList<>();
+        private boolean hasPayloads = false;
+
+        private int pendingPosInc = 0;
+        private int baseOffset = 0;
+
+        private IndexOptions indexOptions = null;
+        private boolean omitNorms = false;
+
+        void add(IndexableField field, Analyzer analyzer) throws IOException {
+            // values with different types are combined in the same way as by the IndexWriter
+            IndexOptions options = field.fieldType().indexOptions();
+            if (indexOptions == null || options.compareTo(indexOptions) < 0)
+                indexOptions = options;
+            omitNorms |= field.fieldType().omitNorms();
+            try (TokenStream ts = field.tokenStream(analyzer, null)) {
+                TermToBytesRefAttribute termAtt = ts.getAttribute(TermToBytesRefAttribute.class);
+                PositionIncrementAttribute posIncAtt = ts.addAttribute(PositionIncrementAttribute.class);
+                OffsetAttribute offsetAtt = ts.addAttribute(OffsetAttribute.class);
+                PayloadAttribute payloadAtt = ts.getAttribute(PayloadAttribute.class);
+                ts.reset();
+                while (ts.incrementToken()) {
+                    int ord = terms.add(termAtt.getBytesRef());
+                    if (ord < 0)
+                        ord = -ord - 1;
+                    BytesRef payload = payloadAtt == null ? null : payloadAtt.getPayload();
+                    if (payload != null && payload.length > 0) {
+                        hasPayloads = true;
+                        payload = BytesRef.deepCopyOf(payload);
+                    }
+                    tokenData.add(new int[]{ ord, posIncAtt.getPositionIncrement() + pendingPosInc,
+                            baseOffset + offsetAtt.startOffset(), baseOffset + offsetAtt.endOffset() });
+                    payloads.add(payload);
+                    pendingPosInc = 0;
+                }
+                ts.end();
+                // Mirror the way the IndexWriter accumulates positions and offsets over multiple field values
+                pendingPosInc += posIncAtt.getPositionIncrement();
+                baseOffset += offsetAtt.endOffset();
+                if (field.fieldType().tokenized()) {
+                    pendingPosInc += analyzer.getPositionIncrementGap(field.name());
+                    baseOffset += analyzer.getOffsetGap(field.name());
+                }
+            }
+        }
+
+        BytesRef encode() throws IOException {
+            BytesRef scratch = new BytesRef();
+            out.writeVInt(indexOptions.ordinal());
+            out.writeVInt(omitNorms ? OMIT_NORMS : 0);
+            out.writeVInt(terms.size());
+            for (int i = 0; i < terms.size(); i++) {
+                terms.get(i, scratch);
+                out.writeVInt(scratch.length);
+                out.writeBytes(scratch.bytes, scratch.offset, scratch.length);
+            }
+            out.writeVInt(HAS_OFFSETS | (hasPayloads ? HAS_PAYLOADS : 0));
+            out.writeVInt(tokenData.size());
+            int lastStart = 0;
+            for (int i = 0; i < tokenData.size(); i++) {
+                int[] token = tokenData.get(i);
+                out.writeVInt(token[0]);
+                out.writeVInt(token[1]);
+                out.writeZInt(token[2] - lastStart);
+                out.writeVInt(token[3] - token[2]);
+                lastStart = token[2];
+                if (hasPayloads) {
+                    BytesRef payload = payloads.get(i);
+                    if (payload == null) {
+                        out.writeVInt(0);
+                    }
+                    else {
+                        out.writeVInt(payload.length);
+                        out.writeBytes(payload.bytes, payload.offset, payload.length);
+                    }
+                }
+            }
+            return out.bytes.toBytesRef();
+        }
+    }
+
+    // An IndexableField that replays an encoded token stream
+    private static class AnalyzedField implements IndexableField {
+
+        private final String name;
+        private final FieldType fieldType;
+        private final BytesRef encoded;
+
+        private AnalyzedField(String name, BytesRef encoded) {
+            ByteArrayDataInput in = new ByteArrayDataInput(encoded.bytes, encoded.offset, encoded.length);
+            this.name = name;
+            this.fieldType = new FieldType();
+            this.fieldType.setTokenized(true);
+            this.fieldType.setIndexOptions(IndexOptions.values()[in.readVInt()]);
+            this.fieldType.setOmitNorms((in.readVInt() & OMIT_NORMS) != 0);
+            this.fieldType.freeze();
+            // the token stream starts after the field type
+            int start = in.getPosition();
+            this.encoded = new BytesRef(encoded.bytes, start, encoded.offset + encoded.length - start);
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public IndexableFieldType fieldType() {
+            return fieldType;
+        }
+
+        @Override
+        public TokenStream tokenStream(Analyzer analyzer, TokenStream reuse) {
+            AnalyzedTokenStream ts = reuse instanceof AnalyzedTokenStream
+                    ? (AnalyzedTokenStream) reuse : new AnalyzedTokenStream();
+            ts.setEncoded(encoded);
+            return ts;
+        }
+
+        @Override
+        public float boost() {
+            return 1.0f;
+        }
+
+        @Override
+        public BytesRef binaryValue() {
+            return null;
+        }
+
+        @Override
+        public String stringValue() {
+            return null;
+        }
+
+        @Override
+        public Reader readerValue() {
+            return null;
+        }
+
+        @Override
+        public Number numericValue() {
+            return null;
+        }
+    }
+
+    private static final class AnalyzedTokenStream extends TokenStream {
+
+        private final BytesTermAttribute termAtt = addAttribute(BytesTermAttribute.class);
+        private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+        private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+        private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+
+        private final ByteArrayDataInput in = new ByteArrayDataInput();
+        private BytesRef encoded;
+
+        private BytesRef[] terms = new BytesRef[0];
+        private int flags;
+        private int remaining;
+        private int lastStart;
+        private int lastEnd;
+
+        AnalyzedTokenStream() {
+            super(AttributeFactory.DEFAULT_ATTRIBUTE_FACTORY);
+        }
+
+        void setEncoded(BytesRef encoded) {
+            this.encoded = encoded;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            in.reset(encoded.bytes, encoded.offset, encoded.length);
+            int termCount = in.readVInt();
+            if (terms.length < termCount)
+                terms = new BytesRef[termCount];
+            for (int i = 0; i < termCount; i++) {
+                int length = in.readVInt();
+                terms[i] = new BytesRef(encoded.bytes, in.getPosition(), length);
+                in.skipBytes(length);
+            }
+            flags = in.readVInt();
+            remaining = in.readVInt();
+            lastStart = 0;
+            lastEnd = 0;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (remaining == 0)
+                return false;
+            remaining--;
+            clearAttributes();
+            termAtt.setBytesRef(terms[in.readVInt()]);
+            posIncAtt.setPositionIncrement(in.readVInt());
+            if ((flags & HAS_OFFSETS) != 0) {
+                lastStart += in.readZInt();
+                lastEnd = lastStart + in.readVInt();
+                offsetAtt.setOffset(lastStart, lastEnd);
+            }
+            if ((flags & HAS_PAYLOADS) != 0) {
+                int length = in.readVInt();
+                if (length > 0) {
+                    payloadAtt.setPayload(new BytesRef(encoded.bytes, in.getPosition(), length));
+                    in.skipBytes(length);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            offsetAtt.setOffset(lastEnd, lastEnd);
+        }
+    }
+
+    // Growable in-memory DataOutput
+    private static class BytesRefBuilderDataOutput extends DataOutput {
+
+        final BytesRefBuilder bytes = new BytesRefBuilder();
+
+        @Override
+        public void writeByte(byte b) throws IOException {
+            bytes.append(b);
+        }
+
+        @Override
+        public void writeBytes(byte[] b, int offset, int length) throws IOException {
+            bytes.append(b, offset, length);
+        }
+    }
+
+}
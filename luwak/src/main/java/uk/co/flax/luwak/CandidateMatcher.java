@@ -5,7 +5,15 @@ import java.util.*;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.index.LeafReader;
-import org.apache.lucene.search.Query;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.FixedBitSet;
+import uk.co.flax.luwak.util.TermDisjunctions;
 
 /*
  * Copyright (c) 2014 Lemur Consulting Ltd.
@@ -29,11 +37,31 @@ import org.apache.lucene.search.Query;
  */
 public abstract class CandidateMatcher<T extends QueryMatch> {
 
-    private final Set<String> presearcherHits = new HashSet<>();
     protected final DocumentBatch docs;
 
     private final List<MatchError> errors = new LinkedList<>();
-    private final Map<String, MatchHolder<T>> matches = new HashMap<>();
+
+    // Matches are recorded by query ordinal and document ordinal.  Each query id is given an
+    // ordinal when it is first seen, and documents are identified by their position in the
+    // batch.  Ids are only used again when the results are built in getMatches().
+    private final IdOrdinals queryIds = new IdOrdinals();
+    private List<QueryMatches<T>> queryMatches = new ArrayList<>();
+    private FixedBitSet presearcherHits = new FixedBitSet(64);
+    private int currentQuery = -1;
+
+    // the query cache entry being matched, if the caller supplied one
+    private QueryCacheEntry currentEntry = null;
+
+    // the ids of the documents in batch order, and for batches of more than one document,
+    // the position of the last document with each id.  Built on the first match.
+    private String[] docIds = null;
+    private IdOrdinals docOrdinals = null;
+    private int[] docPositions = null;
+
+    // if set, matches are stored here rather than in this matcher
+    private MatchAccumulator<T> accumulator = null;
+    // true if the accumulator holds this matcher's own results, see takeMatches(MatchAccumulator)
+    private boolean resultsInAccumulator = false;
 
     private long queryBuildTime = -1;
     private long searchTime = System.nanoTime();
@@ -41,10 +69,6 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
 
     protected final SlowLog slowlog = new SlowLog();
 
-    private static class MatchHolder<T> {
-        Map<String, T> matches = new HashMap<>();
-    }
-
     /**
      * Creates a new CandidateMatcher for the supplied InputDocument
      * @param docs the documents to run queries against
@@ -63,8 +87,269 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
      * @throws IOException on IO errors
      */
     public final void matchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
-        presearcherHits.add(queryId);
-        doMatchQuery(queryId, matchQuery, metadata);
+        matchQuery(queryId, matchQuery, metadata, null);
+    }
+
+    /**
+     * Runs the supplied query against a subset of this CandidateMatcher's documents, storing any
+     * resulting match, and recording the query in the presearcher hits
+     *
+     * @param queryId the query id
+     * @param matchQuery the query to run
+     * @param metadata the query metadata
+     * @param candidateDocs the documents in the batch that the query could match, or null
+     *                      to run the query against all documents
+     * @throws IOException on IO errors
+     */
+    public final void matchQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                 BitSet candidateDocs) throws IOException {
+        candidateDocs = unmatchedDocs(addPresearcherHit(queryId), queryId, candidateDocs);
+        if (candidateDocs == NO_DOCS)
+            return;
+        if (candidateDocs == null)
+            doMatchQuery(queryId, matchQuery, metadata);
+        else
+            doMatchQuery(queryId, matchQuery, metadata, candidateDocs);
+    }
+
+    /**
+     * Runs a query from the Monitor's query cache against a subset of this CandidateMatcher's
+     * documents, storing any resulting match, and recording the query in the presearcher hits
+     *
+     * Matchers can reuse state held on the entry, such as its span rewrite, by calling
+     * {@link #getQueryCacheEntry(Query, Map)} while the query is being matched.
+     *
+     * @param queryId the query id
+     * @param entry the query cache entry
+     * @param candidateDocs the documents in the batch that the query could match, or null
+     *                      to run the query against all documents
+     * @throws IOException on IO errors
+     */
+    public final void matchQuery(String queryId, QueryCacheEntry entry, BitSet candidateDocs) throws IOException {
+        currentEntry = entry;
+        try {
+            matchQuery(queryId, entry.matchQuery, entry.metadata, candidateDocs);
+        }
+        finally {
+            currentEntry = null;
+        }
+    }
+
+    /**
+     * Matches a query that the presearcher has reported as exact, storing any resulting
+     * match, and recording the query in the presearcher hits
+     *
+     * Every document in candidateDocs that contains one of the query's terms matches
+     * the query.  See {@link Presearcher#isExact(Query)}.
+     *
+     * @param queryId the query id
+     * @param matchQuery the query to run
+     * @param metadata the query metadata
+     * @param candidateDocs the documents in the batch that the query could match, or null
+     *                      for all documents
+     * @throws IOException on IO errors
+     */
+    public final void matchExactQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                      BitSet candidateDocs) throws IOException {
+        candidateDocs = unmatchedDocs(addPresearcherHit(queryId), queryId, candidateDocs);
+        if (candidateDocs != NO_DOCS)
+            doMatchExactQuery(queryId, matchQuery, metadata, candidateDocs);
+    }
+
+    /**
+     * Matches an exact query from the Monitor's query cache
+     *
+     * @see #matchExactQuery(String, Query, Map, BitSet)
+     * @see #matchQuery(String, QueryCacheEntry, BitSet)
+     */
+    public final void matchExactQuery(String queryId, QueryCacheEntry entry, BitSet candidateDocs) throws IOException {
+        currentEntry = entry;
+        try {
+            matchExactQuery(queryId, entry.matchQuery, entry.metadata, candidateDocs);
+        }
+        finally {
+            currentEntry = null;
+        }
+    }
+
+    /**
+     * Get the query cache entry for a query that is being matched
+     *
+     * If the query is being matched from a {@link QueryCacheEntry}, then that entry is
+     * returned, otherwise the query is wrapped in a new one.
+     *
+     * @param matchQuery the query being matched
+     * @param metadata the query metadata
+     * @return a QueryCacheEntry holding the query
+     */
+    protected final QueryCacheEntry getQueryCacheEntry(Query matchQuery, Map<String, String> metadata) {
+        if (currentEntry != null && currentEntry.matchQuery == matchQuery)
+            return currentEntry;
+        return new QueryCacheEntry(null, matchQuery, metadata);
+    }
+
+    /**
+     * Whether or not every disjunct of a decomposed query must be run against a document
+     *
+     * A query may be split into several disjuncts that share its id, each of which is
+     * matched separately.  If this returns false, then once a document has matched one
+     * of a query's disjuncts, the query's remaining disjuncts are not run against it, and
+     * are skipped entirely once every document in the batch has matched.  Matchers should
+     * only return false if {@link #resolve(QueryMatch, QueryMatch)} has no need to see
+     * the later matches.  Defaults to true.
+     *
+     * @return true if every disjunct must be run
+     */
+    protected boolean needsAllDisjuncts() {
+        return true;
+    }
+
+    // marks a query id that has already matched every candidate document
+    private static final BitSet NO_DOCS = new FixedBitSet(1);
+
+    // Record a query as a presearcher hit, and make it the query that matches are added for
+    private int addPresearcherHit(String queryId) {
+        currentQuery = queryIds.add(queryId);
+        presearcherHits = FixedBitSet.ensureCapacity(presearcherHits, currentQuery);
+        presearcherHits.set(currentQuery);
+        return currentQuery;
+    }
+
+    // Remove the documents that a query has already matched from a set of candidates.
+    // Returns NO_DOCS if there are no candidates left.
+    private BitSet unmatchedDocs(int query, String queryId, BitSet candidateDocs) throws IOException {
+        if (docIds == null || needsAllDisjuncts())
+            return candidateDocs;
+        if (docIds.length == 1) {
+            // a single document's matches are enough to tell whether it has matched already
+            return getMatch(0, query, queryId) != null ? NO_DOCS : candidateDocs;
+        }
+        QueryMatches<T> recorded = getQueryMatches(query);
+        if (recorded == null)
+            return candidateDocs;
+        FixedBitSet matched = recorded.matched;
+        FixedBitSet unmatched = new FixedBitSet(matched.length());
+        if (candidateDocs == null)
+            unmatched.set(0, unmatched.length());
+        else if (candidateDocs instanceof FixedBitSet)
+            unmatched.or((FixedBitSet) candidateDocs);
+        else
+            unmatched.or(new BitSetIterator(candidateDocs, candidateDocs.approximateCardinality()));
+        unmatched.andNot(matched);
+        return unmatched.nextSetBit(0) == DocIdSetIterator.NO_MORE_DOCS ? NO_DOCS : unmatched;
+    }
+
+    /**
+     * Override this method to match exact queries without running them
+     *
+     * By default, the query is run in the same way as any other candidate.  Matchers
+     * that do not need to examine a matching document in any way other than to know
+     * that it matched can use {@link #findExactMatches(Query, BitSet)} instead.
+     *
+     * @param queryId       the query id
+     * @param matchQuery    the query to run
+     * @param metadata      the query metadata
+     * @param candidateDocs the documents in the batch that the query could match, or null
+     * @throws IOException  on error
+     */
+    protected void doMatchExactQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                     BitSet candidateDocs) throws IOException {
+        if (candidateDocs == null)
+            doMatchQuery(queryId, matchQuery, metadata);
+        else
+            doMatchQuery(queryId, matchQuery, metadata, candidateDocs);
+    }
+
+    /**
+     * Records a query whose matching documents are already known, storing any resulting
+     * match, and recording the query in the presearcher hits
+     *
+     * This is used for queries matched by the Monitor's keyword index.
+     *
+     * @param queryId the query id
+     * @param matchQuery the query
+     * @param metadata the query metadata
+     * @param matchingDocs the documents in the batch that match the query
+     * @throws IOException on IO errors
+     */
+    public final void matchKnownQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                      BitSet matchingDocs) throws IOException {
+        matchingDocs = unmatchedDocs(addPresearcherHit(queryId), queryId, matchingDocs);
+        if (matchingDocs != NO_DOCS)
+            doMatchKnownQuery(queryId, matchQuery, metadata, matchingDocs);
+    }
+
+    /**
+     * Records a query from the Monitor's query cache whose matching documents are already known
+     *
+     * @see #matchKnownQuery(String, Query, Map, BitSet)
+     * @see #matchQuery(String, QueryCacheEntry, BitSet)
+     */
+    public final void matchKnownQuery(String queryId, QueryCacheEntry entry, BitSet matchingDocs) throws IOException {
+        currentEntry = entry;
+        try {
+            matchKnownQuery(queryId, entry.matchQuery, entry.metadata, matchingDocs);
+        }
+        finally {
+            currentEntry = null;
+        }
+    }
+
+    /**
+     * Override this method to record the matches of a query without running it
+     *
+     * By default, the query is run against the documents that it is known to match, so
+     * that matchers can collect scores, highlights or other information from them.
+     *
+     * @param queryId      the query id
+     * @param matchQuery   the query
+     * @param metadata     the query metadata
+     * @param matchingDocs the documents in the batch that match the query
+     * @throws IOException on error
+     */
+    protected void doMatchKnownQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                     BitSet matchingDocs) throws IOException {
+        doMatchQuery(queryId, matchQuery, metadata, matchingDocs);
+    }
+
+    /**
+     * Find the documents matching a query that the presearcher has reported as exact
+     *
+     * The presearcher has already shown that a single-document batch matches the query.
+     * For larger batches, documents are checked for the query's terms directly, rather
+     * than running the query.
+     *
+     * @param matchQuery    the query, which must be a pure disjunction of terms
+     * @param candidateDocs the documents in the batch that the query could match, or null
+     * @return the matching documents
+     * @throws IOException  on error
+     */
+    protected FixedBitSet findExactMatches(Query matchQuery, BitSet candidateDocs) throws IOException {
+        LeafReader reader = docs.getIndexReader();
+        FixedBitSet matches = new FixedBitSet(reader.maxDoc());
+        if (reader.maxDoc() == 1) {
+            matches.set(0);
+        }
+        else {
+            List<Term> terms = TermDisjunctions.getTerms(matchQuery);
+            if (terms == null)
+                throw new IllegalArgumentException("Query " + matchQuery + " is not a pure disjunction of terms");
+            for (Term term : terms) {
+                PostingsEnum postings = reader.postings(term, PostingsEnum.NONE);
+                if (postings != null)
+                    matches.or(postings);
+            }
+        }
+        if (candidateDocs instanceof FixedBitSet) {
+            matches.and((FixedBitSet) candidateDocs);
+        }
+        else if (candidateDocs != null) {
+            for (int doc = 0; doc < matches.length(); doc++) {
+                if (candidateDocs.get(doc) == false)
+                    matches.clear(doc);
+            }
+        }
+        return matches;
     }
 
     /**
@@ -77,17 +362,121 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
      */
     protected abstract void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException;
 
-    private void addMatch(String queryId, String docId, T match) {
-        MatchHolder<T> docMatches = matches.get(docId);
-        if (docMatches == null) {
-            docMatches = new MatchHolder<>();
-            matches.put(docId, docMatches);
+    /**
+     * Override this method to run the query against a subset of the batch
+     *
+     * The presearcher has determined that the query cannot match any document outside
+     * candidateDocs.  By default, the query is run against the whole batch.
+     *
+     * @param queryId       the query id
+     * @param matchQuery    the query to run
+     * @param metadata      the query metadata
+     * @param candidateDocs the documents in the batch that the query could match
+     * @throws IOException  on error
+     */
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                BitSet candidateDocs) throws IOException {
+        doMatchQuery(queryId, matchQuery, metadata);
+    }
+
+    /**
+     * Run a query over this CandidateMatcher's documents, only collecting documents in candidateDocs
+     *
+     * @param query         the query to run
+     * @param collector     the Collector to use
+     * @param candidateDocs the documents to collect, or null to collect all matching documents
+     * @throws IOException  on error
+     */
+    protected void search(Query query, Collector collector, BitSet candidateDocs) throws IOException {
+        IndexSearcher searcher = docs.getSearcher();
+        if (candidateDocs == null) {
+            searcher.search(query, collector);
+            return;
+        }
+        // batch indexes are a single segment with no deletions, so the candidates can be
+        // passed directly to the BulkScorer as its acceptDocs
+        Weight weight = searcher.createNormalizedWeight(query, collector.needsScores());
+        for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+            BulkScorer scorer = weight.bulkScorer(ctx);
+            if (scorer == null)
+                continue;
+            try {
+                scorer.score(collector.getLeafCollector(ctx), candidateDocs);
+            }
+            catch (CollectionTerminatedException e) {
+                // collection was terminated early
+            }
         }
-        if (docMatches.matches.containsKey(queryId)) {
-            docMatches.matches.put(queryId, resolve(match, docMatches.matches.get(queryId)));
+    }
+
+    // documents are ordered by their docid in the batch's index, so that the documents
+    // matched by a query can be compared directly with candidate bitsets
+    private void initDocs() {
+        docIds = new String[docs.getBatchSize()];
+        for (int i = 0; i < docIds.length; i++) {
+            docIds[i] = docs.resolveDocId(i);
+        }
+        if (docIds.length > 1) {
+            // if ids are repeated, the last document with the id holds its matches
+            docOrdinals = new IdOrdinals();
+            docPositions = new int[docIds.length];
+            for (int i = 0; i < docIds.length; i++) {
+                docPositions[docOrdinals.add(docIds[i])] = i;
+            }
+        }
+    }
+
+    private int getDocOrdinal(String docId) {
+        if (docIds == null)
+            initDocs();
+        if (docOrdinals == null)
+            return docIds.length == 1 && docIds[0].equals(docId) ? 0 : -1;
+        int ordinal = docOrdinals.find(docId);
+        return ordinal == -1 ? -1 : docPositions[ordinal];
+    }
+
+    // matches are nearly always added for the query that is currently being run
+    private int getQueryOrdinal(String queryId) {
+        if (currentQuery != -1 && queryId.equals(queryIds.get(currentQuery)))
+            return currentQuery;
+        return queryIds.add(queryId);
+    }
+
+    private QueryMatches<T> getQueryMatches(int query) {
+        return query >= 0 && query < queryMatches.size() ? queryMatches.get(query) : null;
+    }
+
+    private QueryMatches<T> getOrCreateQueryMatches(int query) {
+        while (queryMatches.size() <= query) {
+            queryMatches.add(null);
+        }
+        QueryMatches<T> recorded = queryMatches.get(query);
+        if (recorded == null) {
+            recorded = new QueryMatches<>(docIds.length);
+            queryMatches.set(query, recorded);
+        }
+        return recorded;
+    }
+
+    private T getMatch(int doc, int query, String queryId) {
+        if (accumulator != null)
+            return accumulator.get(doc, queryId);
+        QueryMatches<T> recorded = getQueryMatches(query);
+        return recorded == null ? null : recorded.find(doc);
+    }
+
+    private void addMatch(String queryId, String docId, T match) {
+        int doc = getDocOrdinal(docId);
+        if (doc == -1)
+            throw new IllegalArgumentException("Document " + docId + " is not in this matcher's batch");
+        QueryMatches<T> recorded = getOrCreateQueryMatches(getQueryOrdinal(queryId));
+        if (accumulator != null) {
+            accumulator.add(doc, match, this);
+            // still track the matched documents, so that remaining disjuncts can be skipped
+            recorded.matched.set(doc);
         }
         else {
-            docMatches.matches.put(queryId, match);
+            recorded.add(doc, match, this);
         }
     }
 
@@ -99,6 +488,140 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
         addMatch(match.getQueryId(), match.getDocId(), match);
     }
 
+    /**
+     * Add matches found by another matcher over the same batch
+     *
+     * This is used by matchers that distribute queries amongst several child matchers, to
+     * combine their results.  By default each match is recorded as if this matcher had
+     * found it, and resolved against any existing match for the same query and document.
+     * Matchers that only keep some of their matches can override this to apply the same
+     * limits to the combined results.
+     *
+     * @param matches the matches to add
+     */
+    public void addMatches(Matches<T> matches) {
+        for (DocumentMatches<T> docMatches : matches) {
+            for (T match : docMatches) {
+                addMatch(match);
+            }
+        }
+    }
+
+    /**
+     * Whether or not this matcher can store its matches in a shared {@link MatchAccumulator}
+     *
+     * Matchers that cannot record their matches as they are found, for example because
+     * they only keep some of them, should return false.  Their matches are then collected
+     * from {@link #getMatches()} and combined with {@link #addMatches(Matches)}.  Defaults
+     * to true.
+     *
+     * @return true if matches can be stored in an accumulator
+     */
+    protected boolean supportsAccumulator() {
+        return true;
+    }
+
+    /**
+     * Store matches found by this matcher in a shared {@link MatchAccumulator}, rather than
+     * in this matcher
+     *
+     * This allows several matchers running on different threads over the same batch to
+     * write to a single set of results.  Once an accumulator has been set, the matches
+     * returned by {@link #getMatches()} will be empty.
+     *
+     * @param accumulator the accumulator, or null to store matches in this matcher
+     * @throws IllegalStateException if this matcher does not support accumulators
+     */
+    public void setAccumulator(MatchAccumulator<T> accumulator) {
+        if (accumulator != null && supportsAccumulator() == false)
+            throw new IllegalStateException(getClass().getSimpleName() + " cannot store its matches in an accumulator");
+        this.accumulator = accumulator;
+        this.resultsInAccumulator = false;
+    }
+
+    /**
+     * Create a {@link MatchAccumulator} for a set of matchers over the same batch, if they
+     * all support one
+     *
+     * Matchers that distribute queries amongst several child matchers use this to decide
+     * whether the children should share an accumulator, or have their results combined
+     * with {@link #addMatches(Matches)}.
+     *
+     * @param docs the batch
+     * @param matchers the matchers that would share the accumulator
+     * @param <T> the type of QueryMatch stored
+     * @return a new accumulator, or null if any of the matchers cannot use one
+     */
+    protected static <T extends QueryMatch> MatchAccumulator<T> createAccumulator(DocumentBatch docs,
+                                                                                  Iterable<? extends CandidateMatcher<T>> matchers) {
+        for (CandidateMatcher<T> matcher : matchers) {
+            if (matcher.supportsAccumulator() == false)
+                return null;
+        }
+        return new MatchAccumulator<>(docs);
+    }
+
+    /**
+     * Replace the matches recorded by this matcher with those held by a {@link MatchAccumulator}
+     *
+     * The accumulator becomes this matcher's store of matches: its per-document maps are
+     * returned by {@link #getMatches()} as they are, without being copied or resolved
+     * again, and any further matches are added to it.  The accumulator must not be
+     * shared with other matchers afterwards.
+     *
+     * @param accumulator the accumulator to take matches from
+     */
+    protected void takeMatches(MatchAccumulator<T> accumulator) {
+        if (accumulator.size() != docs.getBatchSize())
+            throw new IllegalArgumentException("Cannot take matches from an accumulator over a different batch");
+        if (docIds == null)
+            initDocs();
+        queryMatches = new ArrayList<>();
+        this.accumulator = accumulator;
+        this.resultsInAccumulator = true;
+    }
+
+    /**
+     * Replace the matches recorded by this matcher with those recorded by another matcher
+     * over the same batch
+     *
+     * The other matcher's results are taken over a query at a time, rather than copied
+     * match by match.  This should only be called once the other matcher has finished, and its
+     * {@link #getMatches()} method has been called; the other matcher must not be used
+     * afterwards.  Errors and slow log entries are not transferred.
+     *
+     * @param other the matcher to take matches from
+     */
+    protected void takeMatches(CandidateMatcher<T> other) {
+        if (other.docs != this.docs)
+            throw new IllegalArgumentException("Cannot take matches from a matcher over a different batch");
+        if (docIds == null)
+            initDocs();
+        queryMatches = new ArrayList<>();
+        for (int query = 0; query < other.queryMatches.size(); query++) {
+            QueryMatches<T> recorded = other.queryMatches.get(query);
+            if (recorded == null)
+                continue;
+            int ordinal = queryIds.add(other.queryIds.get(query));
+            while (queryMatches.size() <= ordinal) {
+                queryMatches.add(null);
+            }
+            queryMatches.set(ordinal, recorded);
+        }
+        other.queryMatches = null;
+    }
+
+    /**
+     * Discard the matches recorded by this matcher
+     *
+     * Matchers that hold their matches elsewhere until {@link #getMatches()} is called can use
+     * this to replace the matches recorded on a previous call.  Errors, slow log entries and
+     * presearcher hits are kept, as are any matches held by an accumulator.
+     */
+    protected void clearMatches() {
+        queryMatches = new ArrayList<>();
+    }
+
     /**
      * If two matches from the same query are found (for example, two branches of a disjunction),
      * combine them.
@@ -141,25 +664,82 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
      * @return the QueryMatch for the given document and query, or null if it did not match
      */
     protected T matches(String docId, String queryId) {
-        MatchHolder<T> docMatches = matches.get(docId);
-        if (docMatches == null)
+        int doc = getDocOrdinal(docId);
+        if (doc == -1)
             return null;
-        return docMatches.matches.get(queryId);
+        return getMatch(doc, queryIds.find(queryId), queryId);
     }
 
     /**
      * @return the matches from this matcher
      */
     public Matches<T> getMatches() {
+        if (docIds == null)
+            initDocs();
+
+        // matches for documents with repeated ids are combined under the last one
+        int[] targets = new int[docIds.length];
+        List<Map<String, T>> docMatches = new ArrayList<>(docIds.length);
+        for (int doc = 0; doc < docIds.length; doc++) {
+            targets[doc] = docOrdinals == null ? doc : getDocOrdinal(docIds[doc]);
+            docMatches.add(null);
+        }
+        if (resultsInAccumulator) {
+            // the accumulator's maps are used directly, unless several documents share an id
+            for (int doc = 0; doc < docIds.length; doc++) {
+                Map<String, T> matches = accumulator.getMatches(doc);
+                if (matches == null)
+                    continue;
+                Map<String, T> combined = docMatches.get(targets[doc]);
+                if (combined == null) {
+                    docMatches.set(targets[doc], matches);
+                    continue;
+                }
+                combined = new HashMap<>(combined);
+                for (Map.Entry<String, T> entry : matches.entrySet()) {
+                    T previous = combined.put(entry.getKey(), entry.getValue());
+                    if (previous != null)
+                        combined.put(entry.getKey(), resolve(entry.getValue(), previous));
+                }
+                docMatches.set(targets[doc], combined);
+            }
+        }
+        else {
+            for (int query = 0; query < queryMatches.size(); query++) {
+                QueryMatches<T> recorded = queryMatches.get(query);
+                if (recorded == null)
+                    continue;
+                String queryId = queryIds.get(query);
+                for (int i = 0; i < recorded.count; i++) {
+                    int doc = targets[recorded.docs[i]];
+                    Map<String, T> matches = docMatches.get(doc);
+                    if (matches == null) {
+                        matches = new HashMap<>();
+                        docMatches.set(doc, matches);
+                    }
+                    T match = recorded.get(i);
+                    T previous = matches.put(queryId, match);
+                    if (previous != null)
+                        matches.put(queryId, resolve(match, previous));
+                }
+            }
+        }
+
         Map<String, DocumentMatches<T>> results = new HashMap<>();
-        for (InputDocument doc : docs) {
-            String id = doc.getId();
-            if (matches.containsKey(id))
-                results.put(id, new DocumentMatches<>(id, matches.get(id).matches.values()));
-            else
+        for (int doc = 0; doc < docIds.length; doc++) {
+            String id = docIds[doc];
+            if (docMatches.get(doc) != null)
+                results.put(id, new DocumentMatches<>(id, docMatches.get(doc)));
+            else if (results.containsKey(id) == false)
                 results.put(id, DocumentMatches.<T>noMatches(id));
         }
-        return new Matches<>(results, presearcherHits, errors, queryBuildTime, searchTime, queriesRun, docs.getBatchSize(), slowlog);
+
+        Set<String> hits = new HashSet<>();
+        BitSetIterator it = new BitSetIterator(presearcherHits, 0);
+        for (int query = it.nextDoc(); query != DocIdSetIterator.NO_MORE_DOCS; query = it.nextDoc()) {
+            hits.add(queryIds.get(query));
+        }
+        return new Matches<>(results, hits, errors, queryBuildTime, searchTime, queriesRun, docs.getBatchSize(), slowlog);
     }
 
     /**
@@ -169,4 +749,107 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
     public LeafReader getIndexReader() throws IOException {
         return docs.getIndexReader();
     }
+
+    // The documents that a query has matched, and unless they are being stored in an
+    // accumulator, the matches themselves in the order that they were found
+    private static final class QueryMatches<T extends QueryMatch> {
+
+        final FixedBitSet matched;
+        int[] docs = new int[1];
+        private Object[] matches = new Object[1];
+        int count = 0;
+
+        QueryMatches(int batchSize) {
+            this.matched = new FixedBitSet(batchSize);
+        }
+
+        @SuppressWarnings("unchecked")
+        T get(int i) {
+            return (T) matches[i];
+        }
+
+        T find(int doc) {
+            if (matched.get(doc) == false)
+                return null;
+            for (int i = count - 1; i >= 0; i--) {
+                if (docs[i] == doc)
+                    return get(i);
+            }
+            return null;
+        }
+
+        void add(int doc, T match, CandidateMatcher<T> resolver) {
+            if (matched.get(doc)) {
+                for (int i = count - 1; i >= 0; i--) {
+                    if (docs[i] == doc) {
+                        matches[i] = resolver.resolve(match, get(i));
+                        return;
+                    }
+                }
+            }
+            matched.set(doc);
+            if (count == docs.length) {
+                docs = ArrayUtil.grow(docs, count + 1);
+                matches = Arrays.copyOf(matches, docs.length);
+            }
+            docs[count] = doc;
+            matches[count] = match;
+            count++;
+        }
+    }
+
+    // Assigns each distinct id a dense int ordinal, using open addressing so that
+    // lookups don't box or allocate
+    private static final class IdOrdinals {
+
+        private String[] ids = new String[16];
+        private int[] slots = new int[32];   // ordinal + 1, or 0 for an empty slot
+        private int size = 0;
+
+        private static int slot(String id, int mask) {
+            int h = id.hashCode();
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        int find(String id) {
+            int mask = slots.length - 1;
+            for (int i = slot(id, mask); slots[i] != 0; i = (i + 1) & mask) {
+                if (ids[slots[i] - 1].equals(id))
+                    return slots[i] - 1;
+            }
+            return -1;
+        }
+
+        int add(String id) {
+            int mask = slots.length - 1;
+            int i = slot(id, mask);
+            for (; slots[i] != 0; i = (i + 1) & mask) {
+                if (ids[slots[i] - 1].equals(id))
+                    return slots[i] - 1;
+            }
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            ids[size] = id;
+            slots[i] = ++size;
+            if (size * 2 > slots.length)
+                rehash();
+            return size - 1;
+        }
+
+        String get(int ordinal) {
+            return ids[ordinal];
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int ordinal = 0; ordinal < size; ordinal++) {
+                int i = slot(ids[ordinal], mask);
+                while (slots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = ordinal + 1;
+            }
+        }
+    }
 }
@@ -0,0 +1,148 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Records which documents in a {@link DocumentBatch} supplied each of the terms that a
+ * {@link Presearcher} uses to select candidate queries from the Monitor's queryindex.
+ *
+ * The Monitor uses this to work out, for each candidate query, the set of documents
+ * in the batch that could have caused the query to be selected.  The query is then only
+ * run against those documents.
+ *
+ * See {@link Presearcher#buildRouting(LeafReader, QueryTermFilter)}
+ */
+public class CandidateRouting {
+
+    private final FixedBitSet allDocs;
+    private final Map<String, Map<BytesRef, FixedBitSet>> fields = new HashMap<>();
+
+    /**
+     * Create a new CandidateRouting object
+     * @param maxDoc the number of documents in the batch index
+     */
+    public CandidateRouting(int maxDoc) {
+        this.allDocs = new FixedBitSet(maxDoc);
+        this.allDocs.set(0, maxDoc);
+    }
+
+    /**
+     * Record that a queryindex term was supplied by a set of documents in the batch
+     * @param field the field
+     * @param term  the term
+     * @param docs  the documents that supplied the term
+     * @throws IOException on IO errors
+     */
+    public void addTerm(String field, BytesRef term, DocIdSetIterator docs) throws IOException {
+        Map<BytesRef, FixedBitSet> terms = getTerms(field);
+        FixedBitSet bits = terms.get(term);
+        if (bits == allDocs)
+            return;
+        if (bits == null) {
+            bits = new FixedBitSet(allDocs.length());
+            terms.put(BytesRef.deepCopyOf(term), bits);
+        }
+        bits.or(docs);
+    }
+
+    /**
+     * Record that a queryindex term may have been supplied by any document in the batch
+     * @param field the field
+     * @param term  the term
+     */
+    public void addTerm(String field, BytesRef term) {
+        getTerms(field).put(BytesRef.deepCopyOf(term), allDocs);
+    }
+
+    private Map<BytesRef, FixedBitSet> getTerms(String field) {
+        Map<BytesRef, FixedBitSet> terms = fields.get(field);
+        if (terms == null) {
+            // sorted, so that terms are looked up in the queryindex in order
+            terms = new TreeMap<>();
+            fields.put(field, terms);
+        }
+        return terms;
+    }
+
+    /**
+     * Find the batch documents that each query in a segment of the queryindex should be
+     * run against.
+     *
+     * Entries are null for queries that should be run against the whole batch, either
+     * because they contain a term supplied by every document, or because they contain
+     * none of the routing terms.  The returned bitsets may be shared between several
+     * queries, and must not be modified.
+     *
+     * @param reader a segment of the queryindex
+     * @return an array of bitsets, indexed by queryindex docid
+     * @throws IOException on IO errors
+     */
+    FixedBitSet[] route(LeafReader reader) throws IOException {
+
+        FixedBitSet[] routes = new FixedBitSet[reader.maxDoc()];
+        boolean[] owned = new boolean[reader.maxDoc()];
+        PostingsEnum postings = null;
+
+        for (Map.Entry<String, Map<BytesRef, FixedBitSet>> field : fields.entrySet()) {
+            Terms terms = reader.terms(field.getKey());
+            if (terms == null)
+                continue;
+            TermsEnum te = terms.iterator();
+            for (Map.Entry<BytesRef, FixedBitSet> term : field.getValue().entrySet()) {
+                if (te.seekExact(term.getKey()) == false)
+                    continue;
+                FixedBitSet docs = term.getValue();
+                postings = te.postings(postings, PostingsEnum.NONE);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    FixedBitSet route = routes[doc];
+                    if (route == null || docs == allDocs) {
+                        routes[doc] = docs;
+                    }
+                    else if (route != allDocs) {
+                        // copy on write, as bitsets are shared between queries until they need to be combined
+                        if (owned[doc] == false) {
+                            route = route.clone();
+                            routes[doc] = route;
+                            owned[doc] = true;
+                        }
+                        route.or(docs);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < routes.length; i++) {
+            if (routes[i] == allDocs)
+                routes[i] = null;
+        }
+        return routes;
+    }
+
+}
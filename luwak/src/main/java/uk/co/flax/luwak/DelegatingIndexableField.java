@@ -0,0 +1,78 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.Reader;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.IndexableFieldType;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * An IndexableField that delegates all its methods to another field.  Subclasses
+ * can override methods to change how the field is indexed.
+ */
+class DelegatingIndexableField implements IndexableField {
+
+    protected final IndexableField in;
+
+    DelegatingIndexableField(IndexableField in) {
+        this.in = in;
+    }
+
+    @Override
+    public String name() {
+        return in.name();
+    }
+
+    @Override
+    public IndexableFieldType fieldType() {
+        return in.fieldType();
+    }
+
+    @Override
+    public TokenStream tokenStream(Analyzer analyzer, TokenStream reuse) {
+        return in.tokenStream(analyzer, reuse);
+    }
+
+    @Override
+    public float boost() {
+        return in.boost();
+    }
+
+    @Override
+    public BytesRef binaryValue() {
+        return in.binaryValue();
+    }
+
+    @Override
+    public String stringValue() {
+        return in.stringValue();
+    }
+
+    @Override
+    public Reader readerValue() {
+        return in.readerValue();
+    }
+
+    @Override
+    public Number numericValue() {
+        return in.numericValue();
+    }
+}
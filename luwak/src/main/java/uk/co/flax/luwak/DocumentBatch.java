@@ -19,7 +19,12 @@ package uk.co.flax.luwak;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.DelegatingAnalyzerWrapper;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldType;
 import org.apache.lucene.index.*;
 import org.apache.lucene.index.memory.MemoryIndex;
 import org.apache.lucene.search.IndexSearcher;
@@ -28,6 +33,7 @@ import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.IOUtils;
+import uk.co.flax.luwak.util.BatchQueryCache;
 
 /**
  * A collection of InputDocuments to be matched.
@@ -35,7 +41,8 @@ import org.apache.lucene.util.IOUtils;
  * A batch containing a single InputDocument uses a lucene MemoryIndex for indexing,
  * otherwise a RAMDirectory is used to hold the documents.
  *
- * To build a batch, either use one of the static factory methods, or a Builder object:
+ * To build a batch, either use one of the static factory methods, a Builder object, or
+ * acquire a reusable batch from a {@link DocumentBatchPool}:
  * <pre>
  *     DocumentBatch batch1 = DocumentBatch.of(doc1, doc2)
  *     DocumentBatch batch2 = new DocumentBatch.Builder()
@@ -43,7 +50,15 @@ import org.apache.lucene.util.IOUtils;
  *                                  .add(doc1)
  *                                  .addAll(listOfDocs)
  *                                  .build()
+ *     DocumentBatch batch3 = pool.acquire(doc1, doc2)
  * </pre>
+ *
+ * Batches should always be closed after use.  Closing a batch acquired from a
+ * DocumentBatchPool returns it to the pool for reuse.
+ *
+ * The searcher for a batch containing more than one document uses a {@link BatchQueryCache},
+ * so that sub-queries shared by several candidate queries are only evaluated once
+ * per batch.
  */
 public abstract class DocumentBatch implements Closeable, Iterable<InputDocument> {
 
@@ -53,6 +68,11 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
     /** A list of {@link InputDocument} objects to match */
     protected final List<InputDocument> documents = new ArrayList<>();
 
+    /** The maximum number of sub-queries to cache when searching this batch, or 0 for no caching */
+    protected int queryCacheSize = 0;
+
+    private volatile IndexSearcher searcher = null;
+
     /**
      * Create a DocumentBatch containing a single InputDocument
      */
@@ -81,6 +101,9 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
 
         private Similarity similarity = new BM25Similarity();
         private List<InputDocument> documents = new ArrayList<>();
+        private ExecutorService analysisExecutor = null;
+        private IndexFeatures indexFeatures = IndexFeatures.ALL;
+        private int queryCacheSize = BatchQueryCache.DEFAULT_MAX_QUERIES;
 
         /** Add an InputDocument */
         public Builder add(InputDocument doc) {
@@ -100,13 +123,59 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
             return this;
         }
 
+        /**
+         * Analyze the documents in the batch concurrently, using the supplied {@link ExecutorService}
+         *
+         * Each document is analyzed by a separate task, and the resulting tokens are buffered
+         * and then indexed in the order that the documents were added to the batch.  Batches
+         * containing a single document are always analyzed on the calling thread.
+         */
+        public Builder setAnalysisExecutor(ExecutorService executor) {
+            this.analysisExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Set the index structures to be built for this batch
+         *
+         * By default, all features are indexed
+         *
+         * @see IndexFeatures#required(MatcherFactory)
+         */
+        public Builder setIndexFeatures(IndexFeatures features) {
+            this.indexFeatures = features;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of sub-queries that will be cached while matching this batch
+         *
+         * Set to 0 to disable caching.  Batches containing a single document are never cached.
+         *
+         * @see BatchQueryCache
+         */
+        public Builder setQueryCacheSize(int queryCacheSize) {
+            if (queryCacheSize < 0)
+                throw new IllegalArgumentException("queryCacheSize cannot be negative");
+            this.queryCacheSize = queryCacheSize;
+            return this;
+        }
+
         /** Create the DocumentBatch */
         public DocumentBatch build() {
             if (documents.size() == 0)
                 throw new IllegalStateException("Cannot build DocumentBatch with zero documents");
-            if (documents.size() == 1)
-                return new SingletonDocumentBatch(documents, similarity);
-            return new MultiDocumentBatch(documents, similarity);
+            try {
+                ReusableDocumentBatch batch = documents.size() == 1
+                        ? new SingletonDocumentBatch(similarity, indexFeatures)
+                        : new MultiDocumentBatch(similarity, indexFeatures);
+                batch.setQueryCacheSize(queryCacheSize);
+                batch.reset(documents, analysisExecutor);
+                return batch;
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);  // This is a RAMDirectory, so should never happen...
+            }
         }
 
     }
@@ -135,15 +204,54 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
     public abstract String resolveDocId(int docId);
 
     /**
+     * Get an {@link IndexSearcher} over the documents in this batch
+     *
+     * The searcher is created on first use, and then shared by all matchers running
+     * against the batch.  IndexSearcher is thread-safe, so the same instance may be
+     * used by concurrent matchers.
+     *
      * @return an {@link IndexSearcher} over the documents in this batch
      * @throws IOException on error
      */
     public IndexSearcher getSearcher() throws IOException {
-        IndexSearcher searcher = new IndexSearcher(getIndexReader());
+        IndexSearcher s = searcher;
+        if (s == null) {
+            synchronized (this) {
+                s = searcher;
+                if (s == null) {
+                    s = createSearcher();
+                    searcher = s;
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Create a new {@link IndexSearcher} over the documents in this batch
+     * @throws IOException on error
+     */
+    protected IndexSearcher createSearcher() throws IOException {
+        IndexSearcher searcher;
+        if (queryCacheSize > 0 && getBatchSize() > 1) {
+            searcher = BatchQueryCache.newSearcher(getIndexReader(), queryCacheSize);
+        }
+        else {
+            searcher = new IndexSearcher(getIndexReader());
+            searcher.setQueryCache(null);
+        }
         searcher.setSimilarity(similarity);
         return searcher;
     }
 
+    /**
+     * Discard the cached {@link IndexSearcher}, for example because the batch's
+     * index reader has changed
+     */
+    protected void clearSearcher() {
+        searcher = null;
+    }
+
     @Override
     public Iterator<InputDocument> iterator() {
         return documents.iterator();
@@ -156,48 +264,253 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
         return documents.size();
     }
 
-    // Implementation of DocumentBatch for collections of documents
-    private static class MultiDocumentBatch extends DocumentBatch {
+    /**
+     * @return the index structures built for this batch
+     */
+    public IndexFeatures getIndexFeatures() {
+        return IndexFeatures.ALL;
+    }
 
-        private final Directory directory = new RAMDirectory();
-        private LeafReader reader = null;
-        private String[] docIds = null;
-
-        MultiDocumentBatch(List<InputDocument> docs, Similarity similarity) {
-            super(docs, similarity);
-            assert docs.size() > 1;
-            IndexWriterConfig iwc = new IndexWriterConfig(docs.get(0).getAnalyzers()).setSimilarity(similarity);
-            try (IndexWriter writer = new IndexWriter(directory, iwc)) {
-                this.reader = build(writer);
+    /**
+     * @return true if this batch can be held open with {@link #retain()}
+     */
+    public boolean supportsRetain() {
+        return false;
+    }
+
+    /**
+     * Keep this batch's index open until a matching call to {@link #release()}, even
+     * if the batch is closed in the meantime
+     *
+     * This allows results that refer back to the batch, such as
+     * {@link uk.co.flax.luwak.matchers.LazyHighlightsMatch}, to outlive the match run
+     * that produced them.  A batch from a {@link DocumentBatchPool} that is closed while
+     * it is retained is not returned to its pool, and its resources are freed once
+     * the last hold on it is released.
+     *
+     * @throws IllegalStateException if the batch has already been closed
+     * @throws UnsupportedOperationException if the batch can't be retained, see {@link #supportsRetain()}
+     */
+    public void retain() {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't be retained");
+    }
+
+    /**
+     * Release a hold on this batch taken by {@link #retain()}
+     *
+     * @throws IOException on error
+     * @throws IllegalStateException if the batch is not retained
+     */
+    public void release() throws IOException {
+        throw new IllegalStateException("Batch is not retained");
+    }
+
+    // Base class for the DocumentBatch implementations that can be reused by a DocumentBatchPool.
+    // A pooled batch is handed back to its pool on close(), rather than releasing its resources.
+    static abstract class ReusableDocumentBatch extends DocumentBatch {
+
+        protected final IndexFeatures features;
+
+        private DocumentBatchPool pool = null;
+        private boolean inUse = false;
+
+        // guarded by this
+        private int holds = 0;
+        private boolean closePending = false;
+
+        ReusableDocumentBatch(Similarity similarity, IndexFeatures features) {
+            super(Collections.<InputDocument>emptyList(), similarity);
+            this.features = features;
+        }
+
+        @Override
+        public IndexFeatures getIndexFeatures() {
+            return features;
+        }
+
+        void setQueryCacheSize(int queryCacheSize) {
+            this.queryCacheSize = queryCacheSize;
+        }
+
+        /**
+         * Replace the contents of this batch with a new set of documents
+         * @param docs the documents
+         * @param analysisExecutor an executor to analyze documents on, or null to analyze them serially
+         */
+        abstract void reset(Collection<InputDocument> docs, ExecutorService analysisExecutor) throws IOException;
+
+        /**
+         * Release any resources held by this batch
+         */
+        abstract void closeResources() throws IOException;
+
+        void discard() {
+            try {
+                closeResources();
             }
             catch (IOException e) {
-                throw new RuntimeException(e);  // This is a RAMDirectory, so should never happen...
+                // ignore, we're throwing this batch away
             }
         }
 
+        void acquire(DocumentBatchPool pool, Collection<InputDocument> docs, ExecutorService analysisExecutor)
+                throws IOException {
+            reset(docs, analysisExecutor);
+            this.pool = pool;
+            this.inUse = true;
+        }
+
+        @Override
+        public boolean supportsRetain() {
+            return true;
+        }
+
+        @Override
+        public synchronized void retain() {
+            if (closePending || (pool != null && inUse == false))
+                throw new IllegalStateException("DocumentBatch has been closed");
+            holds++;
+        }
+
+        @Override
+        public void release() throws IOException {
+            synchronized (this) {
+                if (holds == 0)
+                    throw new IllegalStateException("Batch is not retained");
+                holds--;
+                if (holds > 0 || closePending == false)
+                    return;
+            }
+            // a retained batch is never handed back to its pool, which may belong to another thread
+            closeResources();
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (closePending)
+                    return;
+                if (holds > 0) {
+                    closePending = true;
+                    return;
+                }
+                if (pool == null)
+                    closePending = true;
+            }
+            if (pool == null) {
+                closeResources();
+                return;
+            }
+            if (inUse == false)
+                return;
+            inUse = false;
+            documents.clear();
+            // the searcher is bound to this batch's current reader, which will be replaced on reuse
+            clearSearcher();
+            pool.release(this);
+        }
+
+    }
+
+    // Implementation of DocumentBatch for collections of documents
+    static class MultiDocumentBatch extends ReusableDocumentBatch {
+
+        private static final Set<String> ID_FIELDS = Collections.singleton(InputDocument.ID_FIELD);
+
+        private final Directory directory = new RAMDirectory();
+        private final DocumentAnalyzer analyzer = new DocumentAnalyzer();
+        private final IndexWriter writer;
+        private DirectoryReader directoryReader = null;
+        private LeafReader reader = null;
+        private String[] docIds = new String[0];
+
+        // IndexWriter field types, restricted to this batch's IndexFeatures
+        private final Map<IndexableFieldType, FieldType> fieldTypes = new IdentityHashMap<>();
+
+        MultiDocumentBatch(Similarity similarity, IndexFeatures features) throws IOException {
+            super(similarity, features);
+            IndexWriterConfig iwc = new IndexWriterConfig(analyzer).setSimilarity(similarity);
+            this.writer = new IndexWriter(directory, iwc);
+        }
+
         @Override
         public LeafReader getIndexReader() throws IOException {
             return reader;
         }
 
-        private LeafReader build(IndexWriter writer) throws IOException {
+        @Override
+        void reset(Collection<InputDocument> docs, ExecutorService analysisExecutor) throws IOException {
 
-            for (InputDocument doc : documents) {
-                writer.addDocument(doc.getDocument());
-            }
+            documents.clear();
+            documents.addAll(docs);
 
-            writer.commit();
+            List<Document> analyzed = analysisExecutor == null
+                    ? null : ParallelDocumentAnalyzer.analyze(documents, analysisExecutor);
+
+            writer.deleteAll();
+            for (int i = 0; i < documents.size(); i++) {
+                InputDocument doc = documents.get(i);
+                // each document may have its own set of analyzers
+                analyzer.current = doc.getAnalyzers();
+                writer.addDocument(restrictFeatures(analyzed == null ? doc.getDocument() : analyzed.get(i)));
+            }
+            analyzer.current = null;
             writer.forceMerge(1);
-            LeafReader reader = DirectoryReader.open(directory).leaves().get(0).reader();
+
+            DirectoryReader newReader = DirectoryReader.open(writer);
+            IOUtils.close(directoryReader);
+            directoryReader = newReader;
+            reader = directoryReader.leaves().get(0).reader();
             assert reader != null;
 
-            docIds = new String[reader.maxDoc()];
-            for (int i = 0; i < docIds.length; i++) {
-                docIds[i] = reader.document(i).get(InputDocument.ID_FIELD);     // TODO can this be more efficient?
+            if (docIds.length < reader.maxDoc())
+                docIds = new String[reader.maxDoc()];
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                docIds[i] = reader.document(i, ID_FIELDS).get(InputDocument.ID_FIELD);
             }
 
-            return reader;
+        }
 
+        private Iterable<IndexableField> restrictFeatures(Document doc) {
+            if (features.equals(IndexFeatures.ALL))
+                return doc;
+            List<IndexableField> fields = new ArrayList<>(doc.getFields().size());
+            for (IndexableField field : doc) {
+                final FieldType type = restrictFeatures(field.fieldType());
+                fields.add(type == null ? field : new DelegatingIndexableField(field) {
+                    @Override
+                    public IndexableFieldType fieldType() {
+                        return type;
+                    }
+                });
+            }
+            return fields;
+        }
+
+        // returns null if the field type does not need to be changed.  Term vectors are
+        // never used by matchers, and are dropped from restricted field types.
+        private FieldType restrictFeatures(IndexableFieldType type) {
+            if (fieldTypes.containsKey(type))
+                return fieldTypes.get(type);
+            FieldType restricted = null;
+            boolean reduceOptions = type.indexOptions().compareTo(features.getIndexOptions()) > 0;
+            boolean omitNorms = type.indexOptions() != IndexOptions.NONE && !type.omitNorms() && !features.hasNorms();
+            if (reduceOptions || omitNorms) {
+                restricted = new FieldType();
+                restricted.setStored(type.stored());
+                restricted.setTokenized(type.tokenized());
+                restricted.setOmitNorms(type.omitNorms());
+                restricted.setIndexOptions(type.indexOptions());
+                restricted.setDocValuesType(type.docValuesType());
+                restricted.setDimensions(type.pointDimensionCount(), type.pointNumBytes());
+                if (reduceOptions)
+                    restricted.setIndexOptions(features.getIndexOptions());
+                if (omitNorms)
+                    restricted.setOmitNorms(true);
+                restricted.freeze();
+            }
+            fieldTypes.put(type, restricted);
+            return restricted;
         }
 
         @Override
@@ -206,22 +519,46 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
         }
 
         @Override
-        public void close() throws IOException {
-            IOUtils.close(reader, directory);
+        void closeResources() throws IOException {
+            IOUtils.close(directoryReader, writer, directory);
+        }
+
+    }
+
+    // Analyzer that delegates to the analyzers of the document currently being indexed
+    private static class DocumentAnalyzer extends DelegatingAnalyzerWrapper {
+
+        Analyzer current;
+
+        DocumentAnalyzer() {
+            super(PER_FIELD_REUSE_STRATEGY);
         }
 
+        @Override
+        protected Analyzer getWrappedAnalyzer(String fieldName) {
+            return current;
+        }
     }
 
     // Specialized class for batches containing a single object - MemoryIndex benchmarks as
     // better performing than RAMDirectory for this case
-    private static class SingletonDocumentBatch extends DocumentBatch {
+    static class SingletonDocumentBatch extends ReusableDocumentBatch {
 
-        private final MemoryIndex memoryindex = new MemoryIndex(true, true);
-        private final LeafReader reader;
+        private final MemoryIndex memoryindex;
+        private LeafReader reader;
+
+        SingletonDocumentBatch(Similarity similarity, IndexFeatures features) {
+            super(similarity, features);
+            // MemoryIndex always records positions, and calculates norms when they are requested
+            this.memoryindex = new MemoryIndex(features.hasOffsets(), features.hasPayloads());
+        }
 
-        private SingletonDocumentBatch(Collection<InputDocument> documents, Similarity similarity) {
-            super(documents, similarity);
-            assert documents.size() == 1;
+        @Override
+        void reset(Collection<InputDocument> docs, ExecutorService analysisExecutor) {
+            documents.clear();
+            documents.addAll(docs);
+            // MemoryIndex.reset() recycles its byte and int pools, and reverts to the default similarity
+            memoryindex.reset();
             memoryindex.setSimilarity(similarity);
             for (InputDocument doc : documents) {
                 for (IndexableField field : doc.getDocument()) {
@@ -244,8 +581,8 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
         }
 
         @Override
-        public void close() throws IOException {
-            reader.close();
+        void closeResources() throws IOException {
+            IOUtils.close(reader);
         }
     }
 
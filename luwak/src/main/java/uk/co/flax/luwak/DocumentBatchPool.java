@@ -0,0 +1,245 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.Similarity;
+import uk.co.flax.luwak.util.BatchQueryCache;
+
+/**
+ * A pool of reusable {@link DocumentBatch} objects.
+ *
+ * Building a DocumentBatch allocates a MemoryIndex or a RAMDirectory and IndexWriter,
+ * along with their internal buffers.  Batches acquired from a pool keep hold of these
+ * structures when they are closed, and reuse them the next time they are acquired,
+ * so that steady-state batching does not need to reallocate them.
+ *
+ * <pre>
+ *     DocumentBatchPool pool = new DocumentBatchPool();
+ *     try (DocumentBatch batch = pool.acquire(docs)) {
+ *         Matches&lt;QueryMatch&gt; matches = monitor.match(batch, SimpleMatcher.FACTORY);
+ *     }
+ * </pre>
+ *
+ * Closing a batch returns it to the pool; it should not be used again afterwards.
+ *
+ * Batches are only reused for requests with the same {@link IndexFeatures}.
+ *
+ * DocumentBatchPool is not thread-safe, and should be owned either by a single thread
+ * or by a caller that synchronizes access to it.
+ */
+public class DocumentBatchPool implements Closeable {
+
+    /** The default maximum number of idle batches of each type held by a pool */
+    public static final int DEFAULT_MAX_IDLE = 4;
+
+    private final Similarity similarity;
+    private final int maxIdle;
+
+    private final Deque<DocumentBatch.SingletonDocumentBatch> singletons = new ArrayDeque<>();
+    private final Deque<DocumentBatch.MultiDocumentBatch> multis = new ArrayDeque<>();
+
+    private ExecutorService analysisExecutor = null;
+    private int queryCacheSize = BatchQueryCache.DEFAULT_MAX_QUERIES;
+
+    private boolean closed = false;
+
+    /**
+     * Create a new DocumentBatchPool
+     * @param similarity the {@link Similarity} to be used for scoring batches from this pool
+     * @param maxIdle the maximum number of idle batches of each type to keep for reuse
+     */
+    public DocumentBatchPool(Similarity similarity, int maxIdle) {
+        if (maxIdle < 1)
+            throw new IllegalArgumentException("maxIdle must be greater than 0");
+        this.similarity = similarity;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Create a new DocumentBatchPool
+     * @param similarity the {@link Similarity} to be used for scoring batches from this pool
+     */
+    public DocumentBatchPool(Similarity similarity) {
+        this(similarity, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Create a new DocumentBatchPool using a {@link BM25Similarity}
+     */
+    public DocumentBatchPool() {
+        this(new BM25Similarity());
+    }
+
+    /**
+     * Analyze the documents in multi-document batches concurrently, using the supplied {@link ExecutorService}
+     * @see DocumentBatch.Builder#setAnalysisExecutor(ExecutorService)
+     */
+    public DocumentBatchPool setAnalysisExecutor(ExecutorService executor) {
+        this.analysisExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of sub-queries that will be cached while matching batches from this pool
+     * @see DocumentBatch.Builder#setQueryCacheSize(int)
+     */
+    public DocumentBatchPool setQueryCacheSize(int queryCacheSize) {
+        if (queryCacheSize < 0)
+            throw new IllegalArgumentException("queryCacheSize cannot be negative");
+        this.queryCacheSize = queryCacheSize;
+        return this;
+    }
+
+    /**
+     * Get a DocumentBatch containing a set of InputDocuments
+     * @param docs the documents
+     * @return a DocumentBatch, which will be returned to the pool when it is closed
+     * @throws IOException on error
+     */
+    public DocumentBatch acquire(InputDocument... docs) throws IOException {
+        return acquire(IndexFeatures.ALL, Arrays.asList(docs));
+    }
+
+    /**
+     * Get a DocumentBatch containing a set of InputDocuments
+     * @param docs the documents
+     * @return a DocumentBatch, which will be returned to the pool when it is closed
+     * @throws IOException on error
+     */
+    public DocumentBatch acquire(Collection<InputDocument> docs) throws IOException {
+        return acquire(IndexFeatures.ALL, docs);
+    }
+
+    /**
+     * Get a DocumentBatch containing a set of InputDocuments
+     * @param features the index structures to build for the batch
+     * @param docs the documents
+     * @return a DocumentBatch, which will be returned to the pool when it is closed
+     * @throws IOException on error
+     */
+    public DocumentBatch acquire(IndexFeatures features, InputDocument... docs) throws IOException {
+        return acquire(features, Arrays.asList(docs));
+    }
+
+    /**
+     * Get a DocumentBatch containing a set of InputDocuments
+     * @param features the index structures to build for the batch
+     * @param docs the documents
+     * @return a DocumentBatch, which will be returned to the pool when it is closed
+     * @throws IOException on error
+     */
+    public DocumentBatch acquire(IndexFeatures features, Collection<InputDocument> docs) throws IOException {
+        if (closed)
+            throw new IllegalStateException("DocumentBatchPool has been closed");
+        if (docs.size() == 0)
+            throw new IllegalStateException("Cannot build DocumentBatch with zero documents");
+
+        DocumentBatch.ReusableDocumentBatch batch;
+        if (docs.size() == 1) {
+            batch = poll(singletons, features);
+            if (batch == null)
+                batch = new DocumentBatch.SingletonDocumentBatch(similarity, features);
+        }
+        else {
+            batch = poll(multis, features);
+            if (batch == null)
+                batch = new DocumentBatch.MultiDocumentBatch(similarity, features);
+        }
+
+        boolean success = false;
+        try {
+            batch.setQueryCacheSize(queryCacheSize);
+            batch.acquire(this, docs, analysisExecutor);
+            success = true;
+            return batch;
+        }
+        finally {
+            if (!success)
+                batch.discard();
+        }
+    }
+
+    /**
+     * @return the number of idle batches currently held by the pool
+     */
+    public int getIdleCount() {
+        return singletons.size() + multis.size();
+    }
+
+    private static <T extends DocumentBatch.ReusableDocumentBatch> T poll(Deque<T> idle, IndexFeatures features) {
+        Iterator<T> it = idle.iterator();
+        while (it.hasNext()) {
+            T batch = it.next();
+            if (batch.getIndexFeatures().equals(features)) {
+                it.remove();
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    void release(DocumentBatch.ReusableDocumentBatch batch) throws IOException {
+        if (closed) {
+            batch.closeResources();
+            return;
+        }
+        if (batch instanceof DocumentBatch.SingletonDocumentBatch)
+            release(singletons, (DocumentBatch.SingletonDocumentBatch) batch);
+        else
+            release(multis, (DocumentBatch.MultiDocumentBatch) batch);
+    }
+
+    // most recently used batches are kept at the head of the queue, and the least
+    // recently used are evicted once the queue is full
+    private <T extends DocumentBatch.ReusableDocumentBatch> void release(Deque<T> idle, T batch) throws IOException {
+        idle.push(batch);
+        if (idle.size() > maxIdle)
+            idle.removeLast().closeResources();
+    }
+
+    /**
+     * Release all idle batches.  Batches that are still in use will release their
+     * resources when they are closed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            for (DocumentBatch.ReusableDocumentBatch batch : singletons) {
+                batch.closeResources();
+            }
+            for (DocumentBatch.ReusableDocumentBatch batch : multis) {
+                batch.closeResources();
+            }
+        }
+        finally {
+            singletons.clear();
+            multis.clear();
+        }
+    }
+
+}
@@ -19,6 +19,7 @@ package uk.co.flax.luwak;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Records matches from a match run for a specific {@link InputDocument} within a {@link DocumentBatch}
@@ -30,6 +31,9 @@ public class DocumentMatches<T extends QueryMatch> implements Iterable<T> {
 
     private final Collection<T> matches;
 
+    // may be null, in which case matches are found by scanning the collection
+    private final Map<String, T> matchesByQuery;
+
     /** Create a DocumentMatches object recording no matches for a given document */
     public static <T extends QueryMatch> DocumentMatches<T> noMatches(String docId) {
         return new DocumentMatches<>(docId, Collections.<T>emptyList());
@@ -43,6 +47,18 @@ public class DocumentMatches<T extends QueryMatch> implements Iterable<T> {
     public DocumentMatches(String docId, Collection<T> matches) {
         this.docId = docId;
         this.matches = matches;
+        this.matchesByQuery = null;
+    }
+
+    /**
+     * Create a DocumentMatches object for a specific document
+     * @param docId the document id
+     * @param matches a map of QueryMatch objects, keyed by query id
+     */
+    public DocumentMatches(String docId, Map<String, T> matches) {
+        this.docId = docId;
+        this.matches = matches.values();
+        this.matchesByQuery = matches;
     }
 
     @Override
@@ -59,4 +75,19 @@ public class DocumentMatches<T extends QueryMatch> implements Iterable<T> {
     public Collection<T> getMatches() {
         return matches;
     }
+
+    /**
+     * Return the match for a particular query
+     * @param queryId the query id
+     * @return the match, or null if the query did not match this document
+     */
+    public T getMatch(String queryId) {
+        if (matchesByQuery != null)
+            return matchesByQuery.get(queryId);
+        for (T match : matches) {
+            if (match.getQueryId().equals(queryId))
+                return match;
+        }
+        return null;
+    }
 }
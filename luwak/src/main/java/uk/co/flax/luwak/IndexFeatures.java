@@ -0,0 +1,134 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.Objects;
+
+import org.apache.lucene.index.IndexOptions;
+
+/**
+ * Describes the index structures that a {@link DocumentBatch} should build
+ *
+ * Recording offsets, norms and payloads all add to the time taken to build a batch,
+ * and to its memory footprint.  A {@link MatcherFactory} that does not need them can
+ * declare this by implementing {@link RequiresIndexFeatures}, and the Monitor will
+ * then build its batches with only the structures that the matcher uses.
+ */
+public final class IndexFeatures {
+
+    /** Index everything: positions, offsets, norms and payloads */
+    public static final IndexFeatures ALL
+            = new IndexFeatures(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS, true, true);
+
+    /** Index everything required to score documents, but not offsets */
+    public static final IndexFeatures SCORING
+            = new IndexFeatures(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS, true, true);
+
+    /** Index everything required to match positional queries, but not offsets or norms */
+    public static final IndexFeatures POSITIONS
+            = new IndexFeatures(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS, false, true);
+
+    /** Index only terms, for query sets that contain no positional queries */
+    public static final IndexFeatures DOCS
+            = new IndexFeatures(IndexOptions.DOCS, false, false);
+
+    private final IndexOptions indexOptions;
+    private final boolean norms;
+    private final boolean payloads;
+
+    /**
+     * Create a new IndexFeatures object
+     * @param indexOptions the maximum {@link IndexOptions} for indexed fields
+     * @param norms whether or not norms are required
+     * @param payloads whether or not payloads are required
+     */
+    public IndexFeatures(IndexOptions indexOptions, boolean norms, boolean payloads) {
+        if (indexOptions == IndexOptions.NONE)
+            throw new IllegalArgumentException("IndexOptions cannot be NONE");
+        this.indexOptions = indexOptions;
+        this.norms = norms;
+        this.payloads = payloads;
+    }
+
+    /**
+     * @return the maximum {@link IndexOptions} for indexed fields
+     */
+    public IndexOptions getIndexOptions() {
+        return indexOptions;
+    }
+
+    /**
+     * @return true if offsets are indexed
+     */
+    public boolean hasOffsets() {
+        return indexOptions == IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS;
+    }
+
+    /**
+     * @return true if norms are indexed
+     */
+    public boolean hasNorms() {
+        return norms;
+    }
+
+    /**
+     * @return true if payloads are indexed
+     */
+    public boolean hasPayloads() {
+        return payloads;
+    }
+
+    /**
+     * Check that this set of features includes everything in another set
+     * @param required the required features
+     * @return true if all the required features are included
+     */
+    public boolean covers(IndexFeatures required) {
+        return indexOptions.compareTo(required.indexOptions) >= 0
+                && (norms || !required.norms)
+                && (payloads || !required.payloads);
+    }
+
+    /**
+     * Get the features required by a MatcherFactory
+     * @param factory the MatcherFactory
+     * @return the features declared by the factory, or {@link #ALL} if it does not declare any
+     */
+    public static IndexFeatures required(MatcherFactory<?> factory) {
+        if (factory instanceof RequiresIndexFeatures)
+            return ((RequiresIndexFeatures) factory).getRequiredIndexFeatures();
+        return ALL;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        IndexFeatures that = (IndexFeatures) o;
+        return norms == that.norms && payloads == that.payloads && indexOptions == that.indexOptions;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(indexOptions, norms, payloads);
+    }
+
+    @Override
+    public String toString() {
+        return "IndexFeatures{" + indexOptions + ", norms=" + norms + ", payloads=" + payloads + "}";
+    }
+}
@@ -0,0 +1,374 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import uk.co.flax.luwak.util.TokenAutomaton;
+
+/**
+ * Matches single-term and exact phrase queries against a batch of documents without
+ * going through the presearcher.
+ *
+ * The queries are compiled into a {@link TokenAutomaton} for each field, which is run
+ * over the analyzed tokens of each document in a single pass.  Term queries can be
+ * matched in any batch; phrase queries need a batch that has indexed positions.
+ *
+ * Changes to the index are not visible to {@link #getSnapshot()} until they are
+ * published, which the {@link QueryIndex} does when it refreshes its searcher, so that
+ * a match run sees the same set of queries in both indexes.
+ */
+class KeywordIndex {
+
+    static final class Keyword {
+        final String queryId;
+        final QueryCacheEntry entry;
+        final Term[] terms;
+
+        Keyword(String queryId, QueryCacheEntry entry, Term[] terms) {
+            this.queryId = queryId;
+            this.entry = entry;
+            this.terms = terms;
+        }
+
+        boolean isPhrase() {
+            return terms.length > 1;
+        }
+    }
+
+    interface KeywordCollector {
+
+        /**
+         * Called for each keyword query that matches documents in the batch
+         * @param id the query id
+         * @param query the query
+         * @param docs the matching documents, or null if the batch has not indexed the
+         *             positions needed to match the query, in which case it must be run
+         */
+        void matchKeyword(String id, QueryCacheEntry query, FixedBitSet docs) throws IOException;
+
+    }
+
+    // the current keywords, including changes that haven't been published yet
+    private final Map<String, List<Keyword>> keywords = new HashMap<>();
+    private boolean changed = false;
+
+    private volatile Snapshot published = new Snapshot(Collections.<String, FieldAutomaton>emptyMap());
+
+    /**
+     * Get the terms of a query that can be matched by a KeywordIndex
+     *
+     * Keyword queries are single {@link TermQuery}s, or {@link PhraseQuery}s with no slop
+     * and no gaps between their terms, possibly wrapped in a {@link BoostQuery} or a
+     * {@link ConstantScoreQuery}.
+     *
+     * @param query the query
+     * @return the terms of the query, in order, or null if the query is not a keyword query
+     */
+    static Term[] getKeywordTerms(Query query) {
+        if (query instanceof BoostQuery)
+            return getKeywordTerms(((BoostQuery) query).getQuery());
+        if (query instanceof ConstantScoreQuery)
+            return getKeywordTerms(((ConstantScoreQuery) query).getQuery());
+        if (query instanceof TermQuery)
+            return new Term[]{ ((TermQuery) query).getTerm() };
+        if (query instanceof PhraseQuery) {
+            PhraseQuery pq = (PhraseQuery) query;
+            Term[] terms = pq.getTerms();
+            int[] positions = pq.getPositions();
+            if (pq.getSlop() != 0 || terms.length == 0)
+                return null;
+            for (int i = 1; i < positions.length; i++) {
+                if (positions[i] != positions[0] + i)
+                    return null;
+            }
+            return terms;
+        }
+        return null;
+    }
+
+    /**
+     * Replace the keyword queries for a query id
+     * @param id the query id
+     * @param entries the decomposed queries for the id.  Entries that are not keyword
+     *                queries are ignored.
+     */
+    synchronized void update(String id, Iterable<QueryCacheEntry> entries) {
+        List<Keyword> kws = new ArrayList<>();
+        for (QueryCacheEntry entry : entries) {
+            if (entry.keyword)
+                kws.add(new Keyword(id, entry, getKeywordTerms(entry.matchQuery)));
+        }
+        List<Keyword> previous = kws.isEmpty() ? keywords.remove(id) : keywords.put(id, kws);
+        if (kws.isEmpty() == false || previous != null)
+            changed = true;
+    }
+
+    /**
+     * Remove the keyword queries for a query id
+     * @param id the query id
+     */
+    synchronized void delete(String id) {
+        if (keywords.remove(id) != null)
+            changed = true;
+    }
+
+    /**
+     * Remove all keyword queries
+     */
+    synchronized void clear() {
+        keywords.clear();
+        changed = true;
+    }
+
+    /**
+     * @return the number of keyword queries in the index
+     */
+    synchronized int size() {
+        int size = 0;
+        for (List<Keyword> kws : keywords.values()) {
+            size += kws.size();
+        }
+        return size;
+    }
+
+    /**
+     * Make all changes since the last call visible to {@link #getSnapshot()}
+     */
+    synchronized void publish() {
+        if (changed == false)
+            return;
+        Map<String, List<Keyword>> byField = new HashMap<>();
+        for (List<Keyword> kws : keywords.values()) {
+            for (Keyword kw : kws) {
+                String field = kw.terms[0].field();
+                if (byField.containsKey(field) == false)
+                    byField.put(field, new ArrayList<Keyword>());
+                byField.get(field).add(kw);
+            }
+        }
+        Map<String, FieldAutomaton> built = new HashMap<>();
+        for (Map.Entry<String, List<Keyword>> entry : byField.entrySet()) {
+            built.put(entry.getKey(), new FieldAutomaton(entry.getValue()));
+        }
+        published = new Snapshot(built);
+        changed = false;
+    }
+
+    /**
+     * @return the keyword queries as of the last call to {@link #publish()}
+     */
+    Snapshot getSnapshot() {
+        return published;
+    }
+
+    /**
+     * An immutable view of the keyword queries
+     */
+    static final class Snapshot {
+
+        private final Map<String, FieldAutomaton> automata;
+
+        private Snapshot(Map<String, FieldAutomaton> automata) {
+            this.automata = automata;
+        }
+
+        /**
+         * Find the keyword queries that match documents in a batch
+         * @param reader a reader over the batch
+         * @param collector a collector to report each matching query to
+         * @throws IOException on IO errors
+         */
+        void match(LeafReader reader, KeywordCollector collector) throws IOException {
+            for (Map.Entry<String, FieldAutomaton> entry : automata.entrySet()) {
+                entry.getValue().match(entry.getKey(), reader, collector);
+            }
+        }
+    }
+
+    private static final class FieldAutomaton {
+
+        final Map<BytesRef, Integer> tokenIds = new HashMap<>();
+        final Keyword[] keywords;
+        final TokenAutomaton automaton;
+        final boolean hasPhrases;
+
+        FieldAutomaton(List<Keyword> keywords) {
+            this.keywords = keywords.toArray(new Keyword[keywords.size()]);
+            List<int[]> patterns = new ArrayList<>(keywords.size());
+            boolean phrases = false;
+            for (Keyword kw : keywords) {
+                int[] pattern = new int[kw.terms.length];
+                for (int i = 0; i < pattern.length; i++) {
+                    BytesRef token = kw.terms[i].bytes();
+                    Integer id = tokenIds.get(token);
+                    if (id == null) {
+                        id = tokenIds.size();
+                        tokenIds.put(BytesRef.deepCopyOf(token), id);
+                    }
+                    pattern[i] = id;
+                }
+                patterns.add(pattern);
+                phrases |= kw.isPhrase();
+            }
+            this.automaton = new TokenAutomaton(patterns);
+            this.hasPhrases = phrases;
+        }
+
+        void match(String field, LeafReader reader, KeywordCollector collector) throws IOException {
+
+            FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+            Terms terms = reader.terms(field);
+            boolean positions = info != null
+                    && info.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0;
+
+            Map<Integer, FixedBitSet> matches = new HashMap<>();
+            if (terms != null) {
+                if (hasPhrases && positions)
+                    matchTokenStreams(terms, reader.maxDoc(), matches);
+                else
+                    matchTerms(terms, reader.maxDoc(), matches);
+            }
+
+            for (Map.Entry<Integer, FixedBitSet> match : matches.entrySet()) {
+                Keyword kw = keywords[match.getKey()];
+                collector.matchKeyword(kw.queryId, kw.entry, match.getValue());
+            }
+            if (hasPhrases && positions == false && terms != null) {
+                for (Keyword kw : keywords) {
+                    if (kw.isPhrase())
+                        collector.matchKeyword(kw.queryId, kw.entry, null);
+                }
+            }
+        }
+
+        // Single-term keywords only need the documents for each term
+        private void matchTerms(Terms terms, int maxDoc, Map<Integer, FixedBitSet> matches) throws IOException {
+            TermsEnum te = terms.iterator();
+            PostingsEnum postings = null;
+            for (BytesRef term = te.next(); term != null; term = te.next()) {
+                Integer id = tokenIds.get(term);
+                if (id == null)
+                    continue;
+                FixedBitSet docs = null;
+                for (int keyword : automaton.getMatches(automaton.step(TokenAutomaton.ROOT, id))) {
+                    if (keywords[keyword].isPhrase())
+                        continue;
+                    if (docs == null) {
+                        postings = te.postings(postings, PostingsEnum.NONE);
+                        docs = new FixedBitSet(maxDoc);
+                        docs.or(postings);
+                    }
+                    matches.put(keyword, docs);
+                }
+            }
+        }
+
+        // Rebuild the token stream of each document from the postings of the field's
+        // keyword tokens, and run it through the automaton
+        private void matchTokenStreams(Terms terms, int maxDoc, Map<Integer, FixedBitSet> matches) throws IOException {
+
+            // each token is encoded as its position in the high bits, and its id in the low bits
+            long[][] streams = new long[maxDoc][];
+            int[] lengths = new int[maxDoc];
+
+            TermsEnum te = terms.iterator();
+            PostingsEnum postings = null;
+            for (BytesRef term = te.next(); term != null; term = te.next()) {
+                Integer id = tokenIds.get(term);
+                if (id == null)
+                    continue;
+                postings = te.postings(postings, PostingsEnum.POSITIONS);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    int freq = postings.freq();
+                    if (streams[doc] == null)
+                        streams[doc] = new long[Math.max(freq, 8)];
+                    else if (lengths[doc] + freq > streams[doc].length)
+                        streams[doc] = Arrays.copyOf(streams[doc], Math.max(lengths[doc] + freq, streams[doc].length * 2));
+                    for (int i = 0; i < freq; i++) {
+                        streams[doc][lengths[doc]++] = ((long) postings.nextPosition() << 32) | id;
+                    }
+                }
+            }
+
+            int[] states = new int[8];
+            int[] next = new int[8];
+            for (int doc = 0; doc < maxDoc; doc++) {
+                if (streams[doc] == null)
+                    continue;
+                long[] stream = streams[doc];
+                Arrays.sort(stream, 0, lengths[doc]);
+
+                // several tokens may share a position, so track every state that any path through
+                // the stream could have reached.  The root is always included, as a token that is
+                // not in the automaton may share the position.
+                states[0] = TokenAutomaton.ROOT;
+                int stateCount = 1;
+                int i = 0;
+                long lastPosition = -1;
+                while (i < lengths[doc]) {
+                    long position = stream[i] >>> 32;
+                    if (position != lastPosition + 1)
+                        stateCount = 1;     // a gap in the stream; only the root is reachable
+                    int nextCount = 1;
+                    next[0] = TokenAutomaton.ROOT;
+                    for (; i < lengths[doc] && (stream[i] >>> 32) == position; i++) {
+                        int token = (int) stream[i];
+                        for (int s = 0; s < stateCount; s++) {
+                            int state = automaton.step(states[s], token);
+                            if (contains(next, nextCount, state))
+                                continue;
+                            if (nextCount == next.length) {
+                                next = Arrays.copyOf(next, nextCount * 2);
+                                states = Arrays.copyOf(states, nextCount * 2);
+                            }
+                            next[nextCount++] = state;
+                            for (int keyword : automaton.getMatches(state)) {
+                                FixedBitSet docs = matches.get(keyword);
+                                if (docs == null) {
+                                    docs = new FixedBitSet(maxDoc);
+                                    matches.put(keyword, docs);
+                                }
+                                docs.set(doc);
+                            }
+                        }
+                    }
+                    int[] tmp = states;
+                    states = next;
+                    next = tmp;
+                    stateCount = nextCount;
+                    lastPosition = position;
+                }
+            }
+        }
+
+        private static boolean contains(int[] states, int count, int state) {
+            for (int i = 0; i < count; i++) {
+                if (states[i] == state)
+                    return true;
+            }
+            return false;
+        }
+
+    }
+
+}
@@ -0,0 +1,102 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A thread-safe store of matches, shared by several CandidateMatchers running over
+ * the same DocumentBatch
+ *
+ * Matchers that have been given an accumulator with
+ * {@link CandidateMatcher#setAccumulator(MatchAccumulator)} write their matches directly
+ * into it, resolving conflicting matches for the same query and document with their
+ * {@link CandidateMatcher#resolve(QueryMatch, QueryMatch)} method.  A parent matcher can
+ * then take over the accumulator as its own store of matches with
+ * {@link CandidateMatcher#takeMatches(MatchAccumulator)}, so that its results are built
+ * from the accumulated per-document maps without merging them again.  Matchers whose
+ * {@link CandidateMatcher#supportsAccumulator()} method returns false cannot use an
+ * accumulator.
+ *
+ * @param <T> the type of QueryMatch stored
+ */
+public class MatchAccumulator<T extends QueryMatch> {
+
+    // matches keyed by query id, indexed by the document's position in the batch
+    private final AtomicReferenceArray<ConcurrentMap<String, T>> matches;
+
+    /**
+     * Create a new MatchAccumulator
+     * @param docs the batch that matches will be accumulated for
+     */
+    public MatchAccumulator(DocumentBatch docs) {
+        this.matches = new AtomicReferenceArray<>(docs.getBatchSize());
+    }
+
+    /**
+     * @return the number of documents in the batch
+     */
+    int size() {
+        return matches.length();
+    }
+
+    /**
+     * Add a match, resolving it against any existing match for the same query and document
+     * @param ordinal the position of the matching document in the batch
+     * @param match the match
+     * @param resolver the matcher to resolve conflicting matches with
+     */
+    void add(int ordinal, T match, CandidateMatcher<T> resolver) {
+        ConcurrentMap<String, T> docMatches = matches.get(ordinal);
+        if (docMatches == null) {
+            docMatches = new ConcurrentHashMap<>();
+            if (matches.compareAndSet(ordinal, null, docMatches) == false)
+                docMatches = matches.get(ordinal);
+        }
+        String queryId = match.getQueryId();
+        T previous = docMatches.putIfAbsent(queryId, match);
+        while (previous != null) {
+            T resolved = resolver.resolve(match, previous);
+            if (resolved == previous || docMatches.replace(queryId, previous, resolved))
+                return;
+            // another thread has changed the match in the meantime, so resolve against that
+            previous = docMatches.get(queryId);
+        }
+    }
+
+    /**
+     * @param ordinal the position of a document in the batch
+     * @param queryId the query id
+     * @return the match for the query and document, or null if there is none
+     */
+    T get(int ordinal, String queryId) {
+        Map<String, T> docMatches = matches.get(ordinal);
+        return docMatches == null ? null : docMatches.get(queryId);
+    }
+
+    /**
+     * @param ordinal the position of a document in the batch
+     * @return the matches for the document, keyed by query id, or null if there are none
+     */
+    Map<String, T> getMatches(int ordinal) {
+        return matches.get(ordinal);
+    }
+
+}
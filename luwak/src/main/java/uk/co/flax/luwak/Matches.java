@@ -63,13 +63,7 @@ public class Matches<T extends QueryMatch> implements Iterable<DocumentMatches<T
         DocumentMatches<T> docMatches = matches.get(docId);
         if (docMatches == null)
             return null;
-
-        for (T match : docMatches) {
-            if (match.getQueryId().equals(queryId))
-                return match;
-        }
-
-        return null;
+        return docMatches.getMatch(queryId);
     }
 
     /**
@@ -17,6 +17,8 @@ import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.CloseableThreadLocal;
+import org.apache.lucene.util.FixedBitSet;
 import uk.co.flax.luwak.presearcher.PresearcherMatches;
 import uk.co.flax.luwak.util.ForceNoBulkScoringQuery;
 
@@ -48,10 +50,15 @@ public class Monitor implements Closeable {
 
     private final QueryIndex queryIndex;
 
+    // null if the keyword index is not in use
+    private final KeywordIndex keywordIndex;
+
     private final List<QueryIndexUpdateListener> listeners = new ArrayList<>();
 
     protected long slowLogLimit = 2000000;
 
+    protected volatile boolean candidateRouting = true;
+
     private final long commitBatchSize;
     private final boolean storeQueries;
 
@@ -66,6 +73,14 @@ public class Monitor implements Closeable {
 
     private long lastPurged = -1;
 
+    // Reusable batches for matching single InputDocuments, one pool per calling thread
+    private final CloseableThreadLocal<DocumentBatchPool> batchPools = new CloseableThreadLocal<DocumentBatchPool>() {
+        @Override
+        protected DocumentBatchPool initialValue() {
+            return new DocumentBatchPool();
+        }
+    };
+
     /**
      * Create a new Monitor instance, using a passed in IndexWriter for its queryindex
      *
@@ -85,7 +100,10 @@ public class Monitor implements Closeable {
         this.presearcher = presearcher;
         this.decomposer = configuration.getQueryDecomposer();
         
-        this.queryIndex = new QueryIndex(indexWriter);
+        // keyword queries bypass the presearcher, so can't be used if it filters its selections
+        this.keywordIndex = configuration.useKeywordIndex() && presearcher.supportsKeywordIndex()
+                ? new KeywordIndex() : null;
+        this.queryIndex = new QueryIndex(indexWriter, keywordIndex);
 
         this.storeQueries = configuration.storeQueries();
         prepareQueryCache(this.storeQueries);
@@ -246,9 +264,12 @@ public class Monitor implements Closeable {
                         seenHashes.add(hash);
 
                         try {
-                            for (QueryCacheEntry ce : decomposeQuery(mq)) {
+                            Iterable<QueryCacheEntry> entries = decomposeQuery(mq);
+                            for (QueryCacheEntry ce : entries) {
                                 newCache.put(ce.hash, ce);
                             }
+                            if (keywordIndex != null)
+                                keywordIndex.update(id, entries);
                         } catch (Exception e) {
                             parseErrors.add(e);
                         }
@@ -262,6 +283,7 @@ public class Monitor implements Closeable {
 
     private void commit(List<Indexable> updates) throws IOException {
         beforeCommit(updates);
+        // the queryindex also updates the keyword index
         queryIndex.commit(updates);
         afterCommit(updates);
     }
@@ -343,9 +365,26 @@ public class Monitor implements Closeable {
         this.slowLogLimit = limit;
     }
 
+    /**
+     * Set whether or not candidate queries are routed to individual documents
+     *
+     * If routing is enabled, and the Monitor's {@link Presearcher} supports it, then each
+     * candidate query selected for a multi-document {@link DocumentBatch} is only run against
+     * the documents in the batch that supplied the terms that selected it.  The default is
+     * {@code true}.
+     *
+     * @param routing true if candidate queries should be routed
+     *
+     * @see Presearcher#buildRouting(LeafReader, QueryTermFilter)
+     */
+    public void setCandidateRouting(boolean routing) {
+        this.candidateRouting = routing;
+    }
+
     @Override
     public void close() throws IOException {
         purgeExecutor.shutdown();
+        batchPools.close();
         queryIndex.closeWhileHandlingException();
     }
 
@@ -390,7 +429,9 @@ public class Monitor implements Closeable {
             BytesRefBuilder subHash = new BytesRefBuilder();
             subHash.append(rootHash);
             subHash.append(new BytesRef("_" + upto++));
-            cacheEntries.add(new QueryCacheEntry(subHash.toBytesRef(), subquery, query.getMetadata()));
+            boolean keyword = keywordIndex != null && KeywordIndex.getKeywordTerms(subquery) != null;
+            cacheEntries.add(new QueryCacheEntry(subHash.toBytesRef(), subquery, query.getMetadata(),
+                    keyword == false && presearcher.isExact(subquery), keyword));
         }
 
         return cacheEntries;
@@ -414,6 +455,8 @@ public class Monitor implements Closeable {
     public void delete(Iterable<MonitorQuery> queries) throws IOException {
         for (MonitorQuery mq : queries) {
             queryIndex.deleteDocuments(new Term(Monitor.FIELDS.del, mq.getId()));
+            if (keywordIndex != null)
+                keywordIndex.delete(mq.getId());
         }
         commit(null);
     }
@@ -426,6 +469,8 @@ public class Monitor implements Closeable {
     public void deleteById(Iterable<String> queryIds) throws IOException {
         for (String queryId : queryIds) {
             queryIndex.deleteDocuments(new Term(FIELDS.del, queryId));
+            if (keywordIndex != null)
+                keywordIndex.delete(queryId);
         }
         commit(null);
     }
@@ -445,6 +490,8 @@ public class Monitor implements Closeable {
      */
     public void clear() throws IOException {
         queryIndex.deleteDocuments(new MatchAllDocsQuery());
+        if (keywordIndex != null)
+            keywordIndex.clear();
         commit(null);
     }
 
@@ -456,8 +503,10 @@ public class Monitor implements Closeable {
      * @param <T> the type of {@link QueryMatch} to return
      * @return a {@link Matches} object summarizing the match run.
      * @throws IOException on IO errors
+     * @throws IllegalArgumentException if the batch was not built with the {@link IndexFeatures} required by the factory
      */
     public <T extends QueryMatch> Matches<T> match(DocumentBatch docs, MatcherFactory<T> factory) throws IOException {
+        checkIndexFeatures(docs, factory);
         CandidateMatcher<T> matcher = factory.createMatcher(docs);
         matcher.setSlowLogLimit(slowLogLimit);
         match(matcher);
@@ -467,6 +516,10 @@ public class Monitor implements Closeable {
     /**
      * Match a single {@link InputDocument} against the queryindex, calling a {@link CandidateMatcher} produced by the
      * supplied {@link MatcherFactory} for each possible matching query.
+     *
+     * The document is indexed using a reusable {@link DocumentBatch} held by the calling thread, which is
+     * released once the match run has finished.  Only the {@link IndexFeatures} required by the factory
+     * are built.
      * @param doc the InputDocument to match
      * @param factory a {@link MatcherFactory} to use to create a {@link CandidateMatcher} for the match run
      * @param <T> the type of {@link QueryMatch} to return
@@ -474,26 +527,46 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public <T extends QueryMatch> Matches<T> match(InputDocument doc, MatcherFactory<T> factory) throws IOException {
-        return match(DocumentBatch.of(doc), factory);
+        try (DocumentBatch batch = batchPools.get().acquire(IndexFeatures.required(factory), doc)) {
+            return match(batch, factory);
+        }
+    }
+
+    private static void checkIndexFeatures(DocumentBatch docs, MatcherFactory<?> factory) {
+        IndexFeatures required = IndexFeatures.required(factory);
+        if (docs.getIndexFeatures().covers(required) == false)
+            throw new IllegalArgumentException("DocumentBatch was built with " + docs.getIndexFeatures()
+                    + ", but the matcher requires " + required);
     }
 
     private class PresearcherQueryBuilder implements QueryIndex.QueryBuilder {
 
         final LeafReader batchIndexReader;
+        final boolean routing;
 
         private PresearcherQueryBuilder(LeafReader batchIndexReader) {
             this.batchIndexReader = batchIndexReader;
+            // no point routing if there's only a single document in the batch
+            this.routing = candidateRouting && batchIndexReader.maxDoc() > 1;
         }
 
         @Override
         public Query buildQuery(QueryTermFilter termFilter) throws IOException {
             return presearcher.buildQuery(batchIndexReader, termFilter);
         }
+
+        @Override
+        public CandidateRouting buildRouting(QueryTermFilter termFilter) throws IOException {
+            if (routing == false)
+                return null;
+            return presearcher.buildRouting(batchIndexReader, termFilter);
+        }
     }
 
     private <T extends QueryMatch> void match(CandidateMatcher<T> matcher) throws IOException {
         StandardQueryCollector<T> collector = new StandardQueryCollector<>(matcher);
-        long buildTime = queryIndex.search(new PresearcherQueryBuilder(matcher.getIndexReader()), collector);
+        long buildTime = queryIndex.search(new PresearcherQueryBuilder(matcher.getIndexReader()), collector,
+                false, matcher.getIndexReader());
         matcher.finish(buildTime, collector.queryCount);
     }
 
@@ -556,7 +629,8 @@ public class Monitor implements Closeable {
      * @return a Document that will be indexed in the Monitor's queryindex
      */
     protected Document buildIndexableQuery(String id, MonitorQuery mq, QueryCacheEntry query) {
-        Document doc = presearcher.indexQuery(query.matchQuery, mq.getMetadata());
+        // keyword queries are not selected by the presearcher
+        Document doc = query.keyword ? new Document() : presearcher.indexQuery(query.matchQuery, mq.getMetadata());
         doc.add(new StringField(FIELDS.id, id, Field.Store.NO));
         doc.add(new StringField(FIELDS.del, id, Field.Store.NO));
         doc.add(new SortedDocValuesField(FIELDS.id, new BytesRef(id)));
@@ -566,8 +640,9 @@ public class Monitor implements Closeable {
         return doc;
     }
 
-    // For each query selected by the presearcher, pass on to a CandidateMatcher
-    private static class StandardQueryCollector<T extends QueryMatch> implements QueryIndex.QueryCollector {
+    // For each query selected by the presearcher or the keyword index, pass on to a CandidateMatcher
+    private static class StandardQueryCollector<T extends QueryMatch>
+            implements QueryIndex.QueryCollector, KeywordIndex.KeywordCollector {
 
         final CandidateMatcher<T> matcher;
         int queryCount = 0;
@@ -578,11 +653,28 @@ public class Monitor implements Closeable {
 
         @Override
         public void matchQuery(String id, QueryCacheEntry query, QueryIndex.DataValues dataValues) throws IOException {
-            if (query == null)
+            if (query == null || query.keyword)
                 return;
             try {
                 queryCount++;
-                matcher.matchQuery(id, query.matchQuery, query.metadata);
+                if (query.exact)
+                    matcher.matchExactQuery(id, query, dataValues.candidateDocs());
+                else
+                    matcher.matchQuery(id, query, dataValues.candidateDocs());
+            }
+            catch (Exception e) {
+                matcher.reportError(new MatchError(id, e));
+            }
+        }
+
+        @Override
+        public void matchKeyword(String id, QueryCacheEntry query, FixedBitSet docs) throws IOException {
+            try {
+                queryCount++;
+                if (docs == null)
+                    matcher.matchQuery(id, query, null);
+                else
+                    matcher.matchKnownQuery(id, query, docs);
             }
             catch (Exception e) {
                 matcher.reportError(new MatchError(id, e));
@@ -598,9 +690,11 @@ public class Monitor implements Closeable {
      * @param <T> the type of QueryMatch produced by the CandidateMatcher
      * @return a {@link PresearcherMatches} object containing debug information
      * @throws IOException on IO errors
+     * @throws IllegalArgumentException if the batch was not built with the {@link IndexFeatures} required by the factory
      */
     public <T extends QueryMatch> PresearcherMatches<T> debug(final DocumentBatch docs, MatcherFactory<T> factory)
             throws IOException {
+        checkIndexFeatures(docs, factory);
         PresearcherQueryCollector<T> collector = new PresearcherQueryCollector<>(factory.createMatcher(docs));
         QueryIndex.QueryBuilder queryBuilder = new PresearcherQueryBuilder(docs.getIndexReader()){
             @Override
@@ -608,7 +702,8 @@ public class Monitor implements Closeable {
                 return new ForceNoBulkScoringQuery(SpanRewriter.INSTANCE.rewrite(super.buildQuery(termFilter)));
             }
         };
-        queryIndex.search(queryBuilder, collector);
+        // the presearcher scorer is needed to report the terms that selected each query
+        queryIndex.search(queryBuilder, collector, true, docs.getIndexReader());
         return collector.getMatches();
     }
 
@@ -622,7 +717,9 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public <T extends QueryMatch> PresearcherMatches<T> debug(InputDocument doc, MatcherFactory<T> factory) throws IOException {
-        return debug(DocumentBatch.of(doc), factory);
+        try (DocumentBatch batch = batchPools.get().acquire(IndexFeatures.required(factory), doc)) {
+            return debug(batch, factory);
+        }
     }
 
     private class PresearcherQueryCollector<T extends QueryMatch> extends StandardQueryCollector<T> {
@@ -0,0 +1,132 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.IndexableFieldType;
+import uk.co.flax.luwak.analysis.BufferedTokenStream;
+
+/**
+ * Analyzes the documents of a batch concurrently, one task per document, producing lucene
+ * Documents whose tokenized fields replay the buffered analysis output.
+ *
+ * Results are returned in the same order as their InputDocuments, so the docids assigned
+ * when the batch is indexed are the same as if the documents had been analyzed serially.
+ */
+class ParallelDocumentAnalyzer {
+
+    private ParallelDocumentAnalyzer() {}
+
+    /**
+     * Analyze a collection of documents
+     * @param docs the documents to analyze
+     * @param executor the executor on which to run analysis
+     * @return a list of analyzed lucene Documents, in the same order as the input
+     * @throws IOException on analysis errors, or if interrupted
+     */
+    static List<Document> analyze(Collection<InputDocument> docs, ExecutorService executor) throws IOException {
+
+        List<Future<Document>> futures = new ArrayList<>(docs.size());
+        for (final InputDocument doc : docs) {
+            futures.add(executor.submit(new Callable<Document>() {
+                @Override
+                public Document call() throws Exception {
+                    return analyze(doc);
+                }
+            }));
+        }
+
+        List<Document> analyzed = new ArrayList<>(docs.size());
+        try {
+            for (Future<Document> future : futures) {
+                analyzed.add(future.get());
+            }
+        }
+        catch (InterruptedException e) {
+            cancel(futures);
+            throw new IOException("Interrupted during document analysis", e);
+        }
+        catch (ExecutionException e) {
+            cancel(futures);
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+        return analyzed;
+    }
+
+    private static void cancel(List<Future<Document>> futures) {
+        for (Future<Document> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Analyze a single document on the current thread
+     * @param doc the document to analyze
+     * @return a lucene Document whose tokenized fields replay their buffered analysis output
+     * @throws IOException on analysis errors
+     */
+    static Document analyze(InputDocument doc) throws IOException {
+        if (doc instanceof AnalyzedInputDocument)
+            return doc.getDocument();   // already analyzed
+        Document analyzed = new Document();
+        for (IndexableField field : doc.getDocument()) {
+            IndexableFieldType type = field.fieldType();
+            if (type.indexOptions() == IndexOptions.NONE || type.tokenized() == false) {
+                analyzed.add(field);
+                continue;
+            }
+            TokenStream ts = field.tokenStream(doc.getAnalyzers(), null);
+            analyzed.add(new BufferedField(field, BufferedTokenStream.buffer(ts)));
+        }
+        return analyzed;
+    }
+
+    // An IndexableField that returns pre-analyzed tokens, delegating everything else to
+    // the original field
+    private static class BufferedField extends DelegatingIndexableField {
+
+        private final BufferedTokenStream tokens;
+
+        private BufferedField(IndexableField field, BufferedTokenStream tokens) {
+            super(field);
+            this.tokens = tokens;
+        }
+
+        @Override
+        public TokenStream tokenStream(Analyzer analyzer, TokenStream reuse) {
+            return tokens;
+        }
+    }
+
+}
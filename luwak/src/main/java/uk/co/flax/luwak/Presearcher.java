@@ -1,5 +1,6 @@
 package uk.co.flax.luwak;
 
+import java.io.IOException;
 import java.util.Map;
 
 import org.apache.lucene.document.Document;
@@ -44,6 +45,26 @@ public abstract class Presearcher {
      */
     public abstract Query buildQuery(LeafReader reader, QueryTermFilter queryTermFilter);
 
+    /**
+     * Record which documents in a {@link DocumentBatch} supplied the terms used by
+     * {@link #buildQuery(LeafReader, QueryTermFilter)} to select candidate queries.
+     *
+     * Every document that a candidate query could match must have supplied at least one
+     * of the routing terms that the candidate is indexed with, or the candidate must not
+     * be indexed with any of the routing terms.
+     *
+     * By default, returns null, and candidate queries are run against every document in
+     * the batch.
+     *
+     * @param reader a {@link LeafReader} over the input {@link DocumentBatch} index
+     * @param queryTermFilter a {@link QueryTermFilter} for the queryindex
+     * @return a {@link CandidateRouting}, or null if candidates cannot be routed
+     * @throws IOException on IO errors
+     */
+    public CandidateRouting buildRouting(LeafReader reader, QueryTermFilter queryTermFilter) throws IOException {
+        return null;
+    }
+
     /**
      * Build a lucene Document to index the query in a Monitor's queryindex
      * @param query the Query to index
@@ -52,4 +73,37 @@ public abstract class Presearcher {
      */
     public abstract Document indexQuery(Query query, Map<String, String> metadata);
 
+    /**
+     * Whether or not selection of a query by this presearcher is proof that it matches
+     *
+     * If this returns true, then any document that causes the presearcher to select the
+     * query must match it, and the query is a pure disjunction of terms as defined by
+     * {@link uk.co.flax.luwak.util.TermDisjunctions}.  Matchers may then report matches
+     * for the query without running it against the documents.
+     *
+     * By default, returns false.
+     *
+     * @param query the query, as passed to {@link #indexQuery(Query, Map)}
+     * @return true if the query's indexed terms fully represent it
+     */
+    public boolean isExact(Query query) {
+        return false;
+    }
+
+    /**
+     * Whether or not queries can be matched by the Monitor's keyword index instead of by
+     * this presearcher
+     *
+     * Keyword queries bypass the presearcher entirely, so this should only return true if
+     * the presearcher never excludes a query that a document in the batch matches, for
+     * example by filtering on query metadata.  By default, returns false, and the keyword
+     * index is not used.
+     *
+     * @return true if the keyword index can be used with this presearcher
+     * @see QueryIndexConfiguration#useKeywordIndex(boolean)
+     */
+    public boolean supportsKeywordIndex() {
+        return false;
+    }
+
 }
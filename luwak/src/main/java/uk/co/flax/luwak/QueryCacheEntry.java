@@ -19,6 +19,7 @@ import java.util.Map;
 
 import org.apache.lucene.search.Query;
 import org.apache.lucene.util.BytesRef;
+import uk.co.flax.luwak.util.SpanRewriter;
 
 /**
  * An entry in the query cache
@@ -34,9 +35,85 @@ public class QueryCacheEntry {
     /** The metadata from the entry's parent {@link MonitorQuery} */
     public final Map<String,String> metadata;
 
-    public QueryCacheEntry(BytesRef hash, Query matchQuery, Map<String, String> metadata) {
+    /**
+     * Whether or not the presearcher's selection of this entry is proof that it matches
+     *
+     * @see Presearcher#isExact(Query)
+     */
+    public final boolean exact;
+
+    /**
+     * Whether or not this entry is matched by the Monitor's keyword index, rather than
+     * being selected by the presearcher
+     *
+     * @see QueryIndexConfiguration#useKeywordIndex(boolean)
+     */
+    public final boolean keyword;
+
+    // the span-rewritten form of matchQuery, from the last rewriter that asked for it
+    private volatile SpanRewrite spanRewrite;
+
+    public QueryCacheEntry(BytesRef hash, Query matchQuery, Map<String, String> metadata, boolean exact, boolean keyword) {
         this.hash = hash;
         this.matchQuery = matchQuery;
         this.metadata = metadata;
+        this.exact = exact;
+        this.keyword = keyword;
+    }
+
+    public QueryCacheEntry(BytesRef hash, Query matchQuery, Map<String, String> metadata, boolean exact) {
+        this(hash, matchQuery, metadata, exact, false);
+    }
+
+    public QueryCacheEntry(BytesRef hash, Query matchQuery, Map<String, String> metadata) {
+        this(hash, matchQuery, metadata, false);
+    }
+
+    /**
+     * Get the span-rewritten form of matchQuery, used for highlighting
+     *
+     * The query is rewritten the first time it is asked for, and the rewrite is then
+     * reused until a different rewriter is passed in.  Entries are replaced when their
+     * query is updated, so the rewrite never outlives the query it was built from.
+     *
+     * @param rewriter the SpanRewriter to use
+     * @return the rewritten query
+     * @throws IllegalArgumentException if the query can't be rewritten
+     */
+    public Query getSpanQuery(SpanRewriter rewriter) {
+        SpanRewrite rewrite = spanRewrite;
+        if (rewrite == null || rewrite.rewriter != rewriter) {
+            rewrite = new SpanRewrite(rewriter, matchQuery);
+            spanRewrite = rewrite;
+        }
+        return rewrite.get();
+    }
+
+    private static final class SpanRewrite {
+
+        final SpanRewriter rewriter;
+        final Query spanQuery;
+        // if the query can't be rewritten, the reason why
+        final String failure;
+
+        SpanRewrite(SpanRewriter rewriter, Query matchQuery) {
+            this.rewriter = rewriter;
+            Query spanQuery = null;
+            String failure = null;
+            try {
+                spanQuery = rewriter.rewrite(matchQuery);
+            }
+            catch (IllegalArgumentException e) {
+                failure = e.getMessage();
+            }
+            this.spanQuery = spanQuery;
+            this.failure = failure;
+        }
+
+        Query get() {
+            if (spanQuery == null)
+                throw new IllegalArgumentException(failure);
+            return spanQuery;
+        }
     }
 }
@@ -11,6 +11,7 @@ import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.IOUtils;
 
 class QueryIndex {
@@ -25,18 +26,31 @@ class QueryIndex {
     private final ReadWriteLock purgeLock = new ReentrantReadWriteLock();
     private final Object commitLock = new Object();
 
+    /* Used to swap in a refreshed searcher and keyword index together */
+    private final ReadWriteLock refreshLock = new ReentrantReadWriteLock();
+
     /* The current query cache */
     private volatile ConcurrentMap<BytesRef, QueryCacheEntry> queries = new ConcurrentHashMap<>();
     // NB this is not final because it can be replaced by purgeCache()
 
     // package-private for testing
     final Map<IndexReader, QueryTermFilter> termFilters = new HashMap<>();
-    
-    QueryIndex(IndexWriter indexWriter) throws IOException {
+
+    private final QueryIdCache queryIds = new QueryIdCache();
+
+    /* Published together with each searcher refresh, or null if keyword queries aren't used */
+    private final KeywordIndex keywordIndex;
+
+    QueryIndex(IndexWriter indexWriter, KeywordIndex keywordIndex) throws IOException {
         this.writer = indexWriter;
         this.manager = new SearcherManager(writer, true, true, new TermsHashBuilder());
+        this.keywordIndex = keywordIndex;
     }
-    
+
+    QueryIndex(IndexWriter indexWriter) throws IOException {
+        this(indexWriter, null);
+    }
+
     QueryIndex() throws IOException {
         this(Monitor.defaultIndexWriter(new RAMDirectory()));
     }
@@ -74,17 +88,45 @@ class QueryIndex {
                         if (purgeCache != null)
                             purgeCache.put(update.queryCacheEntry.hash, update.queryCacheEntry);
                     }
+                    if (keywordIndex != null)
+                        updateKeywordIndex(updates);
                 }
                 writer.commit();
-                manager.maybeRefresh();
+                refresh();
             } finally {
                 purgeLock.readLock().unlock();
             }
         }
     }
 
+    // searches must not see the refreshed queryindex with the old keyword queries, or
+    // the other way round, so both are swapped in together
+    private void refresh() throws IOException {
+        refreshLock.writeLock().lock();
+        try {
+            manager.maybeRefresh();
+            if (keywordIndex != null)
+                keywordIndex.publish();
+        } finally {
+            refreshLock.writeLock().unlock();
+        }
+    }
+
+    private void updateKeywordIndex(List<Indexable> updates) {
+        Map<String, List<QueryCacheEntry>> entries = new HashMap<>();
+        for (Indexable update : updates) {
+            if (entries.containsKey(update.id) == false)
+                entries.put(update.id, new ArrayList<QueryCacheEntry>());
+            entries.get(update.id).add(update.queryCacheEntry);
+        }
+        for (Map.Entry<String, List<QueryCacheEntry>> entry : entries.entrySet()) {
+            keywordIndex.update(entry.getKey(), entry.getValue());
+        }
+    }
+
     interface QueryBuilder {
         Query buildQuery(QueryTermFilter termFilter) throws IOException;
+        CandidateRouting buildRouting(QueryTermFilter termFilter) throws IOException;
     }
 
     long scan(QueryCollector matcher) throws IOException {
@@ -97,29 +139,78 @@ class QueryIndex {
             public Query buildQuery(QueryTermFilter termFilter) throws IOException {
                 return query;
             }
+
+            @Override
+            public CandidateRouting buildRouting(QueryTermFilter termFilter) throws IOException {
+                return null;
+            }
         };
         return search(builder, matcher);
     }
 
     long search(QueryBuilder queryBuilder, QueryCollector matcher) throws IOException {
+        return search(queryBuilder, matcher, false);
+    }
+
+    /**
+     * Run a presearcher query over the queryindex
+     * @param queryBuilder builds the presearcher query
+     * @param matcher a collector for the selected queries
+     * @param needsScores true if the collector uses the presearcher {@link Scorer} in
+     *                    {@link DataValues#scorer}.  If false, the scorer is not set.
+     * @return the time taken to build the presearcher query, in nanoseconds
+     * @throws IOException on IO errors
+     */
+    long search(QueryBuilder queryBuilder, QueryCollector matcher, boolean needsScores) throws IOException {
+        return search(queryBuilder, matcher, needsScores, null);
+    }
+
+    /**
+     * Run a presearcher query over the queryindex, and match the keyword queries against a batch
+     *
+     * The keyword queries are taken from the same commit as the queryindex searcher, so each
+     * query is selected from exactly one of the two indexes.
+     *
+     * @param queryBuilder builds the presearcher query
+     * @param matcher a collector for the selected queries, which must also be a
+     *                {@link KeywordIndex.KeywordCollector} if batchReader is not null
+     * @param needsScores true if the collector uses the presearcher {@link Scorer}
+     * @param batchReader a reader over the batch to match keyword queries against, or null
+     * @return the time taken to build the presearcher query, in nanoseconds
+     * @throws IOException on IO errors
+     */
+    long search(QueryBuilder queryBuilder, QueryCollector matcher, boolean needsScores,
+                LeafReader batchReader) throws IOException {
         IndexSearcher searcher = null;
         try {
             Map<BytesRef, QueryCacheEntry> queries;
+            KeywordIndex.Snapshot keywords = null;
 
             purgeLock.readLock().lock();
             try {
-                searcher = manager.acquire();
                 queries = this.queries;
+                refreshLock.readLock().lock();
+                try {
+                    searcher = manager.acquire();
+                    if (keywordIndex != null && batchReader != null)
+                        keywords = keywordIndex.getSnapshot();
+                } finally {
+                    refreshLock.readLock().unlock();
+                }
             }
             finally {
                 purgeLock.readLock().unlock();
             }
 
-            MonitorQueryCollector collector = new MonitorQueryCollector(queries, matcher);
+            QueryTermFilter termFilter = termFilters.get(searcher.getIndexReader());
             long buildTime = System.nanoTime();
-            Query query = queryBuilder.buildQuery(termFilters.get(searcher.getIndexReader()));
+            Query query = queryBuilder.buildQuery(termFilter);
+            CandidateRouting routing = queryBuilder.buildRouting(termFilter);
             buildTime = System.nanoTime() - buildTime;
+            MonitorQueryCollector collector = new MonitorQueryCollector(queries, matcher, routing, needsScores, queryIds);
             searcher.search(query, collector);
+            if (keywords != null)
+                keywords.match(batchReader, (KeywordIndex.KeywordCollector) matcher);
             return buildTime;
         }
         finally {
@@ -176,6 +267,9 @@ class QueryIndex {
             newCache.putAll(purgeCache);
             purgeCache = null;
             queries = newCache;
+            // the populator may have rebuilt the keyword queries
+            if (keywordIndex != null)
+                keywordIndex.publish();
         }
         finally {
             purgeLock.writeLock().unlock();
@@ -227,6 +321,59 @@ class QueryIndex {
         public BinaryDocValues mq;
         public Scorer scorer;
         public int doc;
+        public FixedBitSet[] routes;
+
+        /**
+         * @return the documents in the batch that the current query should be run against,
+         *         or null if it should be run against all of them
+         */
+        public FixedBitSet candidateDocs() {
+            return routes == null ? null : routes[doc];
+        }
+    }
+
+    /**
+     * Decoded query ids for each segment of the queryindex, by ordinal, so that
+     * the id of a selected query is only converted to a String once per segment
+     */
+    static final class QueryIdCache {
+
+        private final ConcurrentMap<Object, String[]> segments = new ConcurrentHashMap<>();
+
+        String[] forSegment(LeafReader reader, SortedDocValues ids) {
+            Object key = reader.getCoreCacheKey();
+            String[] cache = segments.get(key);
+            if (cache != null)
+                return cache;
+            cache = new String[ids.getValueCount()];
+            String[] existing = segments.putIfAbsent(key, cache);
+            if (existing != null)
+                return existing;
+            reader.addCoreClosedListener(new LeafReader.CoreClosedListener() {
+                @Override
+                public void onClose(Object ownerCoreCacheKey) throws IOException {
+                    segments.remove(ownerCoreCacheKey);
+                }
+            });
+            return cache;
+        }
+
+        // package-private for testing
+        int size() {
+            return segments.size();
+        }
+
+        static String get(String[] cache, SortedDocValues ids, int doc) {
+            int ord = ids.getOrd(doc);
+            String id = cache[ord];
+            if (id == null) {
+                // racing threads may both decode the id, but will store equal values
+                id = ids.lookupOrd(ord).utf8ToString();
+                cache[ord] = id;
+            }
+            return id;
+        }
+
     }
 
     /**
@@ -236,37 +383,47 @@ class QueryIndex {
 
         private final Map<BytesRef, QueryCacheEntry> queries;
         private final QueryCollector matcher;
+        private final CandidateRouting routing;
+        private final boolean needsScores;
+        private final QueryIdCache queryIds;
         private final DataValues dataValues = new DataValues();
+        private String[] segmentIds;
 
-        public MonitorQueryCollector(Map<BytesRef, QueryCacheEntry> queries, QueryCollector matcher) {
+        public MonitorQueryCollector(Map<BytesRef, QueryCacheEntry> queries, QueryCollector matcher,
+                                     CandidateRouting routing, boolean needsScores, QueryIdCache queryIds) {
             this.queries = queries;
             this.matcher = matcher;
+            this.routing = routing;
+            this.needsScores = needsScores;
+            this.queryIds = queryIds;
         }
 
         @Override
         public void setScorer(Scorer scorer) throws IOException {
-            this.dataValues.scorer = scorer;
+            if (needsScores)
+                this.dataValues.scorer = scorer;
         }
 
         @Override
         public void collect(int doc) throws IOException {
             BytesRef hash = dataValues.hash.get(doc);
-            BytesRef id = dataValues.id.get(doc);
             QueryCacheEntry query = queries.get(hash);
             dataValues.doc = doc;
-            matcher.matchQuery(id.utf8ToString(), query, dataValues);
+            matcher.matchQuery(QueryIdCache.get(segmentIds, dataValues.id, doc), query, dataValues);
         }
 
         @Override
         public void doSetNextReader(LeafReaderContext context) throws IOException {
             this.dataValues.hash = context.reader().getBinaryDocValues(Monitor.FIELDS.hash);
             this.dataValues.id = context.reader().getSortedDocValues(Monitor.FIELDS.id);
+            this.segmentIds = queryIds.forSegment(context.reader(), dataValues.id);
             this.dataValues.mq = context.reader().getBinaryDocValues(Monitor.FIELDS.mq);
+            this.dataValues.routes = routing == null ? null : routing.route(context.reader());
         }
 
         @Override
         public boolean needsScores() {
-            return true;
+            return needsScores;
         }
 
     }
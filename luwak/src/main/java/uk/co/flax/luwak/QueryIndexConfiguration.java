@@ -28,6 +28,7 @@ public class QueryIndexConfiguration {
     private TimeUnit purgeFrequencyUnits = TimeUnit.MINUTES;
     private QueryDecomposer queryDecomposer = new QueryDecomposer();
     private boolean storeQueries = true;
+    private boolean useKeywordIndex = false;
 
     /**
      * Set the QueryDecomposer to be used by the Monitor
@@ -102,4 +103,28 @@ public class QueryIndexConfiguration {
         return storeQueries;
     }
 
+    /**
+     * Set whether or not the Monitor should match simple queries with a keyword index
+     *
+     * If {@code true}, then queries (after decomposition) that are single terms or exact
+     * phrases are not indexed for the presearcher.  Instead, they are compiled into an
+     * automaton that is run over the tokens of each document in a batch, and only the
+     * remaining queries are selected by the presearcher.  This is faster for query sets
+     * made up largely of keywords and short phrases.  The default is {@code false}.
+     *
+     * The keyword index is only used if the Monitor's presearcher allows it, see
+     * {@link Presearcher#supportsKeywordIndex()}.
+     */
+    public QueryIndexConfiguration useKeywordIndex(boolean useKeywordIndex) {
+        this.useKeywordIndex = useKeywordIndex;
+        return this;
+    }
+
+    /**
+     * @return whether or not the Monitor matches simple queries with a keyword index
+     */
+    public boolean useKeywordIndex() {
+        return useKeywordIndex;
+    }
+
 }
@@ -0,0 +1,50 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/**
+ * Implemented by {@link MatcherFactory} objects that can declare which index
+ * structures their {@link CandidateMatcher}s need.
+ *
+ * Factories that do not implement this interface are assumed to need {@link IndexFeatures#ALL}
+ */
+public interface RequiresIndexFeatures {
+
+    /**
+     * @return the index features required by matchers created by this factory
+     */
+    IndexFeatures getRequiredIndexFeatures();
+
+    /**
+     * Convenience base class for MatcherFactory implementations with a fixed set of required features
+     * @param <T> the type of QueryMatch produced
+     */
+    abstract class Factory<T extends QueryMatch> implements MatcherFactory<T>, RequiresIndexFeatures {
+
+        private final IndexFeatures features;
+
+        protected Factory(IndexFeatures features) {
+            this.features = features;
+        }
+
+        @Override
+        public IndexFeatures getRequiredIndexFeatures() {
+            return features;
+        }
+    }
+
+}
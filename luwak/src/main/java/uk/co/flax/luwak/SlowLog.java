@@ -89,6 +89,20 @@ public class SlowLog implements Iterable<SlowLog.Entry> {
             this.queryId = queryId;
             this.time = time;
         }
+
+        /**
+         * @return the query id
+         */
+        public String getQueryId() {
+            return queryId;
+        }
+
+        /**
+         * @return the time taken to execute the query in ns
+         */
+        public long getTime() {
+            return time;
+        }
     }
 
     @Override
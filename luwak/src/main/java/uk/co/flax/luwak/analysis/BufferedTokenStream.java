@@ -0,0 +1,93 @@
+package uk.co.flax.luwak.analysis;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.util.AttributeSource;
+
+/**
+ * A TokenStream that replays a buffered copy of the tokens emitted by another TokenStream
+ *
+ * Unlike {@link org.apache.lucene.analysis.CachingTokenFilter}, the source stream is consumed
+ * and closed as soon as the buffer is created, and the buffered tokens are held in a separate
+ * set of attributes.  This means that the source stream can be created and consumed on one
+ * thread, and the buffer replayed on another, while the first thread goes on to reuse its
+ * Analyzer's components.
+ *
+ * The buffer may be replayed any number of times by calling {@link #reset()}
+ */
+public final class BufferedTokenStream extends TokenStream {
+
+    private final List<State> states;
+    private final State finalState;
+
+    private int upto = 0;
+
+    private BufferedTokenStream(AttributeSource attributes, List<State> states, State finalState) {
+        super(attributes);
+        this.states = states;
+        this.finalState = finalState;
+    }
+
+    /**
+     * Consume a TokenStream into a buffer
+     * @param source the TokenStream to consume.  It will be closed by this method.
+     * @return a BufferedTokenStream that replays the tokens emitted by the source stream
+     * @throws IOException on error
+     */
+    public static BufferedTokenStream buffer(TokenStream source) throws IOException {
+        try (TokenStream ts = source) {
+            List<State> states = new ArrayList<>();
+            ts.reset();
+            while (ts.incrementToken()) {
+                states.add(ts.captureState());
+            }
+            ts.end();
+            State finalState = ts.captureState();
+            return new BufferedTokenStream(ts.cloneAttributes(), states, finalState);
+        }
+    }
+
+    /**
+     * @return the number of buffered tokens
+     */
+    public int size() {
+        return states.size();
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (upto >= states.size())
+            return false;
+        restoreState(states.get(upto++));
+        return true;
+    }
+
+    @Override
+    public void end() throws IOException {
+        restoreState(finalState);
+    }
+
+    @Override
+    public void reset() throws IOException {
+        upto = 0;
+    }
+}
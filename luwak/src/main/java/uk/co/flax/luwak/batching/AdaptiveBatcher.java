@@ -0,0 +1,276 @@
+package uk.co.flax.luwak.batching;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.flax.luwak.*;
+
+/**
+ * Matches streams of documents against a {@link Monitor}, adjusting the size of each
+ * batch to maximise throughput.
+ *
+ * Larger batches amortise the cost of building the batch index and of running each
+ * candidate query, but the union of terms in a large batch will select more candidate
+ * queries from the presearcher, and each batch takes longer to return.  The best size
+ * depends on the document mix, so the batcher measures the throughput of each batch and
+ * hill-climbs towards the size that gives the most documents per second, averaging over
+ * {@link #setSamplesPerStep(int)} batches before each decision.  If a batch takes longer
+ * than the configured latency ceiling, the batch size is immediately reduced.
+ *
+ * Typical usage:
+ * <pre>
+ *     try (AdaptiveBatcher batcher = new AdaptiveBatcher(100, TimeUnit.MILLISECONDS)) {
+ *         while (docs.hasNext()) {
+ *             Matches&lt;QueryMatch&gt; matches = batcher.match(monitor, batcher.nextBatch(docs), SimpleMatcher.FACTORY);
+ *             ...
+ *         }
+ *     }
+ * </pre>
+ *
+ * This class is not thread-safe.
+ */
+public class AdaptiveBatcher implements Closeable {
+
+    /** The default initial batch size */
+    public static final int DEFAULT_INITIAL_BATCH_SIZE = 16;
+
+    /** The default maximum batch size */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+
+    /** The default number of batches to measure before changing the batch size */
+    public static final int DEFAULT_SAMPLES_PER_STEP = 4;
+
+    /** The default number of batch statistics to keep */
+    public static final int DEFAULT_HISTORY_SIZE = 256;
+
+    private static final double INITIAL_STEP = 2.0;
+    private static final double MIN_STEP = 1.1;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long latencyCeiling;
+
+    private final DocumentBatchPool pool = new DocumentBatchPool();
+    private final Deque<BatchStatistics> history = new ArrayDeque<>();
+
+    private int samplesPerStep = DEFAULT_SAMPLES_PER_STEP;
+    private int historySize = DEFAULT_HISTORY_SIZE;
+
+    private int batchSize;
+    private int direction = 1;
+    private double step = INITIAL_STEP;
+    private double previousThroughput = Double.NaN;
+
+    private int stepSamples = 0;
+    private long stepDocs = 0;
+    private long stepTime = 0;
+
+    /**
+     * Create a new AdaptiveBatcher
+     * @param initialBatchSize the batch size to start from
+     * @param minBatchSize the minimum batch size
+     * @param maxBatchSize the maximum batch size
+     * @param latencyCeiling the maximum time a single batch should take to build and match,
+     *                       or 0 for no limit
+     * @param unit the unit of the latency ceiling
+     */
+    public AdaptiveBatcher(int initialBatchSize, int minBatchSize, int maxBatchSize, long latencyCeiling, TimeUnit unit) {
+        if (minBatchSize < 1 || maxBatchSize < minBatchSize)
+            throw new IllegalArgumentException("Invalid batch size bounds [" + minBatchSize + ", " + maxBatchSize + "]");
+        if (initialBatchSize < minBatchSize || initialBatchSize > maxBatchSize)
+            throw new IllegalArgumentException("Initial batch size " + initialBatchSize + " is outside bounds ["
+                    + minBatchSize + ", " + maxBatchSize + "]");
+        if (latencyCeiling < 0)
+            throw new IllegalArgumentException("Latency ceiling cannot be negative");
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.latencyCeiling = unit.toNanos(latencyCeiling);
+        this.batchSize = initialBatchSize;
+    }
+
+    /**
+     * Create a new AdaptiveBatcher with default batch size bounds
+     * @param latencyCeiling the maximum time a single batch should take to build and match,
+     *                       or 0 for no limit
+     * @param unit the unit of the latency ceiling
+     */
+    public AdaptiveBatcher(long latencyCeiling, TimeUnit unit) {
+        this(DEFAULT_INITIAL_BATCH_SIZE, 1, DEFAULT_MAX_BATCH_SIZE, latencyCeiling, unit);
+    }
+
+    /**
+     * Set the number of batches to measure before each change in batch size
+     * @param samplesPerStep the number of batches
+     * @return this object
+     */
+    public AdaptiveBatcher setSamplesPerStep(int samplesPerStep) {
+        if (samplesPerStep < 1)
+            throw new IllegalArgumentException("samplesPerStep must be at least 1");
+        this.samplesPerStep = samplesPerStep;
+        return this;
+    }
+
+    /**
+     * Set the number of batch statistics to keep in the history
+     * @param historySize the number of statistics
+     * @return this object
+     */
+    public AdaptiveBatcher setHistorySize(int historySize) {
+        if (historySize < 0)
+            throw new IllegalArgumentException("historySize cannot be negative");
+        this.historySize = historySize;
+        while (history.size() > historySize)
+            history.removeFirst();
+        return this;
+    }
+
+    /**
+     * @return the number of documents that should be included in the next batch
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return the statistics of the most recent batches, oldest first
+     */
+    public List<BatchStatistics> getHistory() {
+        return new ArrayList<>(history);
+    }
+
+    /**
+     * @return the throughput, in documents per second, measured over the last completed step,
+     *         or NaN if no step has completed yet
+     */
+    public double getThroughput() {
+        return previousThroughput;
+    }
+
+    /**
+     * Take the next batch of documents from an iterator
+     * @param docs the iterator
+     * @return a list of at most {@link #getBatchSize()} documents
+     */
+    public List<InputDocument> nextBatch(Iterator<InputDocument> docs) {
+        List<InputDocument> batch = new ArrayList<>(batchSize);
+        while (batch.size() < batchSize && docs.hasNext()) {
+            batch.add(docs.next());
+        }
+        return batch;
+    }
+
+    /**
+     * Match a batch of documents, recording its statistics
+     * @param monitor the Monitor to match against
+     * @param docs the documents to match
+     * @param factory a MatcherFactory to use to create matchers
+     * @param <T> the type of QueryMatch returned
+     * @return the matches for the batch
+     * @throws IOException on IO errors
+     */
+    public <T extends QueryMatch> Matches<T> match(Monitor monitor, List<InputDocument> docs,
+                                                   MatcherFactory<T> factory) throws IOException {
+        long start = System.nanoTime();
+        try (DocumentBatch batch = pool.acquire(IndexFeatures.required(factory), docs)) {
+            long built = System.nanoTime();
+            Matches<T> matches = monitor.match(batch, factory);
+            record(BatchStatistics.fromMatches(matches, built - start, System.nanoTime() - built));
+            return matches;
+        }
+    }
+
+    /**
+     * Record the statistics of a batch, and adjust the batch size
+     *
+     * This is called by {@link #match(Monitor, List, MatcherFactory)}, but may also be
+     * called directly by clients that build and match their own batches.
+     *
+     * @param stats the statistics of the batch
+     */
+    public void record(BatchStatistics stats) {
+
+        if (historySize > 0) {
+            if (history.size() >= historySize)
+                history.removeFirst();
+            history.addLast(stats);
+        }
+
+        if (latencyCeiling > 0 && stats.getTotalTime() > latencyCeiling) {
+            // too slow - shrink in proportion to the overrun, and start measuring afresh
+            int target = (int) (stats.getBatchSize() * ((double) latencyCeiling / stats.getTotalTime()));
+            batchSize = clamp(Math.min(target, batchSize - 1));
+            direction = -1;
+            previousThroughput = Double.NaN;
+            resetStep();
+            return;
+        }
+
+        stepSamples++;
+        stepDocs += stats.getBatchSize();
+        stepTime += stats.getTotalTime();
+        if (stepSamples < samplesPerStep)
+            return;
+
+        double throughput = stepDocs * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(1, stepTime);
+        long averageLatency = stepTime / stepSamples;
+        resetStep();
+
+        if (!Double.isNaN(previousThroughput) && throughput < previousThroughput) {
+            // we've passed a peak, so turn around and take smaller steps
+            direction = -direction;
+            step = Math.max(MIN_STEP, Math.sqrt(step));
+        }
+        previousThroughput = throughput;
+
+        int next = direction > 0 ? (int) Math.ceil(batchSize * step) : (int) Math.floor(batchSize / step);
+        if (direction > 0 && latencyCeiling > 0 && averageLatency * ((double) next / batchSize) > latencyCeiling) {
+            // growing would take us over the latency ceiling
+            next = batchSize;
+        }
+        next = clamp(next);
+        if (next == batchSize) {
+            // can't move any further in this direction
+            direction = -direction;
+            previousThroughput = Double.NaN;
+        }
+        batchSize = next;
+    }
+
+    private int clamp(int size) {
+        return Math.max(minBatchSize, Math.min(maxBatchSize, size));
+    }
+
+    private void resetStep() {
+        stepSamples = 0;
+        stepDocs = 0;
+        stepTime = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pool.close();
+    }
+
+}
@@ -0,0 +1,116 @@
+package uk.co.flax.luwak.batching;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import uk.co.flax.luwak.Matches;
+
+/**
+ * Timings and candidate counts recorded for a single batch of documents
+ */
+public class BatchStatistics {
+
+    private final int batchSize;
+    private final long buildTime;
+    private final long presearcherTime;
+    private final long matchTime;
+    private final int candidates;
+
+    /**
+     * Create a new BatchStatistics object
+     * @param batchSize the number of documents in the batch
+     * @param buildTime the time taken to build the DocumentBatch, in nanoseconds
+     * @param presearcherTime the time taken to build the presearcher query, in nanoseconds
+     * @param matchTime the total time taken to match the batch, in nanoseconds
+     * @param candidates the number of candidate queries selected by the presearcher
+     */
+    public BatchStatistics(int batchSize, long buildTime, long presearcherTime, long matchTime, int candidates) {
+        this.batchSize = batchSize;
+        this.buildTime = buildTime;
+        this.presearcherTime = presearcherTime;
+        this.matchTime = matchTime;
+        this.candidates = candidates;
+    }
+
+    /**
+     * Create a new BatchStatistics object from the results of a match run
+     * @param matches the results
+     * @param buildTime the time taken to build the DocumentBatch, in nanoseconds
+     * @param matchTime the total time taken to match the batch, in nanoseconds
+     * @return the statistics for the batch
+     */
+    public static BatchStatistics fromMatches(Matches<?> matches, long buildTime, long matchTime) {
+        return new BatchStatistics(matches.getBatchSize(), buildTime, matches.getQueryBuildTime(),
+                                   matchTime, matches.getQueriesRun());
+    }
+
+    /**
+     * @return the number of documents in the batch
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return the time taken to build the DocumentBatch, in nanoseconds
+     */
+    public long getBuildTime() {
+        return buildTime;
+    }
+
+    /**
+     * @return the time taken to build the presearcher query, in nanoseconds
+     */
+    public long getPresearcherTime() {
+        return presearcherTime;
+    }
+
+    /**
+     * @return the total time taken to match the batch, in nanoseconds
+     */
+    public long getMatchTime() {
+        return matchTime;
+    }
+
+    /**
+     * @return the number of candidate queries selected by the presearcher
+     */
+    public int getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * @return the time taken to build and match the batch, in nanoseconds
+     */
+    public long getTotalTime() {
+        return buildTime + matchTime;
+    }
+
+    /**
+     * @return the number of documents processed per second
+     */
+    public double getThroughput() {
+        return batchSize * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(1, getTotalTime());
+    }
+
+    @Override
+    public String toString() {
+        return "BatchStatistics{size=" + batchSize + ", build=" + buildTime + "ns, presearcher="
+                + presearcherTime + "ns, match=" + matchTime + "ns, candidates=" + candidates + "}";
+    }
+}
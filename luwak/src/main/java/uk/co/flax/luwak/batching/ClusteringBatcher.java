@@ -0,0 +1,341 @@
+package uk.co.flax.luwak.batching;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.StringHelper;
+import uk.co.flax.luwak.AnalyzedInputDocument;
+import uk.co.flax.luwak.InputDocument;
+
+/**
+ * Groups a stream of documents into batches of documents with similar vocabularies.
+ *
+ * The presearcher selects candidate queries using the union of the terms of every
+ * document in a batch, so batching unrelated documents together causes the candidate
+ * set to grow, and many queries are run against documents that they cannot match.
+ * ClusteringBatcher holds incoming documents in a window, and computes a MinHash
+ * signature for each from its indexed field:term pairs; documents in different fields
+ * or languages therefore have dissimilar signatures.  When the window is full, the oldest
+ * pending document is emitted in a batch along with the pending documents whose signatures
+ * are most similar to it.
+ *
+ * Documents are never held for longer than the configured maximum delay, or for more than
+ * {@code windowSize} subsequent additions.  Call {@link #poll()} periodically to emit
+ * batches for documents that have reached their delay bound when no new documents are
+ * arriving, and {@link #flush()} at the end of a stream.
+ *
+ * Documents are analyzed once, when they are added, and are emitted as
+ * {@link AnalyzedInputDocument}s so that they are not re-analyzed when batched.
+ *
+ * This class is not thread-safe.
+ */
+public class ClusteringBatcher {
+
+    /** The default number of hash functions used to compute document signatures */
+    public static final int DEFAULT_SIGNATURE_SIZE = 64;
+
+    private final int batchSize;
+    private final int windowSize;
+    private final long maxDelay;
+    private final long[] seeds;
+
+    private final List<PendingDocument> pending = new ArrayList<>();
+
+    private long batches = 0;
+    private long documents = 0;
+    private long clusteredTerms = 0;
+    private long arrivalOrderTerms = 0;
+    private final Set<Integer> arrivalBatchTerms = new HashSet<>();
+    private int arrivalBatchDocs = 0;
+
+    /**
+     * Create a new ClusteringBatcher
+     * @param batchSize the maximum number of documents in a batch
+     * @param windowSize the number of documents to hold while forming clusters
+     * @param maxDelay the maximum time a document may be held, or 0 for no limit
+     * @param unit the unit of maxDelay
+     * @param signatureSize the number of hash functions used to compute document signatures
+     */
+    public ClusteringBatcher(int batchSize, int windowSize, long maxDelay, TimeUnit unit, int signatureSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        if (windowSize < batchSize)
+            throw new IllegalArgumentException("windowSize must be at least as large as batchSize");
+        if (maxDelay < 0)
+            throw new IllegalArgumentException("maxDelay cannot be negative");
+        if (signatureSize < 1)
+            throw new IllegalArgumentException("signatureSize must be at least 1");
+        this.batchSize = batchSize;
+        this.windowSize = windowSize;
+        this.maxDelay = unit.toNanos(maxDelay);
+        this.seeds = new long[signatureSize];
+        Random random = new Random(signatureSize);
+        for (int i = 0; i < signatureSize; i++) {
+            seeds[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Create a new ClusteringBatcher using the default signature size
+     * @param batchSize the maximum number of documents in a batch
+     * @param windowSize the number of documents to hold while forming clusters
+     * @param maxDelay the maximum time a document may be held, or 0 for no limit
+     * @param unit the unit of maxDelay
+     */
+    public ClusteringBatcher(int batchSize, int windowSize, long maxDelay, TimeUnit unit) {
+        this(batchSize, windowSize, maxDelay, unit, DEFAULT_SIGNATURE_SIZE);
+    }
+
+    /**
+     * Add a document to the window
+     * @param doc the document
+     * @return any batches that are ready to be matched
+     * @throws IOException on analysis errors
+     */
+    public List<List<InputDocument>> add(InputDocument doc) throws IOException {
+        PendingDocument pendingDoc = new PendingDocument(AnalyzedInputDocument.analyze(doc));
+        pending.add(pendingDoc);
+        recordArrival(pendingDoc);
+        List<List<InputDocument>> ready = new ArrayList<>();
+        while (pending.size() >= windowSize) {
+            ready.add(nextCluster());
+        }
+        ready.addAll(poll());
+        return ready;
+    }
+
+    /**
+     * Emit batches for any documents that have been held for longer than the maximum delay
+     * @return any batches that are ready to be matched
+     */
+    public List<List<InputDocument>> poll() {
+        List<List<InputDocument>> ready = new ArrayList<>();
+        if (maxDelay == 0)
+            return ready;
+        long now = System.nanoTime();
+        while (pending.size() > 0 && now - pending.get(0).arrival >= maxDelay) {
+            ready.add(nextCluster());
+        }
+        return ready;
+    }
+
+    /**
+     * Emit batches for all pending documents
+     * @return the remaining batches
+     */
+    public List<List<InputDocument>> flush() {
+        List<List<InputDocument>> ready = new ArrayList<>();
+        while (pending.size() > 0) {
+            ready.add(nextCluster());
+        }
+        if (arrivalBatchDocs > 0) {
+            arrivalOrderTerms += arrivalBatchTerms.size();
+            arrivalBatchTerms.clear();
+            arrivalBatchDocs = 0;
+        }
+        return ready;
+    }
+
+    /**
+     * @return the number of documents waiting to be batched
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of batches emitted
+     */
+    public long getBatchCount() {
+        return batches;
+    }
+
+    /**
+     * @return the number of documents emitted
+     */
+    public long getDocumentCount() {
+        return documents;
+    }
+
+    /**
+     * @return the sum of the sizes of the term unions of all emitted batches
+     */
+    public long getClusteredTermCount() {
+        return clusteredTerms;
+    }
+
+    /**
+     * @return the sum of the sizes of the term unions of the batches that would have been
+     *         emitted had documents been batched in arrival order
+     */
+    public long getArrivalOrderTermCount() {
+        return arrivalOrderTerms;
+    }
+
+    /**
+     * The proportion by which clustering has reduced the number of terms passed to the
+     * presearcher, compared to batching in arrival order.  As the presearcher selects
+     * candidate queries using these terms, this is an estimate of the reduction in the
+     * candidate set.
+     *
+     * Only batches that have been emitted in both orders are compared, so the figure is
+     * exact after a call to {@link #flush()}.
+     *
+     * @return the term reduction, between 0 and 1
+     */
+    public double getTermReduction() {
+        if (arrivalOrderTerms == 0)
+            return 0;
+        return 1 - ((double) clusteredTerms / arrivalOrderTerms);
+    }
+
+    private void recordArrival(PendingDocument doc) {
+        for (int term : doc.terms) {
+            arrivalBatchTerms.add(term);
+        }
+        arrivalBatchDocs++;
+        if (arrivalBatchDocs == batchSize) {
+            arrivalOrderTerms += arrivalBatchTerms.size();
+            arrivalBatchTerms.clear();
+            arrivalBatchDocs = 0;
+        }
+    }
+
+    // Removes the oldest pending document, along with its closest neighbours
+    private List<InputDocument> nextCluster() {
+
+        PendingDocument seed = pending.remove(0);
+        List<PendingDocument> cluster = new ArrayList<>(batchSize);
+        cluster.add(seed);
+
+        if (pending.size() < batchSize) {
+            cluster.addAll(pending);
+            pending.clear();
+        }
+        else {
+            // Arrays.sort is stable, so ties are broken by arrival order
+            Integer[] order = new Integer[pending.size()];
+            final double[] similarity = new double[pending.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+                similarity[i] = seed.similarity(pending.get(i));
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return Double.compare(similarity[o2], similarity[o1]);
+                }
+            });
+            boolean[] selected = new boolean[order.length];
+            for (int i = 0; i < batchSize - 1; i++) {
+                selected[order[i]] = true;
+            }
+            Iterator<PendingDocument> it = pending.iterator();
+            for (int i = 0; it.hasNext(); i++) {
+                PendingDocument doc = it.next();
+                if (selected[i]) {
+                    cluster.add(doc);
+                    it.remove();
+                }
+            }
+        }
+
+        Set<Integer> terms = new HashSet<>();
+        List<InputDocument> batch = new ArrayList<>(cluster.size());
+        for (PendingDocument doc : cluster) {
+            batch.add(doc.doc);
+            for (int term : doc.terms) {
+                terms.add(term);
+            }
+        }
+        batches++;
+        documents += batch.size();
+        clusteredTerms += terms.size();
+        return batch;
+    }
+
+    private class PendingDocument {
+
+        final InputDocument doc;
+        final long arrival = System.nanoTime();
+        final int[] terms;
+        final long[] signature;
+
+        PendingDocument(InputDocument doc) throws IOException {
+            this.doc = doc;
+            this.terms = hashTerms(doc);
+            this.signature = new long[seeds.length];
+            Arrays.fill(signature, Long.MAX_VALUE);
+            for (int term : terms) {
+                for (int i = 0; i < seeds.length; i++) {
+                    signature[i] = Math.min(signature[i], mix(term ^ seeds[i]));
+                }
+            }
+        }
+
+        // estimates the Jaccard similarity of the two documents' term sets
+        double similarity(PendingDocument other) {
+            int matches = 0;
+            for (int i = 0; i < signature.length; i++) {
+                if (signature[i] == other.signature[i])
+                    matches++;
+            }
+            return (double) matches / signature.length;
+        }
+    }
+
+    private static int[] hashTerms(InputDocument doc) throws IOException {
+        Set<Integer> terms = new HashSet<>();
+        for (IndexableField field : doc.getDocument()) {
+            if (field.fieldType().indexOptions() == IndexOptions.NONE || InputDocument.ID_FIELD.equals(field.name()))
+                continue;
+            int fieldHash = field.name().hashCode();
+            try (TokenStream ts = field.tokenStream(doc.getAnalyzers(), null)) {
+                TermToBytesRefAttribute termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
+                ts.reset();
+                while (ts.incrementToken()) {
+                    terms.add(StringHelper.murmurhash3_x86_32(termAtt.getBytesRef(), fieldHash));
+                }
+                ts.end();
+            }
+        }
+        int[] hashes = new int[terms.size()];
+        int i = 0;
+        for (int term : terms) {
+            hashes[i++] = term;
+        }
+        return hashes;
+    }
+
+    // the finalizer from MurmurHash3's 64-bit variant
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb3fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+}
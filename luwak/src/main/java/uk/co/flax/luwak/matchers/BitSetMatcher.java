@@ -0,0 +1,307 @@
+package uk.co.flax.luwak.matchers;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.queries.TermsQuery;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import uk.co.flax.luwak.*;
+
+/**
+ * A CandidateMatcher that evaluates boolean combinations of terms directly over
+ * bitsets, rather than by running a Lucene search for each candidate query.
+ *
+ * The first time a term is used by a query, the matcher reads its postings from the
+ * batch into a bitset, which is then shared by every query that uses that term.
+ * {@link TermQuery}s, {@link TermsQuery}s, {@link BooleanQuery}s and
+ * {@link DisjunctionMaxQuery}s are evaluated with word-level AND, OR and ANDNOT
+ * operations over these bitsets, and matches are read directly from the resulting
+ * bitset.  Any other query, such as a phrase, span or wildcard query, or a BooleanQuery
+ * with a minimum number of SHOULD clauses greater than one, is run through Lucene
+ * and its matches are collected into a bitset that can be combined with the others.
+ *
+ * This is most useful for batches of up to a few thousand documents, and for query sets
+ * made up largely of boolean term queries.  Matches are not scored.
+ */
+public class BitSetMatcher extends CandidateMatcher<QueryMatch> {
+
+    /** A factory for BitSetMatchers */
+    public static final MatcherFactory<QueryMatch> FACTORY = new RequiresIndexFeatures.Factory<QueryMatch>(IndexFeatures.POSITIONS) {
+        @Override
+        public BitSetMatcher createMatcher(DocumentBatch docs) {
+            return new BitSetMatcher(docs);
+        }
+    };
+
+    private final Map<Term, FixedBitSet> termBits = new HashMap<>();
+
+    private LeafReader reader = null;
+    private FixedBitSet allDocs = null;
+    private FixedBitSet noDocs = null;
+
+    /**
+     * Create a new BitSetMatcher for a DocumentBatch
+     * @param docs the batch to match
+     */
+    public BitSetMatcher(DocumentBatch docs) {
+        super(docs);
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+        doMatchQuery(queryId, matchQuery, metadata, null);
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                BitSet candidateDocs) throws IOException {
+
+        long t = System.nanoTime();
+
+        FixedBitSet matches = evaluate(matchQuery);
+        if (candidateDocs != null) {
+            FixedBitSet candidates;
+            if (candidateDocs instanceof FixedBitSet) {
+                candidates = (FixedBitSet) candidateDocs;
+            }
+            else {
+                candidates = new FixedBitSet(matches.length());
+                candidates.or(new BitSetIterator(candidateDocs, candidateDocs.approximateCardinality()));
+            }
+            matches = matches.clone();
+            matches.and(candidates);
+        }
+        for (int doc = matches.nextSetBit(0); doc != DocIdSetIterator.NO_MORE_DOCS;
+             doc = doc + 1 >= matches.length() ? DocIdSetIterator.NO_MORE_DOCS : matches.nextSetBit(doc + 1)) {
+            addMatch(new QueryMatch(queryId, docs.resolveDocId(doc)));
+        }
+
+        this.slowlog.addQuery(queryId, System.nanoTime() - t);
+    }
+
+    @Override
+    public QueryMatch resolve(QueryMatch match1, QueryMatch match2) {
+        return match1;
+    }
+
+    @Override
+    protected boolean needsAllDisjuncts() {
+        // resolve() keeps a single match, so one matching disjunct is enough
+        return false;
+    }
+
+    /**
+     * Find the documents in the batch that match a query
+     * @param query the query
+     * @return a bitset of matching documents.  The bitset may be shared, and must not be modified.
+     * @throws IOException on error
+     */
+    protected FixedBitSet evaluate(Query query) throws IOException {
+        if (query instanceof TermQuery)
+            return getTermBits(((TermQuery) query).getTerm());
+        if (query instanceof TermsQuery)
+            return evaluateTerms((TermsQuery) query);
+        if (query instanceof BooleanQuery)
+            return evaluateBoolean((BooleanQuery) query);
+        if (query instanceof DisjunctionMaxQuery)
+            return evaluateDisjunction(((DisjunctionMaxQuery) query).getDisjuncts());
+        if (query instanceof BoostQuery)
+            return evaluate(((BoostQuery) query).getQuery());
+        if (query instanceof ConstantScoreQuery)
+            return evaluate(((ConstantScoreQuery) query).getQuery());
+        if (query instanceof MatchAllDocsQuery)
+            return getAllDocs();
+        if (query instanceof MatchNoDocsQuery)
+            return getNoDocs();
+        return evaluateWithLucene(query);
+    }
+
+    private FixedBitSet evaluateBoolean(BooleanQuery query) throws IOException {
+
+        if (query.getMinimumNumberShouldMatch() > 1)
+            return evaluateWithLucene(query);
+
+        FixedBitSet required = null;
+        FixedBitSet optional = null;
+        boolean hasRequired = false;
+        boolean hasOptional = false;
+
+        for (BooleanClause clause : query.clauses()) {
+            if (clause.isRequired()) {
+                hasRequired = true;
+                if (required != null && required.scanIsEmpty())
+                    return getNoDocs();
+                FixedBitSet bits = evaluate(clause.getQuery());
+                if (required == null)
+                    required = bits.clone();
+                else
+                    required.and(bits);
+            }
+            else if (clause.getOccur() == BooleanClause.Occur.SHOULD) {
+                hasOptional = true;
+            }
+        }
+
+        if (query.getMinimumNumberShouldMatch() == 1 && hasOptional == false)
+            return getNoDocs();
+
+        // SHOULD clauses only affect matching if there are no required clauses, or if
+        // at least one of them must match
+        boolean shouldIsRequired = hasRequired == false || query.getMinimumNumberShouldMatch() == 1;
+        if (hasOptional && shouldIsRequired) {
+            for (BooleanClause clause : query.clauses()) {
+                if (clause.getOccur() != BooleanClause.Occur.SHOULD)
+                    continue;
+                FixedBitSet bits = evaluate(clause.getQuery());
+                if (optional == null)
+                    optional = bits.clone();
+                else
+                    optional.or(bits);
+            }
+        }
+
+        FixedBitSet result;
+        if (required != null && optional != null) {
+            required.and(optional);
+            result = required;
+        }
+        else if (required != null) {
+            result = required;
+        }
+        else if (optional != null) {
+            result = optional;
+        }
+        else {
+            // a purely negative query matches nothing
+            return getNoDocs();
+        }
+
+        for (BooleanClause clause : query.clauses()) {
+            if (clause.getOccur() != BooleanClause.Occur.MUST_NOT)
+                continue;
+            if (result.scanIsEmpty())
+                break;
+            result.andNot(evaluate(clause.getQuery()));
+        }
+
+        return result;
+    }
+
+    private FixedBitSet evaluateDisjunction(Iterable<Query> disjuncts) throws IOException {
+        FixedBitSet result = null;
+        for (Query disjunct : disjuncts) {
+            FixedBitSet bits = evaluate(disjunct);
+            if (result == null)
+                result = bits.clone();
+            else
+                result.or(bits);
+        }
+        return result == null ? getNoDocs() : result;
+    }
+
+    private FixedBitSet evaluateTerms(TermsQuery query) throws IOException {
+        FixedBitSet result = new FixedBitSet(getReader().maxDoc());
+        PrefixCodedTerms.TermIterator it = query.getTermData().iterator();
+        for (BytesRef term = it.next(); term != null; term = it.next()) {
+            result.or(getTermBits(new Term(it.field(), BytesRef.deepCopyOf(term))));
+        }
+        return result;
+    }
+
+    /**
+     * Run a query through Lucene, and collect its matches into a bitset
+     * @param query the query
+     * @return a bitset of matching documents
+     * @throws IOException on error
+     */
+    protected FixedBitSet evaluateWithLucene(Query query) throws IOException {
+        IndexSearcher searcher = docs.getSearcher();
+        FixedBitSet result = new FixedBitSet(getReader().maxDoc());
+        Weight weight = searcher.createNormalizedWeight(query, false);
+        for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+            Scorer scorer = weight.scorer(ctx);
+            if (scorer == null)
+                continue;
+            Bits liveDocs = ctx.reader().getLiveDocs();
+            DocIdSetIterator it = scorer.iterator();
+            for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+                if (liveDocs == null || liveDocs.get(doc))
+                    result.set(ctx.docBase + doc);
+            }
+        }
+        return result;
+    }
+
+    private FixedBitSet getTermBits(Term term) throws IOException {
+        FixedBitSet bits = termBits.get(term);
+        if (bits == null) {
+            LeafReader reader = getReader();
+            PostingsEnum postings = reader.postings(term, PostingsEnum.NONE);
+            if (postings == null) {
+                bits = getNoDocs();
+            }
+            else {
+                bits = new FixedBitSet(reader.maxDoc());
+                bits.or(postings);
+                if (reader.getLiveDocs() != null)
+                    andLive(bits, reader.getLiveDocs());
+            }
+            termBits.put(term, bits);
+        }
+        return bits;
+    }
+
+    private LeafReader getReader() throws IOException {
+        if (reader == null)
+            reader = docs.getIndexReader();
+        return reader;
+    }
+
+    private FixedBitSet getAllDocs() throws IOException {
+        if (allDocs == null) {
+            LeafReader reader = getReader();
+            allDocs = new FixedBitSet(reader.maxDoc());
+            allDocs.set(0, reader.maxDoc());
+            if (reader.getLiveDocs() != null)
+                andLive(allDocs, reader.getLiveDocs());
+        }
+        return allDocs;
+    }
+
+    private FixedBitSet getNoDocs() throws IOException {
+        if (noDocs == null)
+            noDocs = new FixedBitSet(getReader().maxDoc());
+        return noDocs;
+    }
+
+    private static void andLive(FixedBitSet bits, Bits liveDocs) {
+        for (int i = 0; i < bits.length(); i++) {
+            if (liveDocs.get(i) == false)
+                bits.clear(i);
+        }
+    }
+
+}
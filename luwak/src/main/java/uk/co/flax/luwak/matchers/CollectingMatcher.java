@@ -5,6 +5,7 @@ import java.util.Map;
 
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.*;
+import org.apache.lucene.util.BitSet;
 import uk.co.flax.luwak.CandidateMatcher;
 import uk.co.flax.luwak.DocumentBatch;
 import uk.co.flax.luwak.QueryMatch;
@@ -41,21 +42,53 @@ public abstract class CollectingMatcher<T extends QueryMatch> extends CandidateM
         super(docs);
     }
 
+    private MatchCollector matchCollector = null;
+
     @Override
     protected void doMatchQuery(final String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+        doMatchQuery(queryId, matchQuery, metadata, null);
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                BitSet candidateDocs) throws IOException {
 
         MatchCollector coll = buildMatchCollector(queryId);
 
         long t = System.nanoTime();
-        IndexSearcher searcher = docs.getSearcher();
-        searcher.search(matchQuery, coll);
+        search(matchQuery, coll, candidateDocs);
         t = System.nanoTime() - t;
         this.slowlog.addQuery(queryId, t);
 
     }
 
+    /**
+     * Whether or not {@link #doMatch(String, String, Scorer)} uses its Scorer
+     *
+     * If false, Lucene can use cheaper non-scoring search paths, and the Scorer passed to
+     * doMatch must not be used.  The default is {@code true}.
+     *
+     * @return true if matches need a Scorer
+     */
+    protected boolean needsScores() {
+        return true;
+    }
+
+    /**
+     * Get a MatchCollector for a query
+     *
+     * A matcher is only used by a single thread, so one collector is reset and reused
+     * for every query that it runs.
+     *
+     * @param queryId the query ID
+     * @return a MatchCollector for the query
+     */
     protected MatchCollector buildMatchCollector(String queryId) {
-        return new MatchCollector(queryId);
+        if (matchCollector == null)
+            matchCollector = new MatchCollector(queryId);
+        else
+            matchCollector.reset(queryId);
+        return matchCollector;
     }
 
     /**
@@ -68,40 +101,62 @@ public abstract class CollectingMatcher<T extends QueryMatch> extends CandidateM
      */
     protected abstract T doMatch(String queryId, String docId, Scorer scorer) throws IOException;
 
-    protected class MatchCollector implements Collector {
+    protected class MatchCollector implements Collector, LeafCollector {
 
         T match = null;
 
         private Scorer scorer;
-        private final String queryId;
+        private String queryId;
 
         public MatchCollector(String queryId) {
             this.queryId = queryId;
         }
 
+        void reset(String queryId) {
+            this.queryId = queryId;
+            this.match = null;
+            this.scorer = null;
+        }
 
         @Override
         public LeafCollector getLeafCollector(LeafReaderContext leafReaderContext) throws IOException {
-            return new MatchLeafCollector();
+            return this;
         }
 
         @Override
         public boolean needsScores() {
-            return true;
+            return CollectingMatcher.this.needsScores();
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {
+            this.scorer = scorer;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            match = doMatch(queryId, docs.resolveDocId(doc), scorer);
+            if (match != null)
+                addMatch(match);
         }
 
+        /**
+         * A LeafCollector for a MatchCollector
+         *
+         * @deprecated MatchCollector is now its own LeafCollector.  This class delegates to it,
+         *             and will be removed in a future release.
+         */
+        @Deprecated
         public class MatchLeafCollector implements LeafCollector {
 
             @Override
             public void setScorer(Scorer scorer) throws IOException {
-                MatchCollector.this.scorer = scorer;
+                MatchCollector.this.setScorer(scorer);
             }
 
             @Override
             public void collect(int doc) throws IOException {
-                match = doMatch(queryId, docs.resolveDocId(doc), scorer);
-                if (match != null)
-                    addMatch(match);
+                MatchCollector.this.collect(doc);
             }
 
         }
@@ -1,13 +1,26 @@
 package uk.co.flax.luwak.matchers;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.FixedBitSet;
 import uk.co.flax.luwak.CandidateMatcher;
 import uk.co.flax.luwak.DocumentBatch;
+import uk.co.flax.luwak.IndexFeatures;
 import uk.co.flax.luwak.MatcherFactory;
+import uk.co.flax.luwak.RequiresIndexFeatures;
 
 /*
  * Copyright (c) 2014 Lemur Consulting Ltd.
@@ -27,30 +40,119 @@ import uk.co.flax.luwak.MatcherFactory;
 
 /**
  * Return {@link Explanation}s for each match
+ *
+ * Each candidate query is first run as a normal search to find the documents it
+ * matches, and only those documents are explained.  Explanations can be limited to
+ * a maximum depth, to reduce their size on large batches.
  */
 public class ExplainingMatcher extends CandidateMatcher<ExplainingMatch> {
 
+    /** Use as a maximum depth to return complete explanations */
+    public static final int ALL_LEVELS = Integer.MAX_VALUE;
+
     /** A factory for ExplainingMatchers */
-    public static final MatcherFactory<ExplainingMatch> FACTORY = new MatcherFactory<ExplainingMatch>() {
-        @Override
-        public ExplainingMatcher createMatcher(DocumentBatch docs) {
-            return new ExplainingMatcher(docs);
-        }
-    };
+    public static final MatcherFactory<ExplainingMatch> FACTORY = factory(ALL_LEVELS);
+
+    /**
+     * Create a MatcherFactory for ExplainingMatchers whose explanations are limited to a maximum depth
+     * @param maxDepth the number of levels of detail below the top-level explanation to keep
+     * @return a MatcherFactory
+     */
+    public static MatcherFactory<ExplainingMatch> factory(final int maxDepth) {
+        return new RequiresIndexFeatures.Factory<ExplainingMatch>(IndexFeatures.SCORING) {
+            @Override
+            public ExplainingMatcher createMatcher(DocumentBatch docs) {
+                return new ExplainingMatcher(docs, maxDepth);
+            }
+        };
+    }
+
+    private final int maxDepth;
 
     /** Create a new ExplainingMatcher for the provided DocumentBatch */
     public ExplainingMatcher(DocumentBatch docs) {
+        this(docs, ALL_LEVELS);
+    }
+
+    /**
+     * Create a new ExplainingMatcher for the provided DocumentBatch
+     * @param docs the batch to match
+     * @param maxDepth the number of levels of detail below the top-level explanation to keep,
+     *                 or {@link #ALL_LEVELS}.  At 0, only the score and description of the
+     *                 top-level explanation are returned.
+     */
+    public ExplainingMatcher(DocumentBatch docs, int maxDepth) {
         super(docs);
+        if (maxDepth < 0)
+            throw new IllegalArgumentException("maxDepth cannot be negative");
+        this.maxDepth = maxDepth;
     }
 
     @Override
     public void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
-        int maxDocs = docs.getIndexReader().maxDoc();
-        for (int i = 0; i < maxDocs; i++) {
-            Explanation explanation = docs.getSearcher().explain(matchQuery, i);
+        doMatchQuery(queryId, matchQuery, metadata, null);
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                BitSet candidateDocs) throws IOException {
+        long t = System.nanoTime();
+        IndexSearcher searcher = docs.getSearcher();
+        final FixedBitSet matchingDocs = new FixedBitSet(searcher.getIndexReader().maxDoc());
+        search(matchQuery, new SimpleCollector() {
+
+            int docBase;
+
+            @Override
+            protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                this.docBase = context.docBase;
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                matchingDocs.set(docBase + doc);
+            }
+
+            @Override
+            public boolean needsScores() {
+                return false;
+            }
+        }, candidateDocs);
+
+        DocIdSetIterator it = new BitSetIterator(matchingDocs, 0);
+        Weight weight = null;
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+            // build the Weight once, rather than once per document as IndexSearcher.explain() does
+            if (weight == null)
+                weight = searcher.createNormalizedWeight(matchQuery, true);
+            LeafReaderContext ctx = leaves.get(ReaderUtil.subIndex(doc, leaves));
+            Explanation explanation = weight.explain(ctx, doc - ctx.docBase);
             if (explanation.isMatch())
-                addMatch(new ExplainingMatch(queryId, docs.resolveDocId(i), explanation));
+                addMatch(new ExplainingMatch(queryId, docs.resolveDocId(doc), truncate(explanation, maxDepth)));
+        }
+        this.slowlog.addQuery(queryId, System.nanoTime() - t);
+    }
+
+    /**
+     * Remove the details of an explanation below a given depth
+     * @param explanation the explanation
+     * @param depth the number of levels of detail to keep
+     * @return the truncated explanation
+     */
+    public static Explanation truncate(Explanation explanation, int depth) {
+        Explanation[] details = explanation.getDetails();
+        if (depth == ALL_LEVELS || details.length == 0)
+            return explanation;
+        List<Explanation> truncated = new ArrayList<>();
+        if (depth > 0) {
+            for (Explanation detail : details) {
+                truncated.add(truncate(detail, depth - 1));
+            }
         }
+        if (explanation.isMatch())
+            return Explanation.match(explanation.getValue(), explanation.getDescription(), truncated);
+        return Explanation.noMatch(explanation.getDescription(), truncated);
     }
 
     @Override
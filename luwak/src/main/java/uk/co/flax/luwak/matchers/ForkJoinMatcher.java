@@ -0,0 +1,288 @@
+package uk.co.flax.luwak.matchers;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BitSet;
+import uk.co.flax.luwak.*;
+
+/**
+ * Matcher class that runs matching queries in parallel on a {@link ForkJoinPool}
+ *
+ * Candidate queries are buffered by the presearching thread into fixed-size chunks,
+ * without any locking, and each full chunk is submitted to the pool while presearching
+ * continues.  Chunks are split in half as they are run, so idle workers can steal work
+ * from busy ones.  Each worker thread matches its queries with its own CandidateMatcher,
+ * built from a passed in MatcherFactory.  The worker matchers write their matches to a
+ * shared {@link MatchAccumulator} if they can, and otherwise their results are combined
+ * when matching has finished.
+ *
+ * Compared to {@link ParallelMatcher}, this avoids handing each candidate query to a worker
+ * through a blocking queue, and compared to {@link PartitionMatcher}, it overlaps matching
+ * with presearching and balances the load between workers.
+ *
+ * @param <T> the QueryMatch type returned
+ */
+public class ForkJoinMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
+
+    /** The default number of candidate queries in a chunk */
+    public static final int DEFAULT_CHUNK_SIZE = 64;
+
+    // chunks are not split below this size
+    private static final int MIN_SPLIT_SIZE = 8;
+
+    private final ForkJoinPool pool;
+    private final MatcherFactory<T> matcherFactory;
+    private final int chunkSize;
+
+    private final CandidateMatcher<T> resolvingMatcher;
+
+    // null if the worker matchers can't write to an accumulator
+    private final MatchAccumulator<T> accumulator;
+
+    // the worker for each thread that has run a chunk
+    private final ConcurrentMap<Thread, Worker> workers = new ConcurrentHashMap<>();
+
+    private final List<MatchChunk> submitted = new ArrayList<>();
+
+    private MatchTask[] chunk;
+    private int chunkCount = 0;
+
+    /**
+     * Create a new ForkJoinMatcher
+     * @param docs the DocumentBatch to match against
+     * @param pool the ForkJoinPool to run queries on
+     * @param matcherFactory MatcherFactory to use to create CandidateMatchers
+     * @param chunkSize the number of candidate queries to submit to the pool at a time
+     */
+    public ForkJoinMatcher(DocumentBatch docs, ForkJoinPool pool, MatcherFactory<T> matcherFactory, int chunkSize) {
+        super(docs);
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("chunkSize must be at least 1");
+        this.pool = pool;
+        this.matcherFactory = matcherFactory;
+        this.chunkSize = chunkSize;
+        this.chunk = new MatchTask[chunkSize];
+        this.resolvingMatcher = matcherFactory.createMatcher(docs);
+        // all matchers from the factory are assumed to support accumulators in the same way
+        this.accumulator = createAccumulator(docs, Collections.singletonList(resolvingMatcher));
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+        doMatchQuery(queryId, matchQuery, metadata, null);
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                BitSet candidateDocs) throws IOException {
+        chunk[chunkCount++] = new MatchTask(queryId, getQueryCacheEntry(matchQuery, metadata), candidateDocs);
+        if (chunkCount == chunkSize)
+            submitChunk();
+    }
+
+    private void submitChunk() {
+        MatchChunk task = new MatchChunk(chunk, 0, chunkCount);
+        pool.execute(task);
+        submitted.add(task);
+        chunk = new MatchTask[chunkSize];
+        chunkCount = 0;
+    }
+
+    @Override
+    public T resolve(T match1, T match2) {
+        return resolvingMatcher.resolve(match1, match2);
+    }
+
+    @Override
+    public void finish(long buildTime, int queryCount) {
+        if (chunkCount > 0)
+            submitChunk();
+        for (MatchChunk task : submitted) {
+            task.join();
+        }
+
+        if (accumulator != null) {
+            for (Worker worker : workers.values()) {
+                merge(null, worker.matcher.getMatches());
+            }
+            takeMatches(accumulator);
+            super.finish(buildTime, queryCount);
+            return;
+        }
+
+        // Without an accumulator, the workers' matches must be combined through addMatches(), so
+        // that matchers which limit their results (such as TopKScoringMatcher) can apply those
+        // limits to the combined set.  The busiest worker's results are taken over directly, and
+        // only the other workers' matches are copied into it.
+        Worker busiest = null;
+        for (Worker worker : workers.values()) {
+            if (busiest == null || worker.tasksRun > busiest.tasksRun)
+                busiest = worker;
+        }
+        if (busiest != null) {
+            for (Worker worker : workers.values()) {
+                if (worker != busiest)
+                    merge(busiest.matcher, worker.matcher.getMatches());
+            }
+            merge(null, busiest.matcher.getMatches());
+            takeMatches(busiest.matcher);
+        }
+
+        super.finish(buildTime, queryCount);
+    }
+
+    private void merge(CandidateMatcher<T> target, Matches<T> matches) {
+        if (target != null)
+            target.addMatches(matches);
+        for (MatchError error : matches.getErrors()) {
+            this.reportError(error);
+        }
+        this.slowlog.addAll(matches.getSlowLog());
+    }
+
+    private Worker getWorker() {
+        Thread thread = Thread.currentThread();
+        Worker worker = workers.get(thread);
+        if (worker == null) {
+            // only this thread adds a worker for itself
+            worker = new Worker(matcherFactory.createMatcher(docs));
+            workers.put(thread, worker);
+        }
+        return worker;
+    }
+
+    // a matcher confined to a single thread
+    private class Worker {
+
+        final CandidateMatcher<T> matcher;
+        int tasksRun = 0;
+
+        Worker(CandidateMatcher<T> matcher) {
+            this.matcher = matcher;
+            this.matcher.setSlowLogLimit(slowlog.getLimit());
+            if (accumulator != null)
+                this.matcher.setAccumulator(accumulator);
+        }
+    }
+
+    private class MatchChunk extends RecursiveAction {
+
+        final MatchTask[] tasks;
+        final int from;
+        final int to;
+
+        MatchChunk(MatchTask[] tasks, int from, int to) {
+            this.tasks = tasks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from >= MIN_SPLIT_SIZE * 2) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new MatchChunk(tasks, from, mid), new MatchChunk(tasks, mid, to));
+                return;
+            }
+            Worker worker = getWorker();
+            CandidateMatcher<T> matcher = worker.matcher;
+            worker.tasksRun += to - from;
+            for (int i = from; i < to; i++) {
+                MatchTask task = tasks[i];
+                try {
+                    matcher.matchQuery(task.queryId, task.entry, task.candidateDocs);
+                } catch (IOException e) {
+                    matcher.reportError(new MatchError(task.queryId, e));
+                }
+            }
+        }
+    }
+
+    private static class MatchTask {
+
+        final String queryId;
+        final QueryCacheEntry entry;
+        final BitSet candidateDocs;
+
+        private MatchTask(String queryId, QueryCacheEntry entry, BitSet candidateDocs) {
+            this.queryId = queryId;
+            this.entry = entry;
+            this.candidateDocs = candidateDocs;
+        }
+    }
+
+    public static class ForkJoinMatcherFactory<T extends QueryMatch> implements MatcherFactory<T>, RequiresIndexFeatures {
+
+        private final ForkJoinPool pool;
+        private final MatcherFactory<T> matcherFactory;
+        private final int chunkSize;
+
+        public ForkJoinMatcherFactory(ForkJoinPool pool, MatcherFactory<T> matcherFactory, int chunkSize) {
+            this.pool = pool;
+            this.matcherFactory = matcherFactory;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public ForkJoinMatcher<T> createMatcher(DocumentBatch docs) {
+            return new ForkJoinMatcher<>(docs, pool, matcherFactory, chunkSize);
+        }
+
+        @Override
+        public IndexFeatures getRequiredIndexFeatures() {
+            return IndexFeatures.required(matcherFactory);
+        }
+    }
+
+    /**
+     * Create a new ForkJoinMatcherFactory
+     * @param pool the ForkJoinPool to use
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param chunkSize the number of candidate queries to submit to the pool at a time
+     * @param <T> the type of QueryMatch generated
+     * @return a ForkJoinMatcherFactory
+     */
+    public static <T extends QueryMatch> ForkJoinMatcherFactory<T> factory(ForkJoinPool pool,
+                                                                           MatcherFactory<T> matcherFactory, int chunkSize) {
+        return new ForkJoinMatcherFactory<>(pool, matcherFactory, chunkSize);
+    }
+
+    /**
+     * Create a new ForkJoinMatcherFactory that submits candidate queries in chunks of
+     * {@link #DEFAULT_CHUNK_SIZE}
+     * @param pool the ForkJoinPool to use
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param <T> the type of QueryMatch generated
+     * @return a ForkJoinMatcherFactory
+     */
+    public static <T extends QueryMatch> ForkJoinMatcherFactory<T> factory(ForkJoinPool pool,
+                                                                           MatcherFactory<T> matcherFactory) {
+        return new ForkJoinMatcherFactory<>(pool, matcherFactory, DEFAULT_CHUNK_SIZE);
+    }
+
+}
@@ -5,15 +5,21 @@ import java.util.Map;
 
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.search.spans.SpanCollector;
+import org.apache.lucene.util.BitSet;
+import uk.co.flax.luwak.util.ForceNoBulkScoringQuery;
 import uk.co.flax.luwak.util.SpanExtractor;
 import uk.co.flax.luwak.util.SpanRewriter;
 import uk.co.flax.luwak.CandidateMatcher;
 import uk.co.flax.luwak.DocumentBatch;
 import uk.co.flax.luwak.MatcherFactory;
+import uk.co.flax.luwak.QueryCacheEntry;
 
 /*
  * Copyright (c) 2014 Lemur Consulting Ltd.
@@ -34,8 +40,10 @@ import uk.co.flax.luwak.MatcherFactory;
 /**
  * CandidateMatcher class that will return exact hit positions for all matching queries
  *
- * If a stored query cannot be rewritten so as to extract Spans, a {@link HighlightsMatch} object
- * with no Hit positions will be returned.
+ * Stored queries are rewritten to span queries by a {@link SpanRewriter}, but the original
+ * query always decides which documents match.  If a query cannot be rewritten so as to
+ * extract Spans, it is reported as an error if it matches any documents in the batch, and
+ * ignored otherwise.
  */
 
 public class HighlightingMatcher extends CandidateMatcher<HighlightsMatch> {
@@ -54,19 +62,13 @@ public class HighlightingMatcher extends CandidateMatcher<HighlightsMatch> {
 
     @Override
     protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
-        HighlightsMatch match = doMatch(queryId, matchQuery);
-        if (match != null)
-            this.addMatch(match);
+        findHighlights(queryId, matchQuery, null);
     }
 
     @Override
-    protected void addMatch(HighlightsMatch match) {
-        HighlightsMatch previousMatch = this.matches(match.getDocId(), match.getDocId());
-        if (previousMatch == null) {
-            super.addMatch(match);
-            return;
-        }
-        super.addMatch(HighlightsMatch.merge(match.getQueryId(), match.getDocId(), previousMatch, match));
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                BitSet candidateDocs) throws IOException {
+        findHighlights(queryId, matchQuery, candidateDocs);
     }
 
     @Override
@@ -98,50 +100,126 @@ public class HighlightingMatcher extends CandidateMatcher<HighlightsMatch> {
         }
     }
 
-    /** Find the highlights for a specific query */
+    /**
+     * Find the highlights for a specific query in a subset of the batch, and record a
+     * match for each matching document
+     *
+     * The query is rewritten to a span query, and run once over the batch; hits are
+     * extracted from each matching document as it is collected.
+     */
+    protected void findHighlights(String queryId, Query query, BitSet candidateDocs) throws IOException {
+        findHighlights(queryId, getQueryCacheEntry(query, null), candidateDocs);
+    }
+
+    /**
+     * Find the highlights for a query cache entry in a subset of the batch, and record a
+     * match for each matching document
+     *
+     * The entry's span rewrite is reused if it has already been built by this matcher's rewriter.
+     */
+    protected void findHighlights(String queryId, QueryCacheEntry entry, BitSet candidateDocs) throws IOException {
+        collectHighlights(queryId, entry, candidateDocs, true);
+    }
+
+    /**
+     * Find the highlights for a specific query
+     *
+     * @return the highlights for the last matching document in the batch, or null if the
+     *         query doesn't match; no matches are recorded
+     * @deprecated use {@link #findHighlights(String, Query, BitSet)}, which records a match
+     *             for every matching document.  This method is no longer called by the
+     *             matcher, and will be removed in a future release.
+     */
+    @Deprecated
     protected HighlightsMatch findHighlights(String queryId, Query query) throws IOException {
+        return collectHighlights(queryId, getQueryCacheEntry(query, null), null, false);
+    }
+
+    /**
+     * Find the highlights for a specific query, or null if it doesn't match
+     *
+     * @deprecated use {@link #findHighlights(String, Query, BitSet)}.  This method is no
+     *             longer called by the matcher, and will be removed in a future release.
+     */
+    @Deprecated
+    protected HighlightsMatch doMatch(String queryId, Query query) throws IOException {
+        return findHighlights(queryId, query);
+    }
+
+    // returns the highlights for the last matching document, recording each match if asked
+    private HighlightsMatch collectHighlights(String queryId, QueryCacheEntry entry, BitSet candidateDocs,
+                                              final boolean recordMatches) throws IOException {
+
+        Query query = entry.matchQuery;
+        Query spanQuery;
+        try {
+            spanQuery = entry.getSpanQuery(rewriter);
+        }
+        catch (IllegalArgumentException e) {
+            throwIfMatches(query, candidateDocs, e);
+            return null;
+        }
+
+        // the span query is only used to extract hits, so the original query is added
+        // as a non-scoring filter to ensure that it decides which documents match
+        Query highlightQuery = new ForceNoBulkScoringQuery(new BooleanQuery.Builder()
+                .add(spanQuery, BooleanClause.Occur.MUST)
+                .add(query, BooleanClause.Occur.FILTER)
+                .build());
 
         final HighlightCollector collector = new HighlightCollector(queryId);
 
-        docs.getSearcher().search(rewriter.rewrite(query), new SimpleCollector() {
+        try {
+            search(highlightQuery, new SimpleCollector() {
 
-            Scorer scorer;
+                Scorer scorer;
 
-            @Override
-            public void collect(int i) throws IOException {
-                try {
+                @Override
+                public void collect(int i) throws IOException {
                     collector.setMatch(i);
-                    SpanExtractor.collect(scorer, collector, true);
+                    try {
+                        SpanExtractor.collect(scorer, collector, true);
+                    }
+                    catch (Exception e) {
+                        collector.match.error = e.getMessage();
+                    }
+                    if (recordMatches)
+                        addMatch(collector.match);
                 }
-                catch (Exception e) {
-                    collector.match.error = e.getMessage();
-                }
-            }
-
-            @Override
-            public void setScorer(Scorer scorer) throws IOException {
-                this.scorer = scorer;
-            }
 
-            @Override
-            public boolean needsScores() {
-                return true;
-            }
-        });
+                @Override
+                public void setScorer(Scorer scorer) throws IOException {
+                    this.scorer = scorer;
+                }
 
+                @Override
+                public boolean needsScores() {
+                    // spans are read from the scorer tree, which a non-scoring search may
+                    // replace with cached or bulk iterators
+                    return true;
+                }
+            }, candidateDocs);
+        }
+        catch (BooleanQuery.TooManyClauses e) {
+            // rewrites may expand MultiTermQueries to one clause per matching term in the batch
+            throwIfMatches(query, candidateDocs, e);
+            return null;
+        }
         return collector.match;
     }
 
-    protected HighlightsMatch doMatch(String queryId, Query query) throws IOException {
-        if (docs.getSearcher().count(query) == 0)
-            return null;
-        return findHighlights(queryId, query);
+    // a query that can't be highlighted is only an error if it matches something
+    private void throwIfMatches(Query query, BitSet candidateDocs, RuntimeException e) throws IOException {
+        TotalHitCountCollector counter = new TotalHitCountCollector();
+        search(query, counter, candidateDocs);
+        if (counter.getTotalHits() > 0)
+            throw e;
     }
 
     public static final MatcherFactory<HighlightsMatch> FACTORY = new MatcherFactory<HighlightsMatch>() {
         @Override
         public HighlightingMatcher createMatcher(DocumentBatch docs) {
-            return new HighlightingMatcher(docs, new SpanRewriter());
+            return new HighlightingMatcher(docs, SpanRewriter.INSTANCE);
         }
     };
 
@@ -29,7 +29,8 @@ import uk.co.flax.luwak.QueryMatch;
  */
 public class HighlightsMatch extends QueryMatch {
 
-    private final Map<String, Set<Hit>> hits;
+    // hits for each field, held in packed arrays rather than as Hit objects
+    private final Map<String, FieldHits> hits;
     public String error;
 
     /**
@@ -39,8 +40,12 @@ public class HighlightsMatch extends QueryMatch {
      * @param hits the hits recorded for this query
      */
     public HighlightsMatch(String queryId, String docId, Map<String, Set<Hit>> hits) {
-        super(queryId, docId);
-        this.hits = new TreeMap<>(hits);
+        this(queryId, docId);
+        for (Map.Entry<String, Set<Hit>> entry : hits.entrySet()) {
+            for (Hit hit : entry.getValue()) {
+                addHit(entry.getKey(), hit.startPosition, hit.endPosition, hit.startOffset, hit.endOffset);
+            }
+        }
     }
 
     public HighlightsMatch(String queryId, String docId) {
@@ -57,13 +62,28 @@ public class HighlightsMatch extends QueryMatch {
 
     /**
      * Get the hits for a specific field
+     *
+     * The returned collection is a read-only view, ordered by position, whose Hit
+     * objects are created as they are requested.
+     *
      * @param field the field
      * @return the Hits found in this field
      */
     public Collection<Hit> getHits(String field) {
-        if (hits.containsKey(field))
-            return Collections.unmodifiableCollection(hits.get(field));
-        return new LinkedList<>();
+        final FieldHits fieldHits = hits.get(field);
+        if (fieldHits == null)
+            return Collections.emptyList();
+        return new AbstractList<Hit>() {
+            @Override
+            public Hit get(int index) {
+                return fieldHits.get(index);
+            }
+
+            @Override
+            public int size() {
+                return fieldHits.size;
+            }
+        };
     }
 
     /**
@@ -71,20 +91,26 @@ public class HighlightsMatch extends QueryMatch {
      */
     public int getHitCount() {
         int c = 0;
-        for (Set<Hit> fieldhits : hits.values()) {
-            c += fieldhits.size();
+        for (FieldHits fieldhits : hits.values()) {
+            c += fieldhits.size;
         }
         return c;
     }
 
+    /**
+     * Combine the hits of several matches for the same document
+     *
+     * Where more than one match has a hit with the same start and end positions, the
+     * hit from the earliest match is kept.
+     */
     public static HighlightsMatch merge(String queryId, String docId, HighlightsMatch... matches) {
         HighlightsMatch newMatch = new HighlightsMatch(queryId, docId);
         for (HighlightsMatch match : matches) {
             assert newMatch.getDocId().equals(match.getDocId());
-            for (String field : match.getFields()) {
-                if (!newMatch.hits.containsKey(field))
-                    newMatch.hits.put(field, new TreeSet<Hit>());
-                newMatch.hits.get(field).addAll(match.getHits(field));
+            for (Map.Entry<String, FieldHits> entry : match.hits.entrySet()) {
+                FieldHits existing = newMatch.hits.get(entry.getKey());
+                newMatch.hits.put(entry.getKey(),
+                        existing == null ? entry.getValue().copy() : FieldHits.merge(existing, entry.getValue()));
             }
         }
         return newMatch;
@@ -118,9 +144,151 @@ public class HighlightsMatch extends QueryMatch {
     }
 
     void addHit(String field, int startPos, int endPos, int startOffset, int endOffset) {
-        if (!hits.containsKey(field))
-            hits.put(field, new TreeSet<Hit>());
-        hits.get(field).add(new Hit(startPos, startOffset, endPos, endOffset));
+        FieldHits fieldHits = hits.get(field);
+        if (fieldHits == null) {
+            fieldHits = new FieldHits(4);
+            hits.put(field, fieldHits);
+        }
+        fieldHits.add(startPos, endPos, startOffset, endOffset);
+    }
+
+    /**
+     * The hits in a single field, packed into an int array and sorted by start and end position
+     *
+     * As with a sorted set of {@link Hit}s, only the first hit with a given start and end
+     * position is kept.
+     */
+    private static final class FieldHits {
+
+        // ints per hit: start position, end position, start offset, end offset
+        private static final int STRIDE = 4;
+
+        int[] data;
+        int size = 0;
+
+        FieldHits(int capacity) {
+            this.data = new int[capacity * STRIDE];
+        }
+
+        private FieldHits(int[] data, int size) {
+            this.data = data;
+            this.size = size;
+        }
+
+        Hit get(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            int i = index * STRIDE;
+            return new Hit(data[i], data[i + 2], data[i + 1], data[i + 3]);
+        }
+
+        void add(int startPos, int endPos, int startOffset, int endOffset) {
+            // hits are mostly collected in position order, so check the end of the array first
+            int index = size;
+            if (size > 0 && compare(data, (size - 1) * STRIDE, startPos, endPos) >= 0) {
+                index = search(startPos, endPos);
+                if (index < 0)
+                    return;
+            }
+            if ((size + 1) * STRIDE > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, STRIDE));
+            int i = index * STRIDE;
+            System.arraycopy(data, i, data, i + STRIDE, (size - index) * STRIDE);
+            data[i] = startPos;
+            data[i + 1] = endPos;
+            data[i + 2] = startOffset;
+            data[i + 3] = endOffset;
+            size++;
+        }
+
+        // returns the insertion point for the positions, or -1 if there is already a hit with them
+        private int search(int startPos, int endPos) {
+            int lo = 0, hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = compare(data, mid * STRIDE, startPos, endPos);
+                if (c < 0)
+                    lo = mid + 1;
+                else if (c > 0)
+                    hi = mid - 1;
+                else
+                    return -1;
+            }
+            return lo;
+        }
+
+        FieldHits copy() {
+            return new FieldHits(Arrays.copyOf(data, size * STRIDE), size);
+        }
+
+        // a single pass over both arrays, keeping hits from first where positions clash
+        static FieldHits merge(FieldHits first, FieldHits second) {
+            int[] merged = new int[(first.size + second.size) * STRIDE];
+            int i = 0, j = 0, k = 0;
+            int iEnd = first.size * STRIDE, jEnd = second.size * STRIDE;
+            while (i < iEnd || j < jEnd) {
+                int c;
+                if (j == jEnd)
+                    c = -1;
+                else if (i == iEnd)
+                    c = 1;
+                else
+                    c = compare(first.data, i, second.data[j], second.data[j + 1]);
+                if (c <= 0) {
+                    System.arraycopy(first.data, i, merged, k, STRIDE);
+                    i += STRIDE;
+                    if (c == 0)
+                        j += STRIDE;
+                }
+                else {
+                    System.arraycopy(second.data, j, merged, k, STRIDE);
+                    j += STRIDE;
+                }
+                k += STRIDE;
+            }
+            return new FieldHits(merged, k / STRIDE);
+        }
+
+        private static int compare(int[] data, int i, int startPos, int endPos) {
+            if (data[i] != startPos)
+                return Integer.compare(data[i], startPos);
+            return Integer.compare(data[i + 1], endPos);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof FieldHits))
+                return false;
+            FieldHits other = (FieldHits) obj;
+            if (size != other.size)
+                return false;
+            for (int i = 0; i < size * STRIDE; i++) {
+                if (data[i] != other.data[i])
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = size;
+            for (int i = 0; i < size * STRIDE; i++) {
+                result = 31 * result + data[i];
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0)
+                    sb.append(", ");
+                sb.append(get(i));
+            }
+            return sb.append("]").toString();
+        }
     }
 
     /**
@@ -0,0 +1,128 @@
+package uk.co.flax.luwak.matchers;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.util.BitSet;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.util.SpanRewriter;
+
+/**
+ * CandidateMatcher class that defers highlighting until it is asked for
+ *
+ * Queries are run without scoring or span extraction, as with a {@link SimpleMatcher},
+ * and each match keeps a hold on the DocumentBatch so that its hit positions can be
+ * calculated later with {@link LazyHighlightsMatch#getHighlights()}.  This is cheaper
+ * than a {@link HighlightingMatcher} when only a few matches are highlighted.
+ *
+ * The batch stays open after the match run has finished, until the matches are released
+ * with {@link LazyHighlightsMatch#release(Matches)}.  Batches that don't support
+ * {@link DocumentBatch#retain()} are rejected when the matcher is created.
+ */
+public class LazyHighlightingMatcher extends CandidateMatcher<LazyHighlightsMatch> {
+
+    private final SpanRewriter rewriter;
+
+    // created when the first match is found, so that runs with no matches don't hold the batch
+    private LazyHighlightsMatch.BatchHandle handle = null;
+
+    /**
+     * Create a new LazyHighlightingMatcher for a provided DocumentBatch, using a SpanRewriter
+     * @param docs the batch to match
+     * @param rewriter the SpanRewriter to use when highlights are calculated
+     * @throws IllegalArgumentException if the batch can't be retained
+     */
+    public LazyHighlightingMatcher(DocumentBatch docs, SpanRewriter rewriter) {
+        super(docs);
+        if (docs.supportsRetain() == false)
+            throw new IllegalArgumentException("LazyHighlightingMatcher can't hold open a batch of type "
+                    + docs.getClass().getSimpleName() + ", as it doesn't support DocumentBatch.retain()");
+        this.rewriter = rewriter;
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+        doMatchQuery(queryId, matchQuery, metadata, null);
+    }
+
+    @Override
+    protected void doMatchQuery(final String queryId, Query matchQuery, Map<String, String> metadata,
+                                BitSet candidateDocs) throws IOException {
+        long t = System.nanoTime();
+        final QueryCacheEntry entry = getQueryCacheEntry(matchQuery, metadata);
+        search(matchQuery, new SimpleCollector() {
+            @Override
+            public void collect(int doc) throws IOException {
+                addMatch(buildMatch(queryId, entry, doc));
+            }
+
+            @Override
+            public boolean needsScores() {
+                return false;
+            }
+        }, candidateDocs);
+        this.slowlog.addQuery(queryId, System.nanoTime() - t);
+    }
+
+    @Override
+    protected void doMatchExactQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                     BitSet candidateDocs) throws IOException {
+        doMatchKnownQuery(queryId, matchQuery, metadata, findExactMatches(matchQuery, candidateDocs));
+    }
+
+    @Override
+    protected void doMatchKnownQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                     BitSet matchingDocs) throws IOException {
+        QueryCacheEntry entry = getQueryCacheEntry(matchQuery, metadata);
+        for (int doc = 0; doc < matchingDocs.length(); doc++) {
+            if (matchingDocs.get(doc))
+                addMatch(buildMatch(queryId, entry, doc));
+        }
+    }
+
+    private LazyHighlightsMatch buildMatch(String queryId, QueryCacheEntry entry, int doc) {
+        if (handle == null)
+            handle = new LazyHighlightsMatch.BatchHandle(docs, rewriter);
+        return new LazyHighlightsMatch(queryId, docs.resolveDocId(doc), doc, entry, handle);
+    }
+
+    @Override
+    public LazyHighlightsMatch resolve(LazyHighlightsMatch match1, LazyHighlightsMatch match2) {
+        return LazyHighlightsMatch.merge(match1, match2);
+    }
+
+    public static final MatcherFactory<LazyHighlightsMatch> FACTORY = new MatcherFactory<LazyHighlightsMatch>() {
+        @Override
+        public LazyHighlightingMatcher createMatcher(DocumentBatch docs) {
+            return new LazyHighlightingMatcher(docs, SpanRewriter.INSTANCE);
+        }
+    };
+
+    public static MatcherFactory<LazyHighlightsMatch> factory(final SpanRewriter rewriter) {
+        return new MatcherFactory<LazyHighlightsMatch>() {
+            @Override
+            public LazyHighlightingMatcher createMatcher(DocumentBatch docs) {
+                return new LazyHighlightingMatcher(docs, rewriter);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,210 @@
+package uk.co.flax.luwak.matchers;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+import uk.co.flax.luwak.DocumentBatch;
+import uk.co.flax.luwak.DocumentMatches;
+import uk.co.flax.luwak.Matches;
+import uk.co.flax.luwak.QueryCacheEntry;
+import uk.co.flax.luwak.QueryMatch;
+import uk.co.flax.luwak.util.SpanRewriter;
+
+/**
+ * QueryMatch object that can calculate the hit positions of its query on demand
+ *
+ * Each match holds on to the {@link DocumentBatch} it was found in, along with the
+ * queries that matched, so that highlights can be extracted later with
+ * {@link #getHighlights()}.  The batch is kept open until the match is released with
+ * {@link #release()}, or all matches from a match run are released with
+ * {@link #release(Matches)}; matches that are not released keep their batch's
+ * index in memory.
+ *
+ * Matches from the same {@link LazyHighlightingMatcher} share a hold on the batch,
+ * so releasing one of them releases the others as well.
+ *
+ * @see LazyHighlightingMatcher
+ */
+public class LazyHighlightsMatch extends QueryMatch {
+
+    private final int doc;
+    private final List<QueryCacheEntry> queries;
+    private final List<BatchHandle> handles;
+
+    private volatile HighlightsMatch highlights = null;
+
+    LazyHighlightsMatch(String queryId, String docId, int doc, QueryCacheEntry query, BatchHandle handle) {
+        super(queryId, docId);
+        this.doc = doc;
+        this.queries = Collections.singletonList(query);
+        this.handles = Collections.singletonList(handle);
+    }
+
+    private LazyHighlightsMatch(String queryId, String docId, int doc, List<QueryCacheEntry> queries,
+                                List<BatchHandle> handles) {
+        super(queryId, docId);
+        this.doc = doc;
+        this.queries = queries;
+        this.handles = handles;
+    }
+
+    /**
+     * Combine two matches for the same query and document, for example from different
+     * disjuncts of the query
+     */
+    static LazyHighlightsMatch merge(LazyHighlightsMatch match1, LazyHighlightsMatch match2) {
+        assert match1.getDocId().equals(match2.getDocId());
+        List<QueryCacheEntry> queries = new ArrayList<>(match1.queries);
+        queries.addAll(match2.queries);
+        List<BatchHandle> handles = new ArrayList<>(match1.handles);
+        for (BatchHandle handle : match2.handles) {
+            if (handles.contains(handle) == false)
+                handles.add(handle);
+        }
+        return new LazyHighlightsMatch(match1.getQueryId(), match1.getDocId(), match1.doc, queries, handles);
+    }
+
+    /**
+     * Find the hit positions for this match
+     *
+     * The highlights are calculated on the first call, and then reused.  If the query
+     * can't be rewritten to extract hits, the returned match has no hits and its
+     * error is set.
+     *
+     * @return a HighlightsMatch holding the hits for this match
+     * @throws IOException on IO errors
+     * @throws IllegalStateException if the match has been released before its highlights
+     *                               were calculated
+     */
+    public HighlightsMatch getHighlights() throws IOException {
+        HighlightsMatch h = highlights;
+        if (h == null) {
+            synchronized (this) {
+                h = highlights;
+                if (h == null) {
+                    h = findHighlights();
+                    highlights = h;
+                }
+            }
+        }
+        return h;
+    }
+
+    private HighlightsMatch findHighlights() throws IOException {
+        BatchHandle handle = handles.get(0);
+        DocumentBatch batch = handle.getBatch();
+        HighlightingMatcher matcher = new HighlightingMatcher(batch, handle.rewriter);
+        FixedBitSet candidates = new FixedBitSet(batch.getIndexReader().maxDoc());
+        candidates.set(doc);
+        try {
+            for (QueryCacheEntry query : queries) {
+                matcher.findHighlights(getQueryId(), query, candidates);
+            }
+        }
+        catch (IllegalArgumentException e) {
+            HighlightsMatch unhighlighted = new HighlightsMatch(getQueryId(), getDocId());
+            unhighlighted.error = e.getMessage();
+            return unhighlighted;
+        }
+        HighlightsMatch h = matcher.getMatches().matches(getQueryId(), getDocId());
+        return h == null ? new HighlightsMatch(getQueryId(), getDocId()) : h;
+    }
+
+    /**
+     * @return true if this match's batch has been released
+     */
+    public boolean isReleased() {
+        for (BatchHandle handle : handles) {
+            if (handle.released.get() == false)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Release the batch held by this match, and any other matches that share it
+     *
+     * Highlights that have already been calculated remain available.  Calling this
+     * more than once has no further effect, but it must not be called while highlights
+     * are being calculated for a match that shares the batch.
+     *
+     * @throws IOException on error
+     */
+    public void release() throws IOException {
+        IOUtils.close(handles);
+    }
+
+    /**
+     * Release the batches held by all matches from a match run
+     * @param matches the matches
+     * @throws IOException on error
+     */
+    public static void release(Matches<LazyHighlightsMatch> matches) throws IOException {
+        List<BatchHandle> handles = new ArrayList<>();
+        for (DocumentMatches<LazyHighlightsMatch> docMatches : matches) {
+            for (LazyHighlightsMatch match : docMatches) {
+                handles.addAll(match.handles);
+            }
+        }
+        IOUtils.close(handles);
+    }
+
+    @Override
+    public String toString() {
+        List<Query> matchQueries = new ArrayList<>();
+        for (QueryCacheEntry query : queries) {
+            matchQueries.add(query.matchQuery);
+        }
+        return super.toString() + "{queries=" + matchQueries + "}";
+    }
+
+    // a single hold on a retained batch, shared by the matches from one matcher
+    static final class BatchHandle implements Closeable {
+
+        final SpanRewriter rewriter;
+        private final DocumentBatch batch;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        BatchHandle(DocumentBatch batch, SpanRewriter rewriter) {
+            batch.retain();
+            this.batch = batch;
+            this.rewriter = rewriter;
+        }
+
+        DocumentBatch getBatch() {
+            if (released.get())
+                throw new IllegalStateException("Match has been released");
+            return batch;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (released.compareAndSet(false, true))
+                batch.release();
+        }
+    }
+
+}
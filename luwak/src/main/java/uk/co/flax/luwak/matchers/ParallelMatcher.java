@@ -2,12 +2,12 @@ package uk.co.flax.luwak.matchers;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 
 import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BitSet;
 import uk.co.flax.luwak.*;
 
 /*
@@ -51,6 +51,9 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
 
     private final CandidateMatcher<T> collectorMatcher;
 
+    // null if the worker matchers can't write to an accumulator
+    private final MatchAccumulator<T> accumulator;
+
     /**
      * Create a new ParallelMatcher
      * @param docs the DocumentBatch to match against
@@ -62,17 +65,32 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
                            MatcherFactory<T> matcherFactory, int threads) {
         super(docs);
         for (int i = 0; i < threads; i++) {
-            MatcherWorker mw = new MatcherWorker(matcherFactory);
-            workers.add(mw);
-            futures.add(executor.submit(mw));
+            workers.add(new MatcherWorker(matcherFactory));
         }
         collectorMatcher = matcherFactory.createMatcher(docs);
+        // the workers write their matches to a single shared accumulator, if they all can
+        List<CandidateMatcher<T>> matchers = new ArrayList<>(workers.size());
+        for (MatcherWorker mw : workers) {
+            matchers.add(mw.matcher);
+        }
+        accumulator = createAccumulator(docs, matchers);
+        for (MatcherWorker mw : workers) {
+            if (accumulator != null)
+                mw.matcher.setAccumulator(accumulator);
+            futures.add(executor.submit(mw));
+        }
     }
 
     @Override
     protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+        doMatchQuery(queryId, matchQuery, metadata, null);
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                BitSet candidateDocs) throws IOException {
         try {
-            queue.put(new MatcherTask(queryId, matchQuery, metadata));
+            queue.put(new MatcherTask(queryId, getQueryCacheEntry(matchQuery, metadata), candidateDocs));
         } catch (InterruptedException e) {
             throw new IOException("Interrupted during match", e);
         }
@@ -98,18 +116,22 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
                 queue.put(END);
             }
 
+            // workers either write their matches directly to the shared accumulator, or their
+            // results are combined by the collector matcher, so that it can apply any limits
+            // on the matches that it keeps
             for (Future<CandidateMatcher<T>> future : futures) {
                 Matches<T> matches = future.get().getMatches();
-                for (DocumentMatches<T> docMatches : matches) {
-                    for (T match : docMatches) {
-                        this.addMatch(match);
-                    }
-                }
+                if (accumulator == null)
+                    collectorMatcher.addMatches(matches);
                 for (MatchError error : matches.getErrors()) {
                     this.reportError(error);
                 }
                 this.slowlog.addAll(matches.getSlowLog());
             }
+            if (accumulator != null)
+                takeMatches(accumulator);
+            else
+                addMatches(collectorMatcher.getMatches());
 
         } catch (InterruptedException | ExecutionException e) {
             throw new RuntimeException("Interrupted during match", e);
@@ -132,7 +154,7 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
             try {
                 while ((task = queue.take()) != END) {
                     try {
-                        matcher.matchQuery(task.id, task.matchQuery, task.metadata);
+                        matcher.matchQuery(task.id, task.entry, task.candidateDocs);
                     } catch (IOException e) {
                         matcher.reportError(new MatchError(task.id, e));
                     }
@@ -152,21 +174,21 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
     private static class MatcherTask {
 
         final String id;
-        final Query matchQuery;
-        final Map<String,String> metadata;
+        final QueryCacheEntry entry;
+        final BitSet candidateDocs;
 
-        private MatcherTask(String id, Query matchQuery, Map<String, String> metadata) {
+        private MatcherTask(String id, QueryCacheEntry entry, BitSet candidateDocs) {
             this.id = id;
-            this.matchQuery = matchQuery;
-            this.metadata = metadata;
+            this.entry = entry;
+            this.candidateDocs = candidateDocs;
         }
     }
 
     /* Marker object placed on the queue after all matches are done, to indicate to the
        worker threads that they should finish */
-    private static final MatcherTask END = new MatcherTask("", null, Collections.<String, String>emptyMap());
+    private static final MatcherTask END = new MatcherTask("", null, null);
 
-    public static class ParallelMatcherFactory<T extends QueryMatch> implements MatcherFactory<T> {
+    public static class ParallelMatcherFactory<T extends QueryMatch> implements MatcherFactory<T>, RequiresIndexFeatures {
 
         private final ExecutorService executor;
         private final MatcherFactory<T> matcherFactory;
@@ -183,6 +205,11 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
         public ParallelMatcher<T> createMatcher(DocumentBatch docs) {
             return new ParallelMatcher<>(docs, executor, matcherFactory, threads);
         }
+
+        @Override
+        public IndexFeatures getRequiredIndexFeatures() {
+            return IndexFeatures.required(matcherFactory);
+        }
     }
 
     /**
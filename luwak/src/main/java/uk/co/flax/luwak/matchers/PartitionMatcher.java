@@ -1,15 +1,12 @@
 package uk.co.flax.luwak.matchers;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BitSet;
 import uk.co.flax.luwak.*;
 import uk.co.flax.luwak.util.CollectionUtils;
 
@@ -41,6 +38,14 @@ import uk.co.flax.luwak.util.CollectionUtils;
  * the synchronization overhead of {@link uk.co.flax.luwak.matchers.ParallelMatcher}
  * can outweigh the benefit of multithreading.
  *
+ * Matchers built by a {@link PartitionMatcherFactory} use the query times reported in
+ * their workers' slow logs to give each worker a partition of roughly equal cost on the
+ * next batch.  Several matchers may share the same times, so each matcher only updates
+ * the times of the queries that it has run.  Queries that run without reporting a time,
+ * such as those matched on a matcher's fast paths, are recorded as costing nothing.  If
+ * too few of the candidate queries have been timed before, workers instead take small
+ * chunks of queries from a shared list until it is exhausted.
+ *
  * @see uk.co.flax.luwak.matchers.ParallelMatcher
  *
  * @param <T> the type of QueryMatch to return
@@ -55,32 +60,59 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
 
     private final CandidateMatcher<T> resolvingMatcher;
 
-    private static class MatchTask {
+    // the time in ns that each query took to run on the last batch, or null if times are not recorded
+    private final ConcurrentMap<String, Long> queryCosts;
+
+    // package-private for testing
+    static class MatchTask {
 
         final String queryId;
-        final Query matchQuery;
-        final Map<String, String> metadata;
+        final QueryCacheEntry entry;
+        final BitSet candidateDocs;
 
-        private MatchTask(String queryId, Query matchQuery, Map<String, String> metadata) {
+        private MatchTask(String queryId, QueryCacheEntry entry, BitSet candidateDocs) {
             this.queryId = queryId;
-            this.matchQuery = matchQuery;
-            this.metadata = metadata;
+            this.entry = entry;
+            this.candidateDocs = candidateDocs;
         }
     }
 
     private final List<MatchTask> tasks = new ArrayList<>();
 
     public PartitionMatcher(DocumentBatch docs, ExecutorService executor, MatcherFactory<T> matcherFactory, int threads) {
+        this(docs, executor, matcherFactory, threads, null);
+    }
+
+    /**
+     * Create a new PartitionMatcher that balances its partitions by the cost of each query
+     * @param docs the DocumentBatch to match against
+     * @param executor an ExecutorService to use for parallel execution
+     * @param matcherFactory MatcherFactory to use to create CandidateMatchers
+     * @param threads the number of threads to execute on
+     * @param queryCosts a map of query ids to the time in ns that they took to run on
+     *                   the last batch they were run against, which is updated with the
+     *                   times of the queries run by this matcher.  If null, the queries are
+     *                   split into partitions of equal size.
+     */
+    public PartitionMatcher(DocumentBatch docs, ExecutorService executor, MatcherFactory<T> matcherFactory, int threads,
+                            ConcurrentMap<String, Long> queryCosts) {
         super(docs);
         this.executor = executor;
         this.matcherFactory = matcherFactory;
         this.threads = threads;
         this.resolvingMatcher = matcherFactory.createMatcher(docs);
+        this.queryCosts = queryCosts;
     }
 
     @Override
     protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
-        tasks.add(new MatchTask(queryId, matchQuery, metadata));
+        doMatchQuery(queryId, matchQuery, metadata, null);
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                BitSet candidateDocs) throws IOException {
+        tasks.add(new MatchTask(queryId, getQueryCacheEntry(matchQuery, metadata), candidateDocs));
     }
 
     @Override
@@ -91,23 +123,57 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
     @Override
     public void finish(long buildTime, int queryCount) {
 
-        List<Callable<Matches<T>>> workers = new ArrayList<>(threads);
-        for (List<MatchTask> taskset : CollectionUtils.partition(tasks, threads)) {
-            CandidateMatcher<T> matcher = matcherFactory.createMatcher(docs);
-            matcher.setSlowLogLimit(this.slowlog.getLimit());
-            workers.add(new MatcherWorker(taskset, matcher));
+        List<MatcherWorker> workers = new ArrayList<>(threads);
+        List<List<MatchTask>> partitions = partitionTasks();
+        if (partitions != null) {
+            for (List<MatchTask> taskset : partitions) {
+                workers.add(new MatcherWorker(taskset, null, taskset.size()));
+            }
+        }
+        else {
+            // no estimates, so workers take chunks of tasks as they need them
+            AtomicInteger next = new AtomicInteger();
+            int chunkSize = Math.max(1, tasks.size() / (threads * CHUNKS_PER_THREAD));
+            for (int i = 0; i < threads; i++) {
+                workers.add(new MatcherWorker(tasks, next, chunkSize));
+            }
+        }
+
+        // workers write their matches to a shared accumulator if they all can, and otherwise
+        // their results are combined by the resolving matcher
+        List<CandidateMatcher<T>> matchers = new ArrayList<>(workers.size());
+        for (MatcherWorker worker : workers) {
+            matchers.add(worker.matcher);
+        }
+        MatchAccumulator<T> accumulator = createAccumulator(docs, matchers);
+        boolean accumulating = accumulator != null;
+        if (accumulating) {
+            for (MatcherWorker worker : workers) {
+                worker.matcher.setAccumulator(accumulator);
+            }
         }
 
         try {
+            Map<String, Long> costs = new HashMap<>();
             for (Future<Matches<T>> future : executor.invokeAll(workers)) {
                 Matches<T> matches = future.get();
-                for (DocumentMatches<T> docMatches : matches) {
-                    for (T match : docMatches) {
-                        addMatch(match);
-                    }
+                if (accumulating == false)
+                    resolvingMatcher.addMatches(matches);
+                for (MatchError error : matches.getErrors()) {
+                    this.reportError(error);
                 }
+                // the workers' slow logs hold the time taken by every query they ran, but
+                // only those over this matcher's limit are reported
                 this.slowlog.addAll(matches.getSlowLog());
+                if (queryCosts != null)
+                    addCosts(costs, matches.getSlowLog());
             }
+            if (queryCosts != null)
+                updateCosts(costs);
+            if (accumulating)
+                takeMatches(accumulator);
+            else
+                addMatches(resolvingMatcher.getMatches());
 
         } catch (InterruptedException | ExecutionException e) {
             throw new RuntimeException("Interrupted during match", e);
@@ -116,35 +182,121 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
         super.finish(buildTime, queryCount);
     }
 
+    // a query's cost is the total time taken by all of its disjuncts
+    private static void addCosts(Map<String, Long> costs, SlowLog times) {
+        for (SlowLog.Entry entry : times) {
+            Long previous = costs.get(entry.getQueryId());
+            costs.put(entry.getQueryId(), previous == null ? entry.getTime() : previous + entry.getTime());
+        }
+    }
+
+    // Only the costs of the queries run by this matcher are updated, so that matchers
+    // running concurrently don't remove each other's costs.  Queries that ran but reported
+    // no time are recorded as free, so that they count as timed on the next batch.
+    private void updateCosts(Map<String, Long> costs) {
+        for (MatchTask task : tasks) {
+            Long cost = costs.get(task.queryId);
+            queryCosts.put(task.queryId, cost == null ? 0 : cost);
+        }
+    }
+
+    // the number of chunks per thread used when tasks are scheduled dynamically
+    private static final int CHUNKS_PER_THREAD = 16;
+
+    // Split the tasks into partitions of roughly equal estimated cost, or return null if
+    // fewer than half of the tasks' queries have been timed.  Queries that have not been
+    // timed are assumed to have the average cost of those that have.
+    // package-private for testing
+    List<List<MatchTask>> partitionTasks() {
+        if (queryCosts == null)
+            return CollectionUtils.partition(tasks, threads);
+
+        // a query's cost is shared between its disjuncts
+        Map<String, Integer> taskCounts = new HashMap<>();
+        for (MatchTask task : tasks) {
+            Integer count = taskCounts.get(task.queryId);
+            taskCounts.put(task.queryId, count == null ? 1 : count + 1);
+        }
+
+        double[] costs = new double[tasks.size()];
+        double total = 0;
+        int known = 0;
+        for (int i = 0; i < costs.length; i++) {
+            String queryId = tasks.get(i).queryId;
+            Long cost = queryCosts.get(queryId);
+            if (cost == null) {
+                costs[i] = -1;
+                continue;
+            }
+            // free queries are given a nominal cost, so that they are spread between partitions
+            costs[i] = Math.max(cost, 1) / (double) taskCounts.get(queryId);
+            total += costs[i];
+            known++;
+        }
+        if (known * 2 < costs.length)
+            return null;
+
+        double average = known == 0 ? 1 : total / known;
+        for (int i = 0; i < costs.length; i++) {
+            if (costs[i] < 0)
+                costs[i] = average;
+        }
+        return CollectionUtils.partition(tasks, costs, threads);
+    }
+
     private class MatcherWorker implements Callable<Matches<T>> {
 
         final List<MatchTask> tasks;
+        final AtomicInteger next;
+        final int chunkSize;
         final CandidateMatcher<T> matcher;
 
-        private MatcherWorker(List<MatchTask> tasks, CandidateMatcher<T> matcher) {
+        // if next is null, the worker runs all of its tasks; otherwise it claims chunks
+        // of chunkSize tasks from the shared list until none are left
+        private MatcherWorker(List<MatchTask> tasks, AtomicInteger next, int chunkSize) {
             this.tasks = tasks;
-            this.matcher = matcher;
+            this.next = next;
+            this.chunkSize = chunkSize;
+            this.matcher = matcherFactory.createMatcher(docs);
+            // if query times are recorded, the worker logs them all
+            this.matcher.setSlowLogLimit(queryCosts == null ? slowlog.getLimit() : 0);
         }
 
         @Override
         public Matches<T> call() {
-            for (MatchTask task : tasks) {
+            if (next == null) {
+                runTasks(0, tasks.size());
+            }
+            else {
+                int start;
+                while ((start = next.getAndAdd(chunkSize)) < tasks.size()) {
+                    runTasks(start, Math.min(start + chunkSize, tasks.size()));
+                }
+            }
+            return matcher.getMatches();
+        }
+
+        private void runTasks(int start, int end) {
+            for (int i = start; i < end; i++) {
+                MatchTask task = tasks.get(i);
                 try {
-                    matcher.matchQuery(task.queryId, task.matchQuery, task.metadata);
+                    matcher.matchQuery(task.queryId, task.entry, task.candidateDocs);
                 } catch (IOException e) {
-                    PartitionMatcher.this.reportError(new MatchError(task.queryId, e));
+                    matcher.reportError(new MatchError(task.queryId, e));
                 }
             }
-            return matcher.getMatches();
         }
     }
 
-    public static class PartitionMatcherFactory<T extends QueryMatch> implements MatcherFactory<T> {
+    public static class PartitionMatcherFactory<T extends QueryMatch> implements MatcherFactory<T>, RequiresIndexFeatures {
 
         private final ExecutorService executor;
         private final MatcherFactory<T> matcherFactory;
         private final int threads;
 
+        // shared by all matchers created by this factory
+        private final ConcurrentMap<String, Long> queryCosts = new ConcurrentHashMap<>();
+
         public PartitionMatcherFactory(ExecutorService executor, MatcherFactory<T> matcherFactory,
                                       int threads) {
             this.executor = executor;
@@ -154,7 +306,12 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
 
         @Override
         public PartitionMatcher<T> createMatcher(DocumentBatch docs) {
-            return new PartitionMatcher<>(docs, executor, matcherFactory, threads);
+            return new PartitionMatcher<>(docs, executor, matcherFactory, threads, queryCosts);
+        }
+
+        @Override
+        public IndexFeatures getRequiredIndexFeatures() {
+            return IndexFeatures.required(matcherFactory);
         }
     }
 
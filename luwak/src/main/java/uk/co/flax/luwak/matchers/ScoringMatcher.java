@@ -5,7 +5,9 @@ import java.io.IOException;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.similarities.Similarity;
 import uk.co.flax.luwak.DocumentBatch;
+import uk.co.flax.luwak.IndexFeatures;
 import uk.co.flax.luwak.MatcherFactory;
+import uk.co.flax.luwak.RequiresIndexFeatures;
 
 /*
  * Copyright (c) 2014 Lemur Consulting Ltd.
@@ -52,7 +54,7 @@ public class ScoringMatcher extends CollectingMatcher<ScoringMatch> {
     /**
      * A MatcherFactory for ScoringMatcher objects
      */
-    public static final MatcherFactory<ScoringMatch> FACTORY = new MatcherFactory<ScoringMatch>() {
+    public static final MatcherFactory<ScoringMatch> FACTORY = new RequiresIndexFeatures.Factory<ScoringMatch>(IndexFeatures.SCORING) {
         @Override
         public ScoringMatcher createMatcher(DocumentBatch docs) {
             return new ScoringMatcher(docs);
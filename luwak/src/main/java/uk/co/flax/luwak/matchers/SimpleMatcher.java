@@ -1,10 +1,15 @@
 package uk.co.flax.luwak.matchers;
 
 import java.io.IOException;
+import java.util.Map;
 
+import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.BitSet;
 import uk.co.flax.luwak.DocumentBatch;
+import uk.co.flax.luwak.IndexFeatures;
 import uk.co.flax.luwak.MatcherFactory;
+import uk.co.flax.luwak.RequiresIndexFeatures;
 import uk.co.flax.luwak.QueryMatch;
 
 /*
@@ -34,12 +39,49 @@ public class SimpleMatcher extends CollectingMatcher<QueryMatch> {
         return match1;
     }
 
+    @Override
+    protected boolean needsAllDisjuncts() {
+        // resolve() keeps a single match, so one matching disjunct is enough
+        return false;
+    }
+
+    @Override
+    protected void doMatchExactQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                     BitSet candidateDocs) throws IOException {
+        // matches don't record anything but their ids, so there's no need to run the query
+        long t = System.nanoTime();
+        addMatches(queryId, findExactMatches(matchQuery, candidateDocs));
+        t = System.nanoTime() - t;
+        this.slowlog.addQuery(queryId, t);
+    }
+
+    @Override
+    protected void doMatchKnownQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                     BitSet matchingDocs) throws IOException {
+        long t = System.nanoTime();
+        addMatches(queryId, matchingDocs);
+        t = System.nanoTime() - t;
+        this.slowlog.addQuery(queryId, t);
+    }
+
+    private void addMatches(String queryId, BitSet matchingDocs) {
+        for (int doc = 0; doc < matchingDocs.length(); doc++) {
+            if (matchingDocs.get(doc))
+                addMatch(new QueryMatch(queryId, docs.resolveDocId(doc)));
+        }
+    }
+
+    @Override
+    protected boolean needsScores() {
+        return false;
+    }
+
     @Override
     protected QueryMatch doMatch(String queryId, String docId, Scorer scorer) throws IOException {
         return new QueryMatch(queryId, docId);
     }
 
-    public static final MatcherFactory<QueryMatch> FACTORY = new MatcherFactory<QueryMatch>() {
+    public static final MatcherFactory<QueryMatch> FACTORY = new RequiresIndexFeatures.Factory<QueryMatch>(IndexFeatures.POSITIONS) {
         @Override
         public SimpleMatcher createMatcher(DocumentBatch docs) {
             return new SimpleMatcher(docs);
@@ -0,0 +1,187 @@
+package uk.co.flax.luwak.matchers;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.search.Scorer;
+import uk.co.flax.luwak.*;
+
+/**
+ * A Matcher that reports only the highest-scoring queries for each document in its
+ * DocumentBatch
+ *
+ * Each document keeps a bounded min-heap of its best k matches.  A match is only
+ * created if its score is at least the matcher's minimum score, and is higher than
+ * the lowest score in the document's heap once the heap is full.  Matches with equal
+ * scores are ordered by query id, so that the queries with the lowest ids are kept.
+ * Where a query matches a document more than once, for example through several
+ * branches of a disjunction, its highest score is kept.
+ *
+ * When used by a {@link ParallelMatcher} or {@link PartitionMatcher}, the heaps of
+ * the child matchers are merged, so that the combined results are limited in the
+ * same way.
+ */
+public class TopKScoringMatcher extends CollectingMatcher<ScoringMatch> {
+
+    /**
+     * Create a MatcherFactory for TopKScoringMatchers
+     * @param k the maximum number of matches to report for each document
+     * @return a MatcherFactory
+     */
+    public static MatcherFactory<ScoringMatch> factory(int k) {
+        return factory(k, 0);
+    }
+
+    /**
+     * Create a MatcherFactory for TopKScoringMatchers
+     * @param k the maximum number of matches to report for each document
+     * @param minScore matches with lower scores than this are not reported
+     * @return a MatcherFactory
+     */
+    public static MatcherFactory<ScoringMatch> factory(final int k, final float minScore) {
+        return new RequiresIndexFeatures.Factory<ScoringMatch>(IndexFeatures.SCORING) {
+            @Override
+            public TopKScoringMatcher createMatcher(DocumentBatch docs) {
+                return new TopKScoringMatcher(docs, k, minScore);
+            }
+        };
+    }
+
+    // orders matches from worst to best
+    private static final Comparator<ScoringMatch> BY_SCORE = new Comparator<ScoringMatch>() {
+        @Override
+        public int compare(ScoringMatch m1, ScoringMatch m2) {
+            int c = Float.compare(m1.getScore(), m2.getScore());
+            if (c != 0)
+                return c;
+            return m2.getQueryId().compareTo(m1.getQueryId());
+        }
+    };
+
+    private final int k;
+    private final float minScore;
+
+    private final Map<String, MatchHeap> heaps = new HashMap<>();
+
+    /**
+     * Create a new TopKScoringMatcher
+     * @param docs the documents to run queries against
+     * @param k the maximum number of matches to report for each document
+     * @param minScore matches with lower scores than this are not reported
+     */
+    public TopKScoringMatcher(DocumentBatch docs, int k, float minScore) {
+        super(docs);
+        if (k < 1)
+            throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+        this.minScore = minScore;
+    }
+
+    @Override
+    protected ScoringMatch doMatch(String queryId, String docId, Scorer scorer) throws IOException {
+        float score = scorer.score();
+        if (score <= 0 || score < minScore)
+            return null;
+        MatchHeap heap = getHeap(docId);
+        if (heap.isCompetitive(queryId, score))
+            heap.offer(new ScoringMatch(queryId, docId, score));
+        // matches are held in the heaps until getMatches() is called
+        return null;
+    }
+
+    private MatchHeap getHeap(String docId) {
+        MatchHeap heap = heaps.get(docId);
+        if (heap == null) {
+            heap = new MatchHeap();
+            heaps.put(docId, heap);
+        }
+        return heap;
+    }
+
+    @Override
+    public ScoringMatch resolve(ScoringMatch match1, ScoringMatch match2) {
+        return match1.getScore() < match2.getScore() ? match2 : match1;
+    }
+
+    @Override
+    protected boolean supportsAccumulator() {
+        // matches are only known once all queries have run, and must be merged through addMatches
+        return false;
+    }
+
+    @Override
+    public void addMatches(Matches<ScoringMatch> matches) {
+        for (DocumentMatches<ScoringMatch> docMatches : matches) {
+            for (ScoringMatch match : docMatches) {
+                MatchHeap heap = getHeap(match.getDocId());
+                if (match.getScore() >= minScore && heap.isCompetitive(match.getQueryId(), match.getScore()))
+                    heap.offer(match);
+            }
+        }
+    }
+
+    /**
+     * @return the best k matches for each document.  This should only be called once
+     *         matching has finished.
+     */
+    @Override
+    public Matches<ScoringMatch> getMatches() {
+        // the heaps are kept, so that later calls return the same matches
+        clearMatches();
+        for (MatchHeap heap : heaps.values()) {
+            for (ScoringMatch match : heap.queue) {
+                addMatch(match);
+            }
+        }
+        return super.getMatches();
+    }
+
+    private class MatchHeap {
+
+        final PriorityQueue<ScoringMatch> queue = new PriorityQueue<>(k, BY_SCORE);
+        final Map<String, ScoringMatch> byQuery = new HashMap<>();
+
+        boolean isCompetitive(String queryId, float score) {
+            ScoringMatch existing = byQuery.get(queryId);
+            if (existing != null)
+                return score > existing.getScore();
+            if (queue.size() < k)
+                return true;
+            ScoringMatch worst = queue.peek();
+            return score > worst.getScore()
+                    || (score == worst.getScore() && queryId.compareTo(worst.getQueryId()) < 0);
+        }
+
+        // the match must be competitive
+        void offer(ScoringMatch match) {
+            ScoringMatch existing = byQuery.put(match.getQueryId(), match);
+            if (existing != null) {
+                queue.remove(existing);
+            }
+            else if (queue.size() == k) {
+                byQuery.remove(queue.poll().getQueryId());
+            }
+            queue.add(match);
+        }
+    }
+
+}
@@ -73,6 +73,19 @@ public class FieldFilterPresearcherComponent extends PresearcherComponent {
         return bq.build();
     }
 
+    @Override
+    public boolean supportsCandidateRouting() {
+        // the filter clause only ever removes candidates
+        return true;
+    }
+
+    @Override
+    public boolean preservesExactMatches() {
+        // the filter field's tokens are removed from the document, and the filter
+        // clause only ever removes candidates
+        return true;
+    }
+
     private Query buildFilterClause(LeafReader reader) throws IOException {
 
         Terms terms = reader.fields().terms(field);
@@ -44,4 +44,9 @@ public class MatchAllPresearcher extends Presearcher {
     public Document indexQuery(Query query, Map<String, String> metadata) {
         return new Document();
     }
+
+    @Override
+    public boolean supportsKeywordIndex() {
+        return true;
+    }
 }
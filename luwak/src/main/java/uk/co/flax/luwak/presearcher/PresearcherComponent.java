@@ -99,6 +99,52 @@ public class PresearcherComponent {
         return presearcherQuery;
     }
 
+    /**
+     * Whether or not the presearcher can route candidate queries to individual documents
+     * in a batch when this component is in use.
+     *
+     * Routing is only possible if {@link #adjustPresearcherQuery(LeafReader, Query)} can
+     * only remove candidates from those selected by the presearcher's document terms.  A
+     * plain PresearcherComponent supports routing; subclasses must override this method
+     * to opt in.
+     *
+     * @return true if candidate queries can be routed
+     */
+    public boolean supportsCandidateRouting() {
+        return getClass() == PresearcherComponent.class;
+    }
+
+    /**
+     * Whether or not a document selecting a query that is a pure disjunction of terms
+     * always contains one of the query's terms when this component is in use.
+     *
+     * If this holds, the presearcher can report such queries as exact, and they can be
+     * matched without running them against the documents.  See
+     * {@link uk.co.flax.luwak.Presearcher#isExact(Query)}.  A plain PresearcherComponent
+     * preserves exact matches; subclasses must override this method to opt in.
+     *
+     * @return true if exact presearcher matches are preserved
+     */
+    public boolean preservesExactMatches() {
+        return getClass() == PresearcherComponent.class;
+    }
+
+    /**
+     * Whether or not queries can be selected by the Monitor's keyword index, rather than
+     * by the presearcher, when this component is in use.
+     *
+     * Keyword queries are indexed without a presearcher document, and are never seen by
+     * {@link #adjustQueryDocument(Document, Map)} or {@link #adjustPresearcherQuery(LeafReader, Query)},
+     * so this only holds if the component never removes a query that a document matches.
+     * A plain PresearcherComponent supports the keyword index; subclasses must override
+     * this method to opt in.  See {@link uk.co.flax.luwak.Presearcher#supportsKeywordIndex()}.
+     *
+     * @return true if the keyword index can be used
+     */
+    public boolean supportsKeywordIndex() {
+        return getClass() == PresearcherComponent.class;
+    }
+
     /**
      * Make changes to the lucene Document that describes how a MonitorQuery will
      * be indexed by the presearcher.
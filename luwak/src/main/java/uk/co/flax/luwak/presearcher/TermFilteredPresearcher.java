@@ -35,6 +35,7 @@ import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefHash;
 import org.apache.lucene.util.BytesRefIterator;
+import uk.co.flax.luwak.CandidateRouting;
 import uk.co.flax.luwak.Presearcher;
 import uk.co.flax.luwak.QueryTermFilter;
 import uk.co.flax.luwak.analysis.BytesRefFilteredTokenFilter;
@@ -44,6 +45,7 @@ import uk.co.flax.luwak.termextractor.QueryTerm;
 import uk.co.flax.luwak.termextractor.querytree.QueryTree;
 import uk.co.flax.luwak.termextractor.querytree.QueryTreeViewer;
 import uk.co.flax.luwak.termextractor.querytree.TreeWeightor;
+import uk.co.flax.luwak.util.TermDisjunctions;
 
 /**
  * Presearcher implementation that uses terms extracted from queries to index
@@ -117,6 +119,80 @@ public class TermFilteredPresearcher extends Presearcher {
         }
     }
 
+    @Override
+    public CandidateRouting buildRouting(LeafReader reader, QueryTermFilter queryTermFilter) throws IOException {
+
+        for (PresearcherComponent component : components) {
+            if (component.supportsCandidateRouting() == false)
+                return null;
+        }
+
+        CandidateRouting routing = new CandidateRouting(reader.maxDoc());
+        routing.addTerm(ANYTOKEN_FIELD, new BytesRef(ANYTOKEN));
+
+        for (String field : reader.fields()) {
+
+            TermsEnum te = reader.terms(field).iterator();
+            TokenStream source = new TermsEnumTokenStream(te);
+            TokenStream ts = source;
+            for (PresearcherComponent component : components) {
+                ts = component.filterDocumentTokens(field, ts);
+            }
+            // If a component has altered the document tokens, we can't tell which
+            // documents they came from, so they are routed to the whole batch
+            boolean filtered = ts != source;
+
+            ts = new BytesRefFilteredTokenFilter(ts, queryTermFilter.getTerms(field));
+
+            TermToBytesRefAttribute termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
+            PostingsEnum postings = null;
+            while (ts.incrementToken()) {
+                if (filtered) {
+                    routing.addTerm(field, termAtt.getBytesRef());
+                }
+                else {
+                    // the TermsEnum is positioned on the term that produced this token
+                    postings = te.postings(postings, PostingsEnum.NONE);
+                    routing.addTerm(field, termAtt.getBytesRef(), postings);
+                }
+            }
+
+        }
+
+        return routing;
+    }
+
+    @Override
+    public boolean supportsKeywordIndex() {
+        for (PresearcherComponent component : components) {
+            if (component.supportsKeywordIndex() == false)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isExact(Query query) {
+
+        for (PresearcherComponent component : components) {
+            if (component.preservesExactMatches() == false)
+                return false;
+        }
+
+        List<Term> terms = TermDisjunctions.getTerms(query);
+        if (terms == null)
+            return false;
+
+        // the query must be indexed under exactly its own terms
+        Set<Term> indexed = new HashSet<>();
+        for (QueryTerm queryTerm : extractor.collectTerms(query)) {
+            if (queryTerm.type != QueryTerm.Type.EXACT)
+                return false;
+            indexed.add(queryTerm.term);
+        }
+        return indexed.equals(new HashSet<>(terms));
+    }
+
     protected BytesRefHash buildTermsHash(String field, LeafReader reader) throws IOException {
         BytesRefHash terms = new BytesRefHash();
         Terms t = reader.terms(field);
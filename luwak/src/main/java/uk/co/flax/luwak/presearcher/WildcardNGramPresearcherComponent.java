@@ -91,6 +91,18 @@ public class WildcardNGramPresearcherComponent extends PresearcherComponent {
         return new SuffixingNGramTokenFilter(ts, ngramSuffix, wildcardToken, maxTokenSize);
     }
 
+    @Override
+    public boolean supportsCandidateRouting() {
+        // altered tokens are routed to the whole batch, and the presearcher query is unchanged
+        return true;
+    }
+
+    @Override
+    public boolean supportsKeywordIndex() {
+        // ngrams only add candidates, and keyword queries are matched on the batch's own terms
+        return true;
+    }
+
     @Override
     public BytesRef extraToken(QueryTerm term) {
         if (term.type == QueryTerm.Type.CUSTOM && wildcardToken.equals(term.payload))
@@ -0,0 +1,185 @@
+package uk.co.flax.luwak.util;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.*;
+
+/**
+ * A {@link QueryCache} scoped to a single {@link uk.co.flax.luwak.DocumentBatch}, used
+ * to share the evaluation of sub-queries between the candidate queries run against it.
+ *
+ * Stored queries often contain the same large clauses, such as a common disjunction
+ * or an exclusion filter.  Lucene caches the doc id sets of non-scoring clauses, but
+ * its default cache and caching policy are tuned for long-lived indexes: they ignore
+ * small segments, and only track the last few hundred queries, which means that
+ * clauses shared between candidates that are far apart in the candidate set are never
+ * cached.  A batch index is tiny and short-lived, so this cache accepts any segment,
+ * and its policy counts every use of every query against the batch.  A query is cached
+ * once it has been used a set number of times, so shared clauses are only evaluated
+ * against the batch once or twice.
+ *
+ * Searchers created by {@link #newSearcher(IndexReader, int)} don't pass the queries
+ * they are asked to run through the cache, only their sub-queries, so that candidate
+ * queries that are run once per batch are not tracked by the caching policy.
+ *
+ * The cache holds doc id sets for the current batch reader only, and should be
+ * discarded along with its IndexSearcher.
+ */
+public class BatchQueryCache extends LRUQueryCache {
+
+    /** The default maximum number of queries to cache */
+    public static final int DEFAULT_MAX_QUERIES = 1024;
+
+    /** The default maximum memory to use for cached doc id sets */
+    public static final long DEFAULT_MAX_RAM_BYTES = 16 * 1024 * 1024;
+
+    /** The default number of uses before a query is cached */
+    public static final int DEFAULT_MIN_FREQUENCY = 2;
+
+    private static final Predicate<LeafReaderContext> ALL_LEAVES = new Predicate<LeafReaderContext>() {
+        @Override
+        public boolean test(LeafReaderContext context) {
+            return true;
+        }
+    };
+
+    private final CountingPolicy policy;
+
+    /**
+     * Create a new BatchQueryCache
+     * @param maxQueries   the maximum number of queries to cache
+     * @param maxRamBytes  the maximum memory to use for cached doc id sets
+     * @param minFrequency the number of times a query must be used before it is cached
+     */
+    public BatchQueryCache(int maxQueries, long maxRamBytes, int minFrequency) {
+        super(maxQueries, maxRamBytes, ALL_LEAVES);
+        this.policy = new CountingPolicy(minFrequency);
+    }
+
+    /**
+     * Create a new BatchQueryCache with the default settings
+     */
+    public BatchQueryCache() {
+        this(DEFAULT_MAX_QUERIES, DEFAULT_MAX_RAM_BYTES, DEFAULT_MIN_FREQUENCY);
+    }
+
+    /**
+     * @return the {@link QueryCachingPolicy} to use with this cache
+     */
+    public QueryCachingPolicy getCachingPolicy() {
+        return policy;
+    }
+
+    // the number of queries whose uses are being counted
+    int getTrackedQueryCount() {
+        return policy.counts.size();
+    }
+
+    /**
+     * Create a new IndexSearcher with a BatchQueryCache installed
+     *
+     * Only the sub-queries of the queries run by the searcher are counted and cached.
+     *
+     * @param reader the batch's index reader
+     * @param maxQueries the maximum number of queries to cache
+     * @return the searcher
+     */
+    public static IndexSearcher newSearcher(IndexReader reader, int maxQueries) {
+        return install(new BatchSearcher(reader), maxQueries);
+    }
+
+    /**
+     * Install a new BatchQueryCache on an IndexSearcher
+     * @param searcher the searcher
+     * @param maxQueries the maximum number of queries to cache
+     * @return the searcher
+     */
+    public static IndexSearcher install(IndexSearcher searcher, int maxQueries) {
+        BatchQueryCache cache = new BatchQueryCache(maxQueries, DEFAULT_MAX_RAM_BYTES, DEFAULT_MIN_FREQUENCY);
+        searcher.setQueryCache(cache);
+        searcher.setQueryCachingPolicy(cache.getCachingPolicy());
+        return searcher;
+    }
+
+    // Creates the weight for a top-level query without wrapping it in the query cache;
+    // its sub-queries are still created through createWeight(), and may be cached
+    private static class BatchSearcher extends IndexSearcher {
+
+        BatchSearcher(IndexReader reader) {
+            super(reader);
+        }
+
+        @Override
+        public Weight createNormalizedWeight(Query query, boolean needsScores) throws IOException {
+            query = rewrite(query);
+            Weight weight = query.createWeight(this, needsScores);
+            float norm = getSimilarity(needsScores).queryNorm(weight.getValueForNormalization());
+            if (Float.isInfinite(norm) || Float.isNaN(norm))
+                norm = 1.0f;
+            weight.normalize(norm, 1.0f);
+            return weight;
+        }
+    }
+
+    // Caches queries that have been used at least minFrequency times.  Several matchers
+    // may share a batch's searcher, so usage counts are held in a concurrent map.
+    private static class CountingPolicy implements QueryCachingPolicy {
+
+        final int minFrequency;
+        final ConcurrentMap<Query, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+        CountingPolicy(int minFrequency) {
+            this.minFrequency = minFrequency;
+        }
+
+        // term queries are as cheap to run as to read from the cache
+        private static boolean isCheap(Query query) {
+            return query instanceof TermQuery || query instanceof MatchAllDocsQuery;
+        }
+
+        @Override
+        public void onUse(Query query) {
+            if (isCheap(query))
+                return;
+            AtomicInteger count = counts.get(query);
+            if (count == null) {
+                AtomicInteger newCount = new AtomicInteger();
+                count = counts.putIfAbsent(query, newCount);
+                if (count == null)
+                    count = newCount;
+            }
+            count.incrementAndGet();
+        }
+
+        @Override
+        public boolean shouldCache(Query query) {
+            if (isCheap(query))
+                return false;
+            AtomicInteger count = counts.get(query);
+            return count != null && count.get() >= minFrequency;
+        }
+    }
+
+}
@@ -45,6 +45,61 @@ public final class CollectionUtils {
         return list;
     }
 
+    /**
+     * Partition a list into slices of roughly equal total cost
+     *
+     * Items are assigned in decreasing order of cost, each to the slice with the lowest
+     * total cost so far (the longest-processing-time-first heuristic).  Within each slice,
+     * items keep their original relative order.
+     *
+     * @param items the items to partition
+     * @param costs the cost of each item, indexed by its position in items
+     * @param slices the number of slices
+     * @param <T> the type of the items
+     * @return a list of slices
+     */
+    public static <T> List<List<T>> partition(List<T> items, final double[] costs, int slices) {
+        if (costs.length != items.size())
+            throw new IllegalArgumentException("There must be a cost for each item");
+
+        Integer[] order = new Integer[items.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(costs[i2], costs[i1]);
+            }
+        });
+
+        double[] totals = new double[slices];
+        List<List<Integer>> assigned = new ArrayList<>(slices);
+        for (int i = 0; i < slices; i++) {
+            assigned.add(new ArrayList<Integer>());
+        }
+        for (int item : order) {
+            int lightest = 0;
+            for (int i = 1; i < slices; i++) {
+                if (totals[i] < totals[lightest])
+                    lightest = i;
+            }
+            totals[lightest] += costs[item];
+            assigned.get(lightest).add(item);
+        }
+
+        List<List<T>> list = new ArrayList<>(slices);
+        for (List<Integer> slice : assigned) {
+            Collections.sort(slice);
+            List<T> sliceItems = new ArrayList<>(slice.size());
+            for (int item : slice) {
+                sliceItems.add(items.get(item));
+            }
+            list.add(sliceItems);
+        }
+        return list;
+    }
+
     /**
      * Drains the queue as {@link BlockingQueue#drainTo(Collection, int)}, but if the requested
      * {@code numElements} elements are not available, it will wait for them up to the specified
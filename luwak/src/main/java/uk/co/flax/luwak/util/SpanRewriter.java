@@ -15,7 +15,6 @@ package uk.co.flax.luwak.util;
  *   limitations under the License.
  */
 
-import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -31,6 +30,13 @@ import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.lucene.util.BytesRef;
 
+/**
+ * Rewrites queries to span queries, so that hit positions can be extracted from them
+ *
+ * A rewritten query must match exactly the same documents as the original.  Matchers
+ * filter the rewritten query by the original, so extra documents matched by a rewrite
+ * are ignored, but documents that it fails to match will not be reported.
+ */
 public class SpanRewriter {
 
     public static final SpanRewriter INSTANCE = new SpanRewriter();
@@ -66,6 +72,9 @@ public class SpanRewriter {
 
     protected Query rewriteBoolean(BooleanQuery bq) {
         BooleanQuery.Builder newbq = new BooleanQuery.Builder();
+        // the rewritten query must match the same documents as the original
+        newbq.setMinimumNumberShouldMatch(bq.getMinimumNumberShouldMatch());
+        newbq.setDisableCoord(bq.isCoordDisabled());
         for (BooleanClause clause : bq) {
             BooleanClause.Occur occur = clause.getOccur();
             if (occur == BooleanClause.Occur.FILTER)
@@ -91,28 +100,22 @@ public class SpanRewriter {
 
         Map<String, List<SpanTermQuery>> spanQueries = new HashMap<>();
 
-        try {
-            Field termsField = TermsQuery.class.getDeclaredField("termData");
-            termsField.setAccessible(true);
-            PrefixCodedTerms terms = (PrefixCodedTerms) termsField.get(query);
-            PrefixCodedTerms.TermIterator it = terms.iterator();
-            for (int i = 0; i < terms.size(); i++) {
-                BytesRef term = BytesRef.deepCopyOf(it.next());
-                if (spanQueries.containsKey(it.field()) == false) {
-                    spanQueries.put(it.field(), new ArrayList<SpanTermQuery>());
-                }
-                spanQueries.get(it.field()).add(new SpanTermQuery(new Term(it.field(), term)));
+        PrefixCodedTerms terms = query.getTermData();
+        PrefixCodedTerms.TermIterator it = terms.iterator();
+        for (int i = 0; i < terms.size(); i++) {
+            BytesRef term = BytesRef.deepCopyOf(it.next());
+            if (spanQueries.containsKey(it.field()) == false) {
+                spanQueries.put(it.field(), new ArrayList<SpanTermQuery>());
             }
-            BooleanQuery.Builder builder = new BooleanQuery.Builder();
-            for (Map.Entry<String,List<SpanTermQuery>> entry : spanQueries.entrySet()) {
-                List<SpanTermQuery> termQueries = entry.getValue();
-                builder.add(new SpanOrQuery(termQueries.toArray(new SpanTermQuery[termQueries.size()])),
-                        BooleanClause.Occur.SHOULD);
-            }
-            return builder.build();
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
+            spanQueries.get(it.field()).add(new SpanTermQuery(new Term(it.field(), term)));
+        }
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (Map.Entry<String,List<SpanTermQuery>> entry : spanQueries.entrySet()) {
+            List<SpanTermQuery> termQueries = entry.getValue();
+            builder.add(new SpanOrQuery(termQueries.toArray(new SpanTermQuery[termQueries.size()])),
+                    BooleanClause.Occur.SHOULD);
         }
+        return builder.build();
 
     }
 
@@ -0,0 +1,85 @@
+package uk.co.flax.luwak.util;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.PrefixCodedTerms;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermsQuery;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Utility methods for queries that match any document containing at least one
+ * of a set of terms
+ */
+public class TermDisjunctions {
+
+    private TermDisjunctions() {}
+
+    /**
+     * Get the terms of a query that is a pure disjunction of terms
+     *
+     * A query is a pure term disjunction if it is a {@link TermQuery}, a {@link TermsQuery},
+     * or a {@link BooleanQuery} made up only of SHOULD clauses that are themselves pure
+     * term disjunctions.  Such a query matches a document if and only if the document
+     * contains one of its terms.
+     *
+     * @param query the query
+     * @return the query's terms, or null if the query is not a pure term disjunction
+     */
+    public static List<Term> getTerms(Query query) {
+        List<Term> terms = new ArrayList<>();
+        if (collectTerms(query, terms) == false || terms.isEmpty())
+            return null;
+        return terms;
+    }
+
+    private static boolean collectTerms(Query query, List<Term> terms) {
+        if (query instanceof TermQuery) {
+            terms.add(((TermQuery) query).getTerm());
+            return true;
+        }
+        if (query instanceof TermsQuery) {
+            PrefixCodedTerms.TermIterator it = ((TermsQuery) query).getTermData().iterator();
+            for (BytesRef term = it.next(); term != null; term = it.next()) {
+                terms.add(new Term(it.field(), BytesRef.deepCopyOf(term)));
+            }
+            return true;
+        }
+        if (query instanceof BoostQuery)
+            return collectTerms(((BoostQuery) query).getQuery(), terms);
+        if (query instanceof ConstantScoreQuery)
+            return collectTerms(((ConstantScoreQuery) query).getQuery(), terms);
+        if (query instanceof BooleanQuery) {
+            BooleanQuery bq = (BooleanQuery) query;
+            if (bq.getMinimumNumberShouldMatch() > 1 || bq.clauses().isEmpty())
+                return false;
+            for (BooleanClause clause : bq.clauses()) {
+                if (clause.getOccur() != BooleanClause.Occur.SHOULD)
+                    return false;
+                if (collectTerms(clause.getQuery(), terms) == false)
+                    return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+}
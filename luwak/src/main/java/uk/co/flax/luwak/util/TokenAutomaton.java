@@ -0,0 +1,159 @@
+package uk.co.flax.luwak.util;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.*;
+
+/**
+ * An Aho-Corasick automaton that finds every occurrence of a set of token sequences
+ * in a stream of tokens, in a single pass.
+ *
+ * Tokens are identified by non-negative integers.  Tokens that do not appear in any
+ * of the automaton's patterns, and gaps in the token stream, should be passed to
+ * {@link #step(int, int)} as {@link #NO_TOKEN}.
+ */
+public class TokenAutomaton {
+
+    /** The initial state of the automaton */
+    public static final int ROOT = 0;
+
+    /** A token that does not appear in any pattern */
+    public static final int NO_TOKEN = -1;
+
+    private static final int[] NO_MATCHES = new int[0];
+
+    private final int[][] tokens;
+    private final int[][] targets;
+    private final int[] fail;
+    private final int[][] matches;
+
+    /**
+     * Build a new TokenAutomaton
+     * @param patterns the token sequences to find.  Matches are reported by their index in this list.
+     * @throws IllegalArgumentException if a pattern is empty or contains a negative token
+     */
+    public TokenAutomaton(List<int[]> patterns) {
+
+        // build a trie of the patterns
+        List<TreeMap<Integer, Integer>> trie = new ArrayList<>();
+        List<List<Integer>> ends = new ArrayList<>();
+        trie.add(new TreeMap<Integer, Integer>());
+        ends.add(new ArrayList<Integer>());
+        for (int p = 0; p < patterns.size(); p++) {
+            int[] pattern = patterns.get(p);
+            if (pattern.length == 0)
+                throw new IllegalArgumentException("Cannot add an empty pattern to a TokenAutomaton");
+            int state = ROOT;
+            for (int token : pattern) {
+                if (token < 0)
+                    throw new IllegalArgumentException("Pattern tokens must be non-negative: " + Arrays.toString(pattern));
+                Integer next = trie.get(state).get(token);
+                if (next == null) {
+                    next = trie.size();
+                    trie.get(state).put(token, next);
+                    trie.add(new TreeMap<Integer, Integer>());
+                    ends.add(new ArrayList<Integer>());
+                }
+                state = next;
+            }
+            ends.get(state).add(p);
+        }
+
+        int states = trie.size();
+        this.tokens = new int[states][];
+        this.targets = new int[states][];
+        for (int state = 0; state < states; state++) {
+            TreeMap<Integer, Integer> transitions = trie.get(state);
+            tokens[state] = new int[transitions.size()];
+            targets[state] = new int[transitions.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Integer> transition : transitions.entrySet()) {
+                tokens[state][i] = transition.getKey();
+                targets[state][i] = transition.getValue();
+                i++;
+            }
+        }
+
+        // link each state to the state for its longest proper suffix, in breadth-first
+        // order so that a state's suffix is always linked before the state itself
+        this.fail = new int[states];
+        this.matches = new int[states][];
+        matches[ROOT] = NO_MATCHES;
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int child : targets[ROOT]) {
+            fail[child] = ROOT;
+            queue.add(child);
+        }
+        while (queue.isEmpty() == false) {
+            int state = queue.poll();
+            matches[state] = merge(ends.get(state), matches[fail[state]]);
+            for (int i = 0; i < tokens[state].length; i++) {
+                int child = targets[state][i];
+                fail[child] = step(fail[state], tokens[state][i]);
+                queue.add(child);
+            }
+        }
+    }
+
+    private static int[] merge(List<Integer> own, int[] inherited) {
+        if (own.isEmpty())
+            return inherited;
+        int[] merged = new int[own.size() + inherited.length];
+        for (int i = 0; i < own.size(); i++) {
+            merged[i] = own.get(i);
+        }
+        System.arraycopy(inherited, 0, merged, own.size(), inherited.length);
+        return merged;
+    }
+
+    /**
+     * Advance the automaton by a single token
+     * @param state the current state
+     * @param token the next token in the stream
+     * @return the new state
+     */
+    public int step(int state, int token) {
+        if (token < 0)
+            return ROOT;
+        while (true) {
+            int i = Arrays.binarySearch(tokens[state], token);
+            if (i >= 0)
+                return targets[state][i];
+            if (state == ROOT)
+                return ROOT;
+            state = fail[state];
+        }
+    }
+
+    /**
+     * Get the patterns that end at a state
+     * @param state the state
+     * @return the indexes of the patterns that match the token stream up to this state.
+     *         The array is shared, and must not be modified.
+     */
+    public int[] getMatches(int state) {
+        return matches[state];
+    }
+
+    /**
+     * @return the number of states in the automaton
+     */
+    public int getStateCount() {
+        return fail.length;
+    }
+
+}
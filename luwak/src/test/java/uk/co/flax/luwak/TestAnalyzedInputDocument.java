@@ -0,0 +1,142 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexableFieldType;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.HighlightingMatcher;
+import uk.co.flax.luwak.matchers.HighlightsMatch;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestAnalyzedInputDocument {
+
+    private static final Analyzer ANALYZER = new StandardAnalyzer();
+
+    private Monitor monitor;
+
+    @Before
+    public void setUp() throws IOException {
+        monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher());
+        monitor.update(new MonitorQuery("1", "test"),
+                       new MonitorQuery("2", "\"quick fox\""),
+                       new MonitorQuery("3", "\"fox another\"~2"),
+                       new MonitorQuery("4", "keyword:value"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        monitor.close();
+    }
+
+    private static InputDocument buildDoc(String id) {
+        return InputDocument.builder(id)
+                .addField("field", "the quick fox", ANALYZER)
+                .addField("field", "another test", ANALYZER)
+                .addField(new StringField("keyword", "value", Field.Store.NO))
+                .build();
+    }
+
+    @Test
+    public void testAnalyzedDocumentsMatchTheSameQueries() throws IOException {
+
+        InputDocument doc = buildDoc("doc");
+        AnalyzedInputDocument analyzed = AnalyzedInputDocument.analyze(doc);
+
+        assertThat(analyzed.getId()).isEqualTo("doc");
+
+        Matches<QueryMatch> matches = monitor.match(doc, SimpleMatcher.FACTORY);
+        Matches<QueryMatch> analyzedMatches = monitor.match(analyzed, SimpleMatcher.FACTORY);
+
+        assertThat(analyzedMatches.getMatchCount("doc")).isEqualTo(4);
+        for (String queryId : new String[]{ "1", "2", "3", "4" }) {
+            assertThat(analyzedMatches.matches(queryId, "doc")).isEqualTo(matches.matches(queryId, "doc"));
+        }
+    }
+
+    @Test
+    public void testAnalyzedDocumentsRetainOffsets() throws IOException {
+
+        InputDocument doc = buildDoc("doc");
+        AnalyzedInputDocument analyzed = AnalyzedInputDocument.analyze(doc);
+
+        HighlightsMatch expected = monitor.match(doc, HighlightingMatcher.FACTORY).matches("1", "doc");
+        HighlightsMatch actual = monitor.match(analyzed, HighlightingMatcher.FACTORY).matches("1", "doc");
+
+        assertThat(actual).isEqualTo(expected);
+        assertThat(actual.getHits("field")).containsExactly(new HighlightsMatch.Hit(4, 22, 4, 26));
+    }
+
+    @Test
+    public void testSerializationRoundTrip() throws IOException {
+
+        BytesRef bytes = AnalyzedInputDocument.analyze(buildDoc("doc")).toBytes();
+        AnalyzedInputDocument deserialized = AnalyzedInputDocument.fromBytes(bytes);
+
+        assertThat(deserialized.getId()).isEqualTo("doc");
+        assertThat(deserialized.toBytes()).isEqualTo(bytes);
+
+        Matches<QueryMatch> matches = monitor.match(deserialized, SimpleMatcher.FACTORY);
+        assertThat(matches.getMatchCount("doc")).isEqualTo(4);
+    }
+
+    @Test
+    public void testFieldTypesAreRetained() throws IOException {
+
+        InputDocument original = buildDoc("doc");
+        BytesRef bytes = AnalyzedInputDocument.analyze(original).toBytes();
+        Document doc = AnalyzedInputDocument.fromBytes(bytes).getDocument();
+
+        for (String field : new String[]{ "field", "keyword" }) {
+            IndexableFieldType expected = original.getDocument().getField(field).fieldType();
+            IndexableFieldType actual = doc.getField(field).fieldType();
+            assertThat(actual.indexOptions()).isEqualTo(expected.indexOptions());
+            assertThat(actual.omitNorms()).isEqualTo(expected.omitNorms());
+        }
+        assertThat(doc.getField("keyword").fieldType().indexOptions()).isEqualTo(IndexOptions.DOCS);
+        assertThat(doc.getField("keyword").fieldType().omitNorms()).isTrue();
+    }
+
+    @Test
+    public void testAnalyzedDocumentsCanBeBatched() throws IOException {
+
+        AnalyzedInputDocument doc1 = AnalyzedInputDocument.analyze(buildDoc("doc1"));
+        InputDocument doc2 = InputDocument.builder("doc2").addField("field", "quick fox", ANALYZER).build();
+
+        try (DocumentBatch batch = DocumentBatch.of(doc1, doc2)) {
+            Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(4);
+            assertThat(matches.getMatchCount("doc2")).isEqualTo(1);
+            assertThat(matches.matches("2", "doc2")).isNotNull();
+        }
+    }
+
+}
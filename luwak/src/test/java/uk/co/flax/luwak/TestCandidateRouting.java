@@ -0,0 +1,205 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BitSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.HighlightingMatcher;
+import uk.co.flax.luwak.matchers.HighlightsMatch;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.PresearcherComponent;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.presearcher.WildcardNGramPresearcherComponent;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestCandidateRouting {
+
+    private static final Analyzer ANALYZER = new StandardAnalyzer();
+
+    private Monitor monitor;
+
+    @Before
+    public void setUp() throws IOException {
+        monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher());
+        monitor.update(new MonitorQuery("1", "alpha"),
+                       new MonitorQuery("2", "\"alpha bravo\""),
+                       new MonitorQuery("3", "charlie"),
+                       new MonitorQuery("4", "del*"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        monitor.close();
+    }
+
+    private static DocumentBatch buildBatch() throws IOException {
+        return DocumentBatch.of(
+                InputDocument.builder("doc0").addField("field", "alpha bravo", ANALYZER).build(),
+                InputDocument.builder("doc1").addField("field", "bravo charlie", ANALYZER).build(),
+                InputDocument.builder("doc2").addField("field", "alpha delta", ANALYZER).build()
+        );
+    }
+
+    // Records the documents that each candidate query is routed to, using null for the whole batch
+    private static class RoutingRecorder implements MatcherFactory<QueryMatch> {
+
+        final Map<String, Set<String>> routes = new HashMap<>();
+
+        @Override
+        public CandidateMatcher<QueryMatch> createMatcher(DocumentBatch docs) {
+            return new CandidateMatcher<QueryMatch>(docs) {
+
+                @Override
+                protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+                    routes.put(queryId, null);
+                }
+
+                @Override
+                protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                            BitSet candidateDocs) throws IOException {
+                    Set<String> ids = new TreeSet<>();
+                    for (int doc = 0; doc < candidateDocs.length(); doc++) {
+                        if (candidateDocs.get(doc))
+                            ids.add(docs.resolveDocId(doc));
+                    }
+                    routes.put(queryId, ids);
+                }
+
+                @Override
+                public QueryMatch resolve(QueryMatch match1, QueryMatch match2) {
+                    return match1;
+                }
+            };
+        }
+    }
+
+    @Test
+    public void testCandidatesAreRoutedToTheDocumentsThatSelectedThem() throws IOException {
+
+        RoutingRecorder recorder = new RoutingRecorder();
+        try (DocumentBatch batch = buildBatch()) {
+            monitor.match(batch, recorder);
+        }
+
+        assertThat(recorder.routes.get("1")).containsOnly("doc0", "doc2");
+        // the phrase query is indexed under a single one of its terms, so doc1 is not a candidate
+        assertThat(recorder.routes.get("2")).containsOnly("doc0", "doc2");
+        assertThat(recorder.routes.get("3")).containsOnly("doc1");
+        // wildcard queries are selected by the anytoken term, so are run against the whole batch
+        assertThat(recorder.routes).containsKey("4");
+        assertThat(recorder.routes.get("4")).isNull();
+    }
+
+    @Test
+    public void testRoutingCanBeDisabled() throws IOException {
+
+        monitor.setCandidateRouting(false);
+        RoutingRecorder recorder = new RoutingRecorder();
+        try (DocumentBatch batch = buildBatch()) {
+            monitor.match(batch, recorder);
+        }
+
+        assertThat(recorder.routes).hasSize(4);
+        for (Set<String> route : recorder.routes.values()) {
+            assertThat(route).isNull();
+        }
+    }
+
+    @Test
+    public void testComponentSubclassesMustOptInToRouting() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher(
+                new PresearcherComponent() {
+                    @Override
+                    public Query adjustPresearcherQuery(LeafReader reader, Query presearcherQuery) throws IOException {
+                        // overridden without changing the candidates, but routing must still be opted into
+                        return super.adjustPresearcherQuery(reader, presearcherQuery);
+                    }
+                }))) {
+            monitor.update(new MonitorQuery("1", "alpha"));
+            RoutingRecorder recorder = new RoutingRecorder();
+            try (DocumentBatch batch = buildBatch()) {
+                monitor.match(batch, recorder);
+            }
+            assertThat(recorder.routes).containsKey("1");
+            assertThat(recorder.routes.get("1")).isNull();
+        }
+    }
+
+    @Test
+    public void testRoutedMatchesAreTheSameAsUnroutedMatches() throws IOException {
+
+        Matches<QueryMatch> routed;
+        Matches<HighlightsMatch> routedHighlights;
+        try (DocumentBatch batch = buildBatch()) {
+            routed = monitor.match(batch, SimpleMatcher.FACTORY);
+            routedHighlights = monitor.match(batch, HighlightingMatcher.FACTORY);
+        }
+
+        monitor.setCandidateRouting(false);
+        Matches<QueryMatch> unrouted;
+        Matches<HighlightsMatch> unroutedHighlights;
+        try (DocumentBatch batch = buildBatch()) {
+            unrouted = monitor.match(batch, SimpleMatcher.FACTORY);
+            unroutedHighlights = monitor.match(batch, HighlightingMatcher.FACTORY);
+        }
+
+        for (String docId : new String[]{ "doc0", "doc1", "doc2" }) {
+            assertThat(routed.getMatchCount(docId)).isEqualTo(unrouted.getMatchCount(docId));
+            for (String queryId : new String[]{ "1", "2", "3", "4" }) {
+                assertThat(routed.matches(queryId, docId)).isEqualTo(unrouted.matches(queryId, docId));
+                assertThat(routedHighlights.matches(queryId, docId)).isEqualTo(unroutedHighlights.matches(queryId, docId));
+            }
+        }
+        assertThat(routed.matches("2", "doc0")).isNotNull();
+        assertThat(routed.matches("2", "doc1")).isNull();
+        assertThat(routed.matches("4", "doc2")).isNotNull();
+    }
+
+    @Test
+    public void testTokensAlteredByPresearcherComponentsAreRoutedToTheWholeBatch() throws IOException {
+
+        try (Monitor ngramMonitor = new Monitor(new LuceneQueryParser("field"),
+                new TermFilteredPresearcher(new WildcardNGramPresearcherComponent()))) {
+            ngramMonitor.update(new MonitorQuery("1", "alpha"), new MonitorQuery("2", "del*"));
+
+            RoutingRecorder recorder = new RoutingRecorder();
+            Matches<QueryMatch> matches;
+            try (DocumentBatch batch = buildBatch()) {
+                ngramMonitor.match(batch, recorder);
+                matches = ngramMonitor.match(batch, SimpleMatcher.FACTORY);
+            }
+
+            assertThat(recorder.routes.get("1")).isNull();
+            assertThat(recorder.routes.get("2")).isNull();
+            assertThat(matches.matches("1", "doc2")).isNotNull();
+            assertThat(matches.matches("2", "doc2")).isNotNull();
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.search.IndexSearcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestDocumentBatch {
+
+    private static final Analyzer ANALYZER = new StandardAnalyzer();
+
+    private ExecutorService executor;
+    private Monitor monitor;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(4);
+        monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher());
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "\"quick fox\""));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        monitor.close();
+        executor.shutdown();
+    }
+
+    private static List<InputDocument> buildDocs(int count) {
+        List<InputDocument> docs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String text = i % 2 == 0 ? "this is a test" : "the quick fox";
+            docs.add(InputDocument.builder("doc" + i)
+                    .addField("field", text, ANALYZER)
+                    .addField("field", "another value", ANALYZER)
+                    .build());
+        }
+        return docs;
+    }
+
+    @Test
+    public void testParallelAnalysisGivesSameResultsAsSerialAnalysis() throws IOException {
+
+        List<InputDocument> docs = buildDocs(100);
+
+        try (DocumentBatch serial = DocumentBatch.of(docs);
+             DocumentBatch parallel = new DocumentBatch.Builder().addAll(docs).setAnalysisExecutor(executor).build()) {
+
+            for (int i = 0; i < docs.size(); i++) {
+                assertThat(parallel.resolveDocId(i)).isEqualTo(serial.resolveDocId(i));
+            }
+
+            Matches<QueryMatch> serialMatches = monitor.match(serial, SimpleMatcher.FACTORY);
+            Matches<QueryMatch> parallelMatches = monitor.match(parallel, SimpleMatcher.FACTORY);
+            for (InputDocument doc : docs) {
+                assertThat(parallelMatches.getMatchCount(doc.getId()))
+                        .isEqualTo(serialMatches.getMatchCount(doc.getId()));
+                assertThat(parallelMatches.matches("1", doc.getId()))
+                        .isEqualTo(serialMatches.matches("1", doc.getId()));
+                assertThat(parallelMatches.matches("2", doc.getId()))
+                        .isEqualTo(serialMatches.matches("2", doc.getId()));
+            }
+            assertThat(parallelMatches.matches("1", "doc0")).isNotNull();
+            assertThat(parallelMatches.matches("2", "doc1")).isNotNull();
+        }
+    }
+
+    @Test
+    public void testPooledBatchesCanBeAnalyzedInParallel() throws IOException {
+
+        try (DocumentBatchPool pool = new DocumentBatchPool().setAnalysisExecutor(executor)) {
+            for (int i = 0; i < 3; i++) {
+                try (DocumentBatch batch = pool.acquire(buildDocs(10))) {
+                    Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+                    assertThat(matches.matches("1", "doc8")).isNotNull();
+                    assertThat(matches.matches("2", "doc9")).isNotNull();
+                    assertThat(matches.matches("2", "doc8")).isNull();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSearcherIsSharedWithinABatch() throws IOException {
+
+        try (DocumentBatch batch = DocumentBatch.of(buildDocs(4))) {
+            IndexSearcher searcher = batch.getSearcher();
+            assertThat(batch.getSearcher()).isSameAs(searcher);
+            assertThat(searcher.getIndexReader()).isSameAs(batch.getIndexReader());
+        }
+    }
+
+    @Test
+    public void testReusedBatchesGetANewSearcher() throws IOException {
+
+        try (DocumentBatchPool pool = new DocumentBatchPool()) {
+            IndexSearcher first;
+            try (DocumentBatch batch = pool.acquire(buildDocs(4))) {
+                first = batch.getSearcher();
+            }
+            try (DocumentBatch batch = pool.acquire(buildDocs(6))) {
+                IndexSearcher searcher = batch.getSearcher();
+                assertThat(searcher).isNotSameAs(first);
+                assertThat(searcher.getIndexReader()).isSameAs(batch.getIndexReader());
+                assertThat(monitor.match(batch, SimpleMatcher.FACTORY).matches("2", "doc5")).isNotNull();
+            }
+        }
+    }
+
+}
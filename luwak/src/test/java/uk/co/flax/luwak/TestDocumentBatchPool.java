@@ -0,0 +1,151 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestDocumentBatchPool {
+
+    private Monitor monitor;
+
+    @Before
+    public void setUp() throws IOException {
+        monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher());
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "Foo"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        monitor.close();
+    }
+
+    private static InputDocument doc(String id, String text) {
+        return InputDocument.builder(id).addField("field", text, new StandardAnalyzer()).build();
+    }
+
+    @Test
+    public void testBatchesAreReused() throws IOException {
+
+        try (DocumentBatchPool pool = new DocumentBatchPool()) {
+
+            DocumentBatch first;
+            try (DocumentBatch batch = pool.acquire(doc("doc1", "test"), doc("doc2", "foo"))) {
+                first = batch;
+                Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+                assertThat(matches.matches("1", "doc1")).isNotNull();
+                assertThat(matches.matches("2", "doc2")).isNotNull();
+            }
+            assertThat(pool.getIdleCount()).isEqualTo(1);
+
+            try (DocumentBatch batch = pool.acquire(doc("doc3", "foo"), doc("doc4", "bar"), doc("doc5", "test"))) {
+                assertThat(batch).isSameAs(first);
+                Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+                assertThat(matches.matches("2", "doc3")).isNotNull();
+                assertThat(matches.matches("1", "doc5")).isNotNull();
+                assertThat(matches.getMatchCount("doc1")).isEqualTo(0);
+                assertThat(matches.getMatchCount("doc4")).isEqualTo(0);
+            }
+        }
+    }
+
+    @Test
+    public void testSingletonBatchesAreReused() throws IOException {
+
+        try (DocumentBatchPool pool = new DocumentBatchPool()) {
+
+            DocumentBatch first = pool.acquire(doc("doc1", "test"));
+            assertThat(monitor.match(first, SimpleMatcher.FACTORY).matches("1", "doc1")).isNotNull();
+            first.close();
+
+            try (DocumentBatch batch = pool.acquire(doc("doc2", "foo"))) {
+                assertThat(batch).isSameAs(first);
+                Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+                assertThat(matches.matches("2", "doc2")).isNotNull();
+                assertThat(matches.matches("1", "doc2")).isNull();
+            }
+        }
+    }
+
+    @Test
+    public void testDoubleCloseOnlyReleasesOnce() throws IOException {
+
+        try (DocumentBatchPool pool = new DocumentBatchPool()) {
+            DocumentBatch batch = pool.acquire(doc("doc1", "test"));
+            batch.close();
+            batch.close();
+            assertThat(pool.getIdleCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testRetainedBatchesStayOpenUntilReleased() throws IOException {
+
+        try (DocumentBatchPool pool = new DocumentBatchPool()) {
+            DocumentBatch batch = pool.acquire(doc("doc1", "test"), doc("doc2", "foo"));
+            batch.retain();
+            batch.close();
+            assertThat(pool.getIdleCount()).isEqualTo(0);
+            assertThat(monitor.match(batch, SimpleMatcher.FACTORY).matches("1", "doc1")).isNotNull();
+            batch.release();
+            assertThat(pool.getIdleCount()).isEqualTo(0);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosedBatchesCannotBeRetained() throws IOException {
+
+        try (DocumentBatchPool pool = new DocumentBatchPool()) {
+            DocumentBatch batch = pool.acquire(doc("doc1", "test"));
+            batch.close();
+            batch.retain();
+        }
+    }
+
+    @Test
+    public void testDocumentsInABatchUseTheirOwnAnalyzers() throws IOException {
+
+        InputDocument lowercased = doc("doc1", "Foo");
+        InputDocument notLowercased = InputDocument.builder("doc2")
+                .addField("field", "Foo", new WhitespaceAnalyzer()).build();
+
+        try (DocumentBatchPool pool = new DocumentBatchPool();
+             DocumentBatch batch = pool.acquire(notLowercased, lowercased)) {
+            Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+            assertThat(matches.matches("2", "doc1")).isNotNull();
+            assertThat(matches.matches("2", "doc2")).isNull();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCannotAcquireFromClosedPool() throws IOException {
+        DocumentBatchPool pool = new DocumentBatchPool();
+        pool.close();
+        pool.acquire(doc("doc1", "test"));
+    }
+
+}
@@ -0,0 +1,181 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BitSet;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.*;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestExactQueries {
+
+    private static final Analyzer ANALYZER = new StandardAnalyzer();
+
+    private static final String[] QUERIES = new String[]{
+            "alpha", "alpha bravo", "alpha (bravo charlie)", "+alpha +bravo", "alpha -bravo",
+            "\"alpha bravo\"", "alph*"
+    };
+
+    private static final Set<String> EXACT = new HashSet<>(Arrays.asList("0", "1", "2"));
+
+    private static Query parse(String query) throws Exception {
+        return new LuceneQueryParser("field").parse(query, Collections.<String, String>emptyMap());
+    }
+
+    // Counts the candidate queries that are actually run against the batch
+    private static class CountingMatcherFactory implements MatcherFactory<QueryMatch> {
+
+        final Set<String> queriesRun = new HashSet<>();
+
+        @Override
+        public CandidateMatcher<QueryMatch> createMatcher(DocumentBatch docs) {
+            return new SimpleMatcher(docs) {
+                @Override
+                protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                            BitSet candidateDocs) throws IOException {
+                    queriesRun.add(queryId);
+                    super.doMatchQuery(queryId, matchQuery, metadata, candidateDocs);
+                }
+            };
+        }
+    }
+
+    private static Monitor buildMonitor(Presearcher presearcher) throws IOException {
+        Monitor monitor = new Monitor(new LuceneQueryParser("field"), presearcher);
+        for (int i = 0; i < QUERIES.length; i++) {
+            monitor.update(new MonitorQuery(Integer.toString(i), QUERIES[i]));
+        }
+        return monitor;
+    }
+
+    private static List<InputDocument> buildDocs() {
+        return Arrays.asList(
+                InputDocument.builder("doc0").addField("field", "alpha bravo", ANALYZER).build(),
+                InputDocument.builder("doc1").addField("field", "charlie", ANALYZER).build(),
+                InputDocument.builder("doc2").addField("field", "alphabet delta", ANALYZER).build()
+        );
+    }
+
+    @Test
+    public void testTermDisjunctionsAreExact() throws Exception {
+        Presearcher presearcher = new TermFilteredPresearcher();
+        for (int i = 0; i < QUERIES.length; i++) {
+            assertThat(presearcher.isExact(parse(QUERIES[i]))).isEqualTo(EXACT.contains(Integer.toString(i)));
+        }
+        // TermsQueries are indexed under ANYTOKEN, so every document selects them
+        assertThat(presearcher.isExact(new TermsQuery(new Term("field", "alpha"), new Term("f2", "bravo")))).isFalse();
+    }
+
+    @Test
+    public void testComponentsThatAlterDocumentTokensDisableExactMatching() throws Exception {
+        assertThat(new TermFilteredPresearcher(new WildcardNGramPresearcherComponent()).isExact(parse("alpha"))).isFalse();
+        assertThat(new TermFilteredPresearcher(new FieldFilterPresearcherComponent("lang")).isExact(parse("alpha"))).isTrue();
+        assertThat(new MatchAllPresearcher().isExact(parse("alpha"))).isFalse();
+    }
+
+    @Test
+    public void testComponentSubclassesMustOptInToExactMatching() throws Exception {
+        assertThat(new TermFilteredPresearcher(new PresearcherComponent()).isExact(parse("alpha"))).isTrue();
+        assertThat(new TermFilteredPresearcher(new PresearcherComponent() {
+            @Override
+            public void adjustQueryDocument(Document doc, Map<String, String> metadata) {
+                // overridden for reasons unrelated to exact matching
+            }
+        }).isExact(parse("alpha"))).isFalse();
+        assertThat(new TermFilteredPresearcher(new PresearcherComponent() {
+            @Override
+            public boolean preservesExactMatches() {
+                return true;
+            }
+        }).isExact(parse("alpha"))).isTrue();
+    }
+
+    @Test
+    public void testExactQueriesAreNotRunAgainstSingleDocuments() throws IOException {
+        try (Monitor monitor = buildMonitor(new TermFilteredPresearcher())) {
+            for (InputDocument doc : buildDocs()) {
+                CountingMatcherFactory factory = new CountingMatcherFactory();
+                Matches<QueryMatch> matches = monitor.match(doc, factory);
+                Matches<QueryMatch> expected = monitor.match(doc, SimpleMatcher.FACTORY);
+                for (String queryId : factory.queriesRun) {
+                    assertThat(EXACT.contains(queryId)).isFalse();
+                }
+                assertThat(matches.getMatchCount(doc.getId())).isEqualTo(expected.getMatchCount(doc.getId()));
+            }
+
+            Matches<QueryMatch> matches = monitor.match(buildDocs().get(0), SimpleMatcher.FACTORY);
+            assertThat(matches.matches("0", "doc0")).isNotNull();
+            assertThat(matches.matches("1", "doc0")).isNotNull();
+            assertThat(matches.matches("2", "doc0")).isNotNull();
+            assertThat(matches.matches("3", "doc0")).isNotNull();
+            assertThat(matches.matches("4", "doc0")).isNull();
+        }
+    }
+
+    @Test
+    public void testExactQueriesInBatches() throws IOException {
+        try (Monitor monitor = buildMonitor(new TermFilteredPresearcher())) {
+            for (boolean routing : new boolean[]{ true, false }) {
+                monitor.setCandidateRouting(routing);
+                CountingMatcherFactory factory = new CountingMatcherFactory();
+                Matches<QueryMatch> matches;
+                try (DocumentBatch batch = DocumentBatch.of(buildDocs())) {
+                    matches = monitor.match(batch, factory);
+                }
+                for (String queryId : factory.queriesRun) {
+                    assertThat(EXACT.contains(queryId)).isFalse();
+                }
+
+                assertThat(matches.matches("0", "doc0")).isNotNull();
+                assertThat(matches.matches("0", "doc1")).isNull();
+                assertThat(matches.matches("0", "doc2")).isNull();
+                assertThat(matches.matches("1", "doc1")).isNull();
+                assertThat(matches.matches("2", "doc1")).isNotNull();
+                assertThat(matches.matches("2", "doc2")).isNull();
+                assertThat(matches.matches("6", "doc2")).isNotNull();
+                assertThat(matches.getMatchCount("doc0")).isEqualTo(6);
+                assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+                assertThat(matches.getMatchCount("doc2")).isEqualTo(1);
+            }
+        }
+    }
+
+    @Test
+    public void testExactQueriesWithMultipassPresearcher() throws IOException {
+        try (Monitor monitor = buildMonitor(new MultipassTermFilteredPresearcher(2, 0))) {
+            try (DocumentBatch batch = DocumentBatch.of(buildDocs())) {
+                Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+                assertThat(matches.getMatchCount("doc0")).isEqualTo(6);
+                assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+                assertThat(matches.getMatchCount("doc2")).isEqualTo(1);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import uk.co.flax.luwak.matchers.HighlightingMatcher;
+import uk.co.flax.luwak.matchers.ParallelMatcher;
+import uk.co.flax.luwak.matchers.ScoringMatcher;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestIndexFeatures {
+
+    @Rule
+    public ExpectedException expected = ExpectedException.none();
+
+    private Monitor monitor;
+
+    @Before
+    public void setUp() throws IOException {
+        monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher());
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "\"quick fox\""));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        monitor.close();
+    }
+
+    private static InputDocument doc(String id, String text) {
+        return InputDocument.builder(id).addField("field", text, new StandardAnalyzer()).build();
+    }
+
+    @Test
+    public void testFactoriesDeclareRequiredFeatures() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertThat(IndexFeatures.required(SimpleMatcher.FACTORY)).isEqualTo(IndexFeatures.POSITIONS);
+            assertThat(IndexFeatures.required(ScoringMatcher.FACTORY)).isEqualTo(IndexFeatures.SCORING);
+            assertThat(IndexFeatures.required(HighlightingMatcher.FACTORY)).isEqualTo(IndexFeatures.ALL);
+            assertThat(IndexFeatures.required(ParallelMatcher.factory(executor, SimpleMatcher.FACTORY)))
+                    .isEqualTo(IndexFeatures.POSITIONS);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCoverage() {
+        assertThat(IndexFeatures.ALL.covers(IndexFeatures.POSITIONS)).isTrue();
+        assertThat(IndexFeatures.SCORING.covers(IndexFeatures.POSITIONS)).isTrue();
+        assertThat(IndexFeatures.POSITIONS.covers(IndexFeatures.SCORING)).isFalse();
+        assertThat(IndexFeatures.POSITIONS.covers(IndexFeatures.ALL)).isFalse();
+        assertThat(IndexFeatures.DOCS.covers(IndexFeatures.POSITIONS)).isFalse();
+    }
+
+    @Test
+    public void testBatchesOnlyIndexRequiredFeatures() throws IOException {
+
+        try (DocumentBatch batch = new DocumentBatch.Builder()
+                .add(doc("doc1", "the quick fox"))
+                .add(doc("doc2", "fox quick test"))
+                .setIndexFeatures(IndexFeatures.POSITIONS)
+                .build()) {
+
+            FieldInfo info = batch.getIndexReader().getFieldInfos().fieldInfo("field");
+            assertThat(info.getIndexOptions()).isEqualTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+            assertThat(info.hasNorms()).isFalse();
+
+            Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+            assertThat(matches.matches("2", "doc1")).isNotNull();
+            assertThat(matches.matches("2", "doc2")).isNull();
+            assertThat(matches.matches("1", "doc2")).isNotNull();
+        }
+    }
+
+    @Test
+    public void testSingleDocumentMatchesUseFactoryFeatures() throws IOException {
+        InputDocument doc = doc("doc", "the quick fox test");
+        assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(2);
+        assertThat(monitor.match(doc, HighlightingMatcher.FACTORY).matches("1", "doc").getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testMatchingBatchWithoutRequiredFeaturesThrowsException() throws IOException {
+
+        expected.expect(IllegalArgumentException.class);
+        expected.expectMessage("requires");
+
+        try (DocumentBatch batch = new DocumentBatch.Builder()
+                .add(doc("doc1", "test"))
+                .setIndexFeatures(IndexFeatures.POSITIONS)
+                .build()) {
+            monitor.match(batch, HighlightingMatcher.FACTORY);
+        }
+    }
+
+}
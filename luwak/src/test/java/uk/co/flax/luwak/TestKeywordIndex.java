@@ -0,0 +1,274 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BitSet;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.FieldFilterPresearcherComponent;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestKeywordIndex {
+
+    private static final Analyzer ANALYZER = new StandardAnalyzer();
+
+    private static final String[] QUERIES = new String[]{
+            "alpha",
+            "\"alpha bravo\"",
+            "\"bravo alpha\"",
+            "\"alpha bravo charlie\"",
+            "\"charlie charlie\"",
+            "delta echo",
+            "alpha^2",
+            "\"alpha the bravo\"",
+            "+alpha +delta",
+            "\"alpha charlie\"~2",
+            "missing"
+    };
+
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList("0", "1", "2", "3", "4", "5", "6"));
+
+    private static List<InputDocument> buildDocs() {
+        String[] texts = new String[]{
+                "alpha bravo charlie", "alpha the bravo", "bravo alpha delta", "charlie charlie echo",
+                "alpha alpha bravo", "foxtrot"
+        };
+        List<InputDocument> docs = new ArrayList<>();
+        for (int i = 0; i < texts.length; i++) {
+            docs.add(InputDocument.builder("doc" + i).addField("field", texts[i], ANALYZER).build());
+        }
+        return docs;
+    }
+
+    private static Monitor buildMonitor(Presearcher presearcher, boolean keywords) throws IOException {
+        Monitor monitor = new Monitor(new LuceneQueryParser("field"), presearcher,
+                new QueryIndexConfiguration().useKeywordIndex(keywords));
+        for (int i = 0; i < QUERIES.length; i++) {
+            monitor.update(new MonitorQuery(Integer.toString(i), QUERIES[i]));
+        }
+        return monitor;
+    }
+
+    // Records the queries that are run against the batch
+    private static class CountingMatcherFactory implements MatcherFactory<QueryMatch> {
+
+        final Set<String> queriesRun = new HashSet<>();
+
+        @Override
+        public CandidateMatcher<QueryMatch> createMatcher(DocumentBatch docs) {
+            return new SimpleMatcher(docs) {
+                @Override
+                protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+                    queriesRun.add(queryId);
+                    super.doMatchQuery(queryId, matchQuery, metadata);
+                }
+
+                @Override
+                protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                            BitSet candidateDocs) throws IOException {
+                    queriesRun.add(queryId);
+                    super.doMatchQuery(queryId, matchQuery, metadata, candidateDocs);
+                }
+            };
+        }
+    }
+
+    private static void assertSameMatches(Matches<QueryMatch> expected, Matches<QueryMatch> actual) {
+        for (InputDocument doc : buildDocs()) {
+            assertThat(actual.getMatchCount(doc.getId())).isEqualTo(expected.getMatchCount(doc.getId()));
+            for (int i = 0; i < QUERIES.length; i++) {
+                String queryId = Integer.toString(i);
+                assertThat(actual.matches(queryId, doc.getId())).isEqualTo(expected.matches(queryId, doc.getId()));
+            }
+        }
+    }
+
+    @Test
+    public void testKeywordMatchesAreTheSameAsPresearcherMatches() throws IOException {
+        for (Presearcher presearcher : new Presearcher[]{ new TermFilteredPresearcher(), new MatchAllPresearcher() }) {
+            try (Monitor expectedMonitor = buildMonitor(presearcher, false);
+                 Monitor keywordMonitor = buildMonitor(presearcher, true);
+                 DocumentBatch batch = DocumentBatch.of(buildDocs())) {
+
+                CountingMatcherFactory factory = new CountingMatcherFactory();
+                Matches<QueryMatch> expected = expectedMonitor.match(batch, SimpleMatcher.FACTORY);
+                Matches<QueryMatch> actual = keywordMonitor.match(batch, factory);
+
+                assertSameMatches(expected, actual);
+                for (String queryId : factory.queriesRun) {
+                    assertThat(KEYWORDS.contains(queryId)).isFalse();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPhrases() throws IOException {
+        try (Monitor monitor = buildMonitor(new TermFilteredPresearcher(), true);
+             DocumentBatch batch = DocumentBatch.of(buildDocs())) {
+            Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+
+            assertThat(matches.matches("1", "doc0")).isNotNull();
+            assertThat(matches.matches("1", "doc1")).isNull();     // stopword leaves a gap
+            assertThat(matches.matches("1", "doc4")).isNotNull();
+            assertThat(matches.matches("2", "doc2")).isNotNull();
+            assertThat(matches.matches("2", "doc4")).isNull();
+            assertThat(matches.matches("3", "doc0")).isNotNull();
+            assertThat(matches.matches("4", "doc3")).isNotNull();
+            assertThat(matches.matches("7", "doc1")).isNotNull();
+            assertThat(matches.getMatchCount("doc5")).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testSingleDocuments() throws IOException {
+        try (Monitor expectedMonitor = buildMonitor(new TermFilteredPresearcher(), false);
+             Monitor keywordMonitor = buildMonitor(new TermFilteredPresearcher(), true)) {
+            for (InputDocument doc : buildDocs()) {
+                Matches<QueryMatch> expected = expectedMonitor.match(doc, SimpleMatcher.FACTORY);
+                Matches<QueryMatch> actual = keywordMonitor.match(doc, SimpleMatcher.FACTORY);
+                assertThat(actual.getMatchCount(doc.getId())).isEqualTo(expected.getMatchCount(doc.getId()));
+            }
+        }
+    }
+
+    @Test
+    public void testUpdatesAndDeletes() throws IOException {
+        InputDocument doc = InputDocument.builder("doc").addField("field", "alpha bravo", ANALYZER).build();
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher(),
+                new QueryIndexConfiguration().useKeywordIndex(true))) {
+
+            monitor.update(new MonitorQuery("1", "alpha"), new MonitorQuery("2", "\"alpha bravo\""));
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(2);
+
+            monitor.update(new MonitorQuery("1", "+alpha +charlie"));
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).matches("1", "doc")).isNull();
+
+            monitor.deleteById("2");
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(0);
+            assertThat(monitor.getQueryCount()).isEqualTo(1);
+
+            monitor.update(new MonitorQuery("3", "bravo"));
+            monitor.clear();
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testConcurrentUpdatesAndMatches() throws Exception {
+        final InputDocument doc = InputDocument.builder("doc").addField("field", "alpha bravo", ANALYZER).build();
+        try (final Monitor monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher(),
+                new QueryIndexConfiguration().useKeywordIndex(true))) {
+
+            monitor.update(new MonitorQuery("1", "alpha"));
+
+            // the query moves between the keyword index and the queryindex, but should
+            // always be selected from exactly one of them
+            final AtomicBoolean done = new AtomicBoolean(false);
+            final AtomicReference<Exception> error = new AtomicReference<>();
+            Thread updater = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            monitor.update(new MonitorQuery("1", i % 2 == 0 ? "+alpha +bravo" : "alpha"));
+                        }
+                    } catch (Exception e) {
+                        error.set(e);
+                    } finally {
+                        done.set(true);
+                    }
+                }
+            };
+            updater.start();
+            while (done.get() == false) {
+                assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(1);
+            }
+            updater.join();
+            assertThat(error.get()).isNull();
+        }
+    }
+
+    @Test
+    public void testKeywordIndexIsRepopulated() throws IOException {
+        Path indexDirectory = Files.createTempDirectory("keyword-index");
+        InputDocument doc = InputDocument.builder("doc").addField("field", "alpha bravo", ANALYZER).build();
+        QueryIndexConfiguration config = new QueryIndexConfiguration().useKeywordIndex(true);
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory), config)) {
+            monitor.update(new MonitorQuery("1", "alpha"), new MonitorQuery("2", "\"alpha bravo\""));
+        }
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory), config)) {
+            assertThat(monitor.getQueryCount()).isEqualTo(2);
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void testPhrasesAreRunIfBatchHasNoPositions() throws IOException {
+        MatcherFactory<QueryMatch> factory = new RequiresIndexFeatures.Factory<QueryMatch>(IndexFeatures.DOCS) {
+            @Override
+            public CandidateMatcher<QueryMatch> createMatcher(DocumentBatch docs) {
+                return new SimpleMatcher(docs);
+            }
+        };
+        try (Monitor monitor = buildMonitor(new TermFilteredPresearcher(), true);
+             DocumentBatch batch = new DocumentBatch.Builder().addAll(buildDocs()).setIndexFeatures(IndexFeatures.DOCS).build()) {
+            Matches<QueryMatch> matches = monitor.match(batch, factory);
+            assertThat(matches.matches("0", "doc0")).isNotNull();
+            assertThat(matches.matches("5", "doc3")).isNotNull();
+            // phrase queries can't be run without positions
+            assertThat(matches.getErrors()).isNotEmpty();
+        }
+    }
+
+    @Test
+    public void testKeywordIndexIsNotUsedIfThePresearcherFiltersQueries() throws IOException {
+        Presearcher presearcher = new TermFilteredPresearcher(new FieldFilterPresearcherComponent("language"));
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), presearcher,
+                new QueryIndexConfiguration().useKeywordIndex(true))) {
+            monitor.update(new MonitorQuery("en", "alpha", Collections.singletonMap("language", "en")),
+                    new MonitorQuery("de", "alpha", Collections.singletonMap("language", "de")));
+            InputDocument doc = InputDocument.builder("doc")
+                    .addField("field", "alpha bravo", ANALYZER)
+                    .addField("language", "en", ANALYZER)
+                    .build();
+            Matches<QueryMatch> matches = monitor.match(doc, SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc")).isEqualTo(1);
+            assertThat(matches.matches("en", "doc")).isNotNull();
+        }
+    }
+
+}
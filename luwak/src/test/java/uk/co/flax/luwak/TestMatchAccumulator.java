@@ -0,0 +1,141 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.ScoringMatch;
+import uk.co.flax.luwak.matchers.ScoringMatcher;
+import uk.co.flax.luwak.matchers.TopKScoringMatcher;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class TestMatchAccumulator {
+
+    private static DocumentBatch buildBatch() throws IOException {
+        return DocumentBatch.of(InputDocument.builder("doc0").build(), InputDocument.builder("doc1").build());
+    }
+
+    @Test
+    public void testConflictingMatchesAreResolved() throws Exception {
+
+        final int threads = 8;
+        final int queries = 100;
+
+        try (DocumentBatch batch = buildBatch()) {
+            final MatchAccumulator<ScoringMatch> accumulator = new MatchAccumulator<>(batch);
+            final ScoringMatcher resolver = new ScoringMatcher(batch);
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int q = 0; q < queries; q++) {
+                            accumulator.add(1, new ScoringMatch(Integer.toString(q), "doc1", thread), resolver);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+
+            assertThat(accumulator.getMatches(0)).isNull();
+            assertThat(accumulator.getMatches(1)).hasSize(queries);
+            for (int q = 0; q < queries; q++) {
+                assertThat(accumulator.get(1, Integer.toString(q)).getScore()).isEqualTo(threads - 1);
+            }
+        }
+    }
+
+    @Test
+    public void testMatchersWriteToAccumulator() throws IOException {
+        try (DocumentBatch batch = buildBatch()) {
+            MatchAccumulator<QueryMatch> accumulator = new MatchAccumulator<>(batch);
+            CandidateMatcher<QueryMatch> matcher = new CandidateMatcher<QueryMatch>(batch) {
+                @Override
+                protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+                    addMatch(new QueryMatch(queryId, "doc0"));
+                }
+
+                @Override
+                public QueryMatch resolve(QueryMatch match1, QueryMatch match2) {
+                    return match1;
+                }
+            };
+            matcher.setAccumulator(accumulator);
+            matcher.matchQuery("1", new MatchAllDocsQuery(), null);
+
+            assertThat(matcher.getMatches().getMatchCount("doc0")).isEqualTo(0);
+            assertThat(accumulator.get(0, "1")).isEqualTo(new QueryMatch("1", "doc0"));
+        }
+    }
+
+    @Test
+    public void testParentMatcherTakesOverAccumulatedMatches() throws IOException {
+        try (DocumentBatch batch = buildBatch()) {
+            ScoringMatcher resolver = new ScoringMatcher(batch);
+            MatchAccumulator<ScoringMatch> accumulator = new MatchAccumulator<>(batch);
+            accumulator.add(0, new ScoringMatch("1", "doc0", 1), resolver);
+            accumulator.add(0, new ScoringMatch("1", "doc0", 2), resolver);
+            accumulator.add(1, new ScoringMatch("2", "doc1", 3), resolver);
+
+            ScoringMatcher parent = new ScoringMatcher(batch);
+            parent.takeMatches(accumulator);
+
+            Matches<ScoringMatch> matches = parent.getMatches();
+            assertThat(matches.getMatchCount("doc0")).isEqualTo(1);
+            assertThat(matches.matches("1", "doc0").getScore()).isEqualTo(2);
+            assertThat(matches.matches("2", "doc1").getScore()).isEqualTo(3);
+            assertThat(parent.getMatches().getMatchCount("doc1")).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testAccumulatorsAreOnlyCreatedIfEveryMatcherSupportsThem() throws IOException {
+        try (DocumentBatch batch = buildBatch()) {
+            ScoringMatcher scoring = new ScoringMatcher(batch);
+            TopKScoringMatcher topK = new TopKScoringMatcher(batch, 5, 0);
+
+            assertThat(CandidateMatcher.createAccumulator(batch, Arrays.asList(scoring, scoring))).isNotNull();
+            assertThat(CandidateMatcher.createAccumulator(batch, Arrays.asList(scoring, topK))).isNull();
+
+            try {
+                topK.setAccumulator(new MatchAccumulator<ScoringMatch>(batch));
+                fail("Expected an IllegalStateException");
+            }
+            catch (IllegalStateException e) {
+                assertThat(e.getMessage()).contains("TopKScoringMatcher");
+            }
+        }
+    }
+
+}
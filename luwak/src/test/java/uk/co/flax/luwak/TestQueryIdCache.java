@@ -0,0 +1,118 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestQueryIdCache {
+
+    private static final InputDocument DOC = InputDocument.builder("doc")
+            .addField("field", "hit", new WhitespaceAnalyzer()).build();
+
+    private static Set<String> matchingIds(Monitor monitor) throws IOException {
+        Set<String> ids = new HashSet<>();
+        for (QueryMatch match : monitor.match(DOC, SimpleMatcher.FACTORY).getMatches("doc")) {
+            ids.add(match.getQueryId());
+        }
+        return ids;
+    }
+
+    private static Set<String> ids(int from, int to) {
+        Set<String> ids = new HashSet<>();
+        for (int i = from; i < to; i++) {
+            ids.add(Integer.toString(i));
+        }
+        return ids;
+    }
+
+    @Test
+    public void testIdsAreCorrectAcrossUpdatesDeletesMergesAndPurges() throws IOException {
+        IndexWriter writer = Monitor.defaultIndexWriter(new RAMDirectory());
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher(), writer)) {
+
+            // one segment per query
+            for (int i = 0; i < 20; i++) {
+                monitor.update(new MonitorQuery(Integer.toString(i), "hit"));
+            }
+            assertThat(matchingIds(monitor)).isEqualTo(ids(0, 20));
+
+            // updated queries move to new segments, and must not pick up stale ids
+            for (int i = 0; i < 5; i++) {
+                monitor.update(new MonitorQuery(Integer.toString(i), "miss"));
+            }
+            monitor.update(new MonitorQuery("20", "hit"));
+            for (int i = 5; i < 10; i++) {
+                monitor.deleteById(Integer.toString(i));
+            }
+            Set<String> expected = ids(10, 21);
+            assertThat(matchingIds(monitor)).isEqualTo(expected);
+
+            // merged segments have new ordinals for the same ids
+            writer.forceMerge(1);
+            monitor.update(new MonitorQuery("21", "hit"));
+            expected.add("21");
+            assertThat(matchingIds(monitor)).isEqualTo(expected);
+
+            monitor.purgeCache();
+            assertThat(matchingIds(monitor)).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void testEntriesAreEvictedWhenSegmentCoresClose() throws IOException {
+        QueryIndex.QueryIdCache cache = new QueryIndex.QueryIdCache();
+        Directory directory = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            for (int i = 0; i < 3; i++) {
+                Document doc = new Document();
+                doc.add(new SortedDocValuesField(Monitor.FIELDS.id, new BytesRef("query" + i)));
+                writer.addDocument(doc);
+                writer.commit();
+            }
+        }
+
+        DirectoryReader reader = DirectoryReader.open(directory);
+        assertThat(reader.leaves()).hasSize(3);
+        for (LeafReaderContext ctx : reader.leaves()) {
+            SortedDocValues ids = ctx.reader().getSortedDocValues(Monitor.FIELDS.id);
+            String[] segmentIds = cache.forSegment(ctx.reader(), ids);
+            assertThat(cache.forSegment(ctx.reader(), ids) == segmentIds).isTrue();
+            assertThat(QueryIndex.QueryIdCache.get(segmentIds, ids, 0)).isEqualTo("query" + ctx.ord);
+        }
+        assertThat(cache.size()).isEqualTo(3);
+
+        reader.close();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+}
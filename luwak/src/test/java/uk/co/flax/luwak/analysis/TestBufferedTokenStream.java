@@ -0,0 +1,60 @@
+package uk.co.flax.luwak.analysis;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.junit.Test;
+
+import static uk.co.flax.luwak.assertions.TokenStreamAssert.assertThat;
+
+public class TestBufferedTokenStream {
+
+    private final Analyzer analyzer = new StandardAnalyzer();
+
+    @Test
+    public void testTokensAreReplayed() throws IOException {
+
+        TokenStream ts = BufferedTokenStream.buffer(analyzer.tokenStream("f", "the quick brown fox"));
+
+        assertThat(ts)
+                .nextEquals("quick", 2, 4, 9)
+                .nextEquals("brown", 3, 10, 15)
+                .nextEquals("fox", 4, 16, 19)
+                .isExhausted();
+
+        assertThat(ts)
+                .nextEquals("quick", 2, 4, 9)
+                .nextEquals("brown", 3, 10, 15)
+                .nextEquals("fox", 4, 16, 19)
+                .isExhausted();
+    }
+
+    @Test
+    public void testSourceAnalyzerCanBeReusedWhileBufferIsHeld() throws IOException {
+
+        TokenStream first = BufferedTokenStream.buffer(analyzer.tokenStream("f", "hello world"));
+        TokenStream second = BufferedTokenStream.buffer(analyzer.tokenStream("f", "goodbye"));
+
+        assertThat(second).nextEquals("goodbye").isExhausted();
+        assertThat(first).nextEquals("hello").nextEquals("world").isExhausted();
+    }
+
+}
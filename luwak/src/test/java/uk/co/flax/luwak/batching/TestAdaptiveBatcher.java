@@ -0,0 +1,134 @@
+package uk.co.flax.luwak.batching;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestAdaptiveBatcher {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // fixed per-batch overhead of 10ms, plus 1ms per doc
+    private static BatchStatistics cheapDocs(int batchSize) {
+        return new BatchStatistics(batchSize, 10 * MILLIS, 0, batchSize * MILLIS, 0);
+    }
+
+    // per-doc cost grows with batch size, so throughput peaks at around 17 docs
+    private static BatchStatistics expensiveBatches(int batchSize) {
+        long perDoc = MILLIS + (batchSize * batchSize * MILLIS) / 1024;
+        return new BatchStatistics(batchSize, 10 * MILLIS, 0, batchSize * perDoc, batchSize);
+    }
+
+    @Test
+    public void testBatchSizeGrowsWhenThroughputImproves() throws IOException {
+        try (AdaptiveBatcher batcher = new AdaptiveBatcher(1, 1, 64, 0, TimeUnit.MILLISECONDS)) {
+            batcher.setSamplesPerStep(1);
+            for (int i = 0; i < 10; i++) {
+                batcher.record(cheapDocs(batcher.getBatchSize()));
+            }
+            assertThat(batcher.getBatchSize()).isGreaterThanOrEqualTo(32);
+        }
+    }
+
+    @Test
+    public void testBatchSizeConvergesOnPeakThroughput() throws IOException {
+        try (AdaptiveBatcher batcher = new AdaptiveBatcher(1, 1, 1024, 0, TimeUnit.MILLISECONDS)) {
+            batcher.setSamplesPerStep(1);
+            for (int i = 0; i < 100; i++) {
+                batcher.record(expensiveBatches(batcher.getBatchSize()));
+            }
+            assertThat(batcher.getBatchSize()).isBetween(8, 64);
+        }
+    }
+
+    @Test
+    public void testBatchSizeShrinksWhenLatencyCeilingIsExceeded() throws IOException {
+        try (AdaptiveBatcher batcher = new AdaptiveBatcher(64, 1, 1024, 30, TimeUnit.MILLISECONDS)) {
+            batcher.record(cheapDocs(64));
+            assertThat(batcher.getBatchSize()).isLessThan(64);
+            for (int i = 0; i < 50; i++) {
+                batcher.record(cheapDocs(batcher.getBatchSize()));
+            }
+            // 10ms overhead + 1ms per doc, so we can't go beyond 20 docs
+            assertThat(batcher.getBatchSize()).isLessThanOrEqualTo(20);
+            assertThat(cheapDocs(batcher.getBatchSize()).getTotalTime()).isLessThanOrEqualTo(30 * MILLIS);
+        }
+    }
+
+    @Test
+    public void testHistoryIsBounded() throws IOException {
+        try (AdaptiveBatcher batcher = new AdaptiveBatcher(10, TimeUnit.SECONDS)) {
+            batcher.setHistorySize(5);
+            for (int i = 0; i < 20; i++) {
+                batcher.record(cheapDocs(i + 1));
+            }
+            List<BatchStatistics> history = batcher.getHistory();
+            assertThat(history).hasSize(5);
+            assertThat(history.get(0).getBatchSize()).isEqualTo(16);
+            assertThat(history.get(4).getBatchSize()).isEqualTo(20);
+        }
+    }
+
+    @Test
+    public void testMatchingDocumentStreams() throws IOException {
+
+        List<InputDocument> docs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            docs.add(InputDocument.builder("doc" + i)
+                    .addField("field", i % 2 == 0 ? "test" : "other", new StandardAnalyzer())
+                    .build());
+        }
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher());
+             AdaptiveBatcher batcher = new AdaptiveBatcher(4, 1, 16, 0, TimeUnit.MILLISECONDS)) {
+            monitor.update(new MonitorQuery("1", "test"));
+
+            int matched = 0;
+            Iterator<InputDocument> it = docs.iterator();
+            while (it.hasNext()) {
+                List<InputDocument> batch = batcher.nextBatch(it);
+                assertThat(batch.size()).isLessThanOrEqualTo(16);
+                Matches<QueryMatch> matches = batcher.match(monitor, batch, SimpleMatcher.FACTORY);
+                for (InputDocument doc : batch) {
+                    matched += matches.getMatchCount(doc.getId());
+                }
+            }
+
+            assertThat(matched).isEqualTo(50);
+            int total = 0;
+            for (BatchStatistics stats : batcher.getHistory()) {
+                total += stats.getBatchSize();
+                assertThat(stats.getCandidates()).isLessThanOrEqualTo(1);
+            }
+            assertThat(total).isEqualTo(100);
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package uk.co.flax.luwak.batching;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestClusteringBatcher {
+
+    private static final Analyzer ANALYZER = new StandardAnalyzer();
+
+    private static final String[] FRUIT = new String[]{ "apple", "banana", "cherry", "damson", "elderberry", "fig" };
+    private static final String[] ALPHABET = new String[]{ "alpha", "bravo", "charlie", "delta", "echo", "foxtrot" };
+
+    // alternates documents from two unrelated vocabularies
+    private static List<InputDocument> buildDocs(int count) {
+        List<InputDocument> docs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String[] vocabulary = i % 2 == 0 ? FRUIT : ALPHABET;
+            String text = vocabulary[i % 6] + " " + vocabulary[(i + 1) % 6] + " " + vocabulary[(i + 3) % 6];
+            docs.add(InputDocument.builder("doc" + i).addField("field", text, ANALYZER).build());
+        }
+        return docs;
+    }
+
+    private static boolean isFruit(InputDocument doc) {
+        return Integer.parseInt(doc.getId().substring(3)) % 2 == 0;
+    }
+
+    private static Matches<QueryMatch> match(Monitor monitor, List<InputDocument> docs) throws IOException {
+        try (DocumentBatch batch = DocumentBatch.of(docs)) {
+            return monitor.match(batch, SimpleMatcher.FACTORY);
+        }
+    }
+
+    private static int countMatches(Matches<QueryMatch> matches) {
+        int count = 0;
+        for (DocumentMatches<QueryMatch> docMatches : matches) {
+            count += docMatches.getMatches().size();
+        }
+        return count;
+    }
+
+    @Test
+    public void testDocumentsAreClusteredByVocabulary() throws IOException {
+
+        ClusteringBatcher batcher = new ClusteringBatcher(4, 16, 0, TimeUnit.MILLISECONDS);
+        List<List<InputDocument>> batches = new ArrayList<>();
+        for (InputDocument doc : buildDocs(64)) {
+            batches.addAll(batcher.add(doc));
+        }
+        assertThat(batcher.getPendingCount()).isEqualTo(12);
+        batches.addAll(batcher.flush());
+
+        int docs = 0;
+        for (List<InputDocument> batch : batches) {
+            docs += batch.size();
+            for (InputDocument doc : batch) {
+                assertThat(isFruit(doc)).isEqualTo(isFruit(batch.get(0)));
+            }
+        }
+        assertThat(docs).isEqualTo(64);
+        assertThat(batcher.getDocumentCount()).isEqualTo(64);
+        assertThat(batcher.getBatchCount()).isEqualTo(batches.size());
+        assertThat(batcher.getClusteredTermCount()).isLessThan(batcher.getArrivalOrderTermCount());
+        assertThat(batcher.getTermReduction()).isGreaterThan(0.3);
+    }
+
+    @Test
+    public void testClusteringReducesCandidateCounts() throws IOException {
+
+        List<InputDocument> docs = buildDocs(32);
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher())) {
+            int id = 0;
+            for (String term : FRUIT) {
+                monitor.update(new MonitorQuery(Integer.toString(id++), term));
+            }
+            for (String term : ALPHABET) {
+                monitor.update(new MonitorQuery(Integer.toString(id++), term));
+            }
+
+            int arrivalOrderCandidates = 0;
+            int arrivalOrderMatches = 0;
+            for (int i = 0; i < docs.size(); i += 4) {
+                Matches<QueryMatch> matches = match(monitor, docs.subList(i, i + 4));
+                arrivalOrderCandidates += matches.getQueriesRun();
+                arrivalOrderMatches += countMatches(matches);
+            }
+
+            ClusteringBatcher batcher = new ClusteringBatcher(4, 16, 0, TimeUnit.MILLISECONDS);
+            List<List<InputDocument>> batches = new ArrayList<>();
+            for (InputDocument doc : docs) {
+                batches.addAll(batcher.add(doc));
+            }
+            batches.addAll(batcher.flush());
+
+            int clusteredCandidates = 0;
+            int clusteredMatches = 0;
+            for (List<InputDocument> batch : batches) {
+                Matches<QueryMatch> matches = match(monitor, batch);
+                clusteredCandidates += matches.getQueriesRun();
+                clusteredMatches += countMatches(matches);
+            }
+
+            assertThat(clusteredMatches).isEqualTo(arrivalOrderMatches);
+            assertThat(clusteredCandidates).isLessThan(arrivalOrderCandidates);
+        }
+    }
+
+    @Test
+    public void testDocumentsAreNotHeldBeyondMaxDelay() throws Exception {
+
+        ClusteringBatcher batcher = new ClusteringBatcher(4, 100, 10, TimeUnit.MILLISECONDS);
+        for (InputDocument doc : buildDocs(3)) {
+            assertThat(batcher.add(doc)).isEmpty();
+        }
+        assertThat(batcher.getPendingCount()).isEqualTo(3);
+
+        Thread.sleep(20);
+
+        List<List<InputDocument>> batches = batcher.poll();
+        assertThat(batches).hasSize(1);
+        assertThat(batches.get(0)).hasSize(3);
+        assertThat(batcher.getPendingCount()).isEqualTo(0);
+    }
+
+}
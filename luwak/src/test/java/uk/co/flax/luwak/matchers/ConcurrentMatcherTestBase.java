@@ -92,6 +92,34 @@ public abstract class ConcurrentMatcherTestBase {
         }
     }
 
+    @Test
+    public void testTopKMatchesAreMerged() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher())) {
+            List<MonitorQuery> queries = new ArrayList<>();
+            for (int i = 1; i <= 100; i++) {
+                queries.add(new MonitorQuery(Integer.toString(i), "test^" + i + " doc"));
+            }
+            monitor.update(queries);
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+
+            DocumentBatch batch = DocumentBatch.of(InputDocument.builder("1")
+                    .addField("field", "test doc doc", ANALYZER)
+                    .build());
+
+            Matches<ScoringMatch> matches
+                = monitor.match(batch, matcherFactory(executor, TopKScoringMatcher.factory(5), 4));
+
+            List<String> ids = new ArrayList<>();
+            for (ScoringMatch match : matches.getMatches("1")) {
+                ids.add(match.getQueryId());
+            }
+            assertThat(ids).containsOnly("96", "97", "98", "99", "100");
+            assertThat(matches.getErrors()).isEmpty();
+        }
+    }
+
     @Test
     public void testParallelSlowLog() throws IOException {
 
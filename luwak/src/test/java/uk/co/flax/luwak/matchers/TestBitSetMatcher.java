@@ -0,0 +1,153 @@
+package uk.co.flax.luwak.matchers;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermsQuery;
+import org.apache.lucene.search.Query;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestBitSetMatcher {
+
+    private static final Analyzer ANALYZER = new StandardAnalyzer();
+
+    private static final String[] QUERIES = new String[]{
+            "alpha",
+            "+alpha +bravo",
+            "alpha -charlie",
+            "alpha bravo -delta",
+            "+(alpha delta) -(bravo charlie)",
+            "+alpha +(bravo charlie)",
+            "(alpha bravo charlie)~2",
+            "\"alpha bravo\"",
+            "+\"alpha bravo\" -delta",
+            "del*",
+            "+alpha^2 +(bravo^3 (charlie delta))",
+            "-alpha",
+            "missing",
+            "+alpha +missing"
+    };
+
+    private static List<InputDocument> buildDocs() {
+        String[] texts = new String[]{
+                "alpha bravo", "bravo charlie", "alpha delta", "charlie delta",
+                "alpha bravo charlie delta", "echo", "bravo alpha"
+        };
+        List<InputDocument> docs = new ArrayList<>();
+        for (int i = 0; i < texts.length; i++) {
+            docs.add(InputDocument.builder("doc" + i).addField("field", texts[i], ANALYZER).build());
+        }
+        return docs;
+    }
+
+    private static void assertSameMatches(Monitor monitor) throws IOException {
+        List<InputDocument> docs = buildDocs();
+        Matches<QueryMatch> expected;
+        Matches<QueryMatch> actual;
+        try (DocumentBatch batch = DocumentBatch.of(docs)) {
+            expected = monitor.match(batch, SimpleMatcher.FACTORY);
+            actual = monitor.match(batch, BitSetMatcher.FACTORY);
+        }
+
+        int matchCount = 0;
+        for (InputDocument doc : docs) {
+            assertThat(actual.getMatchCount(doc.getId())).isEqualTo(expected.getMatchCount(doc.getId()));
+            for (int i = 0; i < QUERIES.length; i++) {
+                String queryId = Integer.toString(i);
+                assertThat(actual.matches(queryId, doc.getId())).isEqualTo(expected.matches(queryId, doc.getId()));
+            }
+            matchCount += expected.getMatchCount(doc.getId());
+        }
+        assertThat(matchCount).isGreaterThan(0);
+    }
+
+    private static void addQueries(Monitor monitor) throws IOException {
+        for (int i = 0; i < QUERIES.length; i++) {
+            monitor.update(new MonitorQuery(Integer.toString(i), QUERIES[i]));
+        }
+    }
+
+    @Test
+    public void testBitSetMatchesAreTheSameAsLuceneMatches() throws IOException {
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher())) {
+            addQueries(monitor);
+            assertSameMatches(monitor);
+        }
+    }
+
+    @Test
+    public void testRoutedCandidatesAreRestrictedToTheirDocuments() throws IOException {
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher())) {
+            addQueries(monitor);
+            assertSameMatches(monitor);
+        }
+    }
+
+    @Test
+    public void testTermsQueries() throws IOException {
+
+        MonitorQueryParser parser = new MonitorQueryParser() {
+            @Override
+            public Query parse(String queryString, Map<String, String> metadata) throws Exception {
+                List<Term> terms = new ArrayList<>();
+                for (String term : queryString.split(" ")) {
+                    terms.add(new Term("field", term));
+                }
+                return new TermsQuery(terms);
+            }
+        };
+
+        try (Monitor monitor = new Monitor(parser, new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "alpha echo"), new MonitorQuery("2", "missing"));
+
+            Matches<QueryMatch> matches;
+            try (DocumentBatch batch = DocumentBatch.of(buildDocs())) {
+                matches = monitor.match(batch, BitSetMatcher.FACTORY);
+            }
+            assertThat(matches.matches("1", "doc0")).isNotNull();
+            assertThat(matches.matches("1", "doc1")).isNull();
+            assertThat(matches.matches("1", "doc5")).isNotNull();
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testSingleDocumentBatches() throws IOException {
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher())) {
+            addQueries(monitor);
+            for (InputDocument doc : buildDocs()) {
+                Matches<QueryMatch> expected = monitor.match(doc, SimpleMatcher.FACTORY);
+                Matches<QueryMatch> actual = monitor.match(doc, BitSetMatcher.FACTORY);
+                assertThat(actual.getMatchCount(doc.getId())).isEqualTo(expected.getMatchCount(doc.getId()));
+            }
+        }
+    }
+
+}
@@ -22,6 +22,7 @@ import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.search.Explanation;
 import org.junit.Ignore;
 import org.junit.Test;
+import uk.co.flax.luwak.DocumentBatch;
 import uk.co.flax.luwak.InputDocument;
 import uk.co.flax.luwak.Matches;
 import uk.co.flax.luwak.Monitor;
@@ -30,6 +31,7 @@ import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
 import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
 
 public class TestExplainingMatcher {
 
@@ -47,6 +49,58 @@ public class TestExplainingMatcher {
         }
     }
 
+    private static InputDocument doc(String id, String text) {
+        return InputDocument.builder(id).addField("field", text, new StandardAnalyzer()).build();
+    }
+
+    @Test
+    public void testOnlyMatchingDocumentsAreExplained() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "+foo +bar"));
+
+            try (DocumentBatch batch = DocumentBatch.of(doc("doc1", "test"), doc("doc2", "foo bar"),
+                    doc("doc3", "foo"), doc("doc4", "test foo bar"))) {
+
+                Matches<ExplainingMatch> matches = monitor.match(batch, ExplainingMatcher.FACTORY);
+                Matches<ScoringMatch> scores = monitor.match(batch, ScoringMatcher.FACTORY);
+
+                assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+                assertThat(matches.getMatchCount("doc2")).isEqualTo(1);
+                assertThat(matches.getMatchCount("doc3")).isEqualTo(0);
+                assertThat(matches.getMatchCount("doc4")).isEqualTo(2);
+                for (String[] match : new String[][]{ { "1", "doc1" }, { "2", "doc2" }, { "1", "doc4" }, { "2", "doc4" } }) {
+                    assertThat(matches.matches(match[0], match[1]).getExplanation().getValue())
+                            .isCloseTo(scores.matches(match[0], match[1]).getScore(), within(0.0001f));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testExplanationsCanBeTruncated() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "+foo +bar"));
+            InputDocument doc = doc("doc1", "foo bar");
+
+            Explanation full = monitor.match(doc, ExplainingMatcher.FACTORY).matches("1", "doc1").getExplanation();
+            assertThat(full.getDetails()).isNotEmpty();
+            assertThat(full.getDetails()[0].getDetails()).isNotEmpty();
+
+            Explanation top = monitor.match(doc, ExplainingMatcher.factory(0)).matches("1", "doc1").getExplanation();
+            assertThat(top.getValue()).isEqualTo(full.getValue());
+            assertThat(top.getDescription()).isEqualTo(full.getDescription());
+            assertThat(top.getDetails()).isEmpty();
+
+            Explanation oneLevel = monitor.match(doc, ExplainingMatcher.factory(1)).matches("1", "doc1").getExplanation();
+            assertThat(oneLevel.getDetails()).hasSize(full.getDetails().length);
+            for (Explanation detail : oneLevel.getDetails()) {
+                assertThat(detail.getDetails()).isEmpty();
+            }
+        }
+    }
+
     @Test
     @Ignore("Lucene Explanations don't implement hashCode() or equals() until 6.2")
     public void testHashcodeAndEquals() {
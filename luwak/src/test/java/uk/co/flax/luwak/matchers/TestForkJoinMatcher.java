@@ -0,0 +1,47 @@
+package uk.co.flax.luwak.matchers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+
+import uk.co.flax.luwak.MatcherFactory;
+import uk.co.flax.luwak.QueryMatch;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestForkJoinMatcher extends ConcurrentMatcherTestBase {
+
+    private final List<ForkJoinPool> pools = new ArrayList<>();
+
+    @After
+    public void shutdownPools() {
+        for (ForkJoinPool pool : pools) {
+            pool.shutdown();
+        }
+    }
+
+    @Override
+    protected <T extends QueryMatch> MatcherFactory<T> matcherFactory(ExecutorService executor, MatcherFactory<T> factory, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        pools.add(pool);
+        // small chunks, so that the tests' query sets are split between several workers
+        return ForkJoinMatcher.factory(pool, factory, 16);
+    }
+}
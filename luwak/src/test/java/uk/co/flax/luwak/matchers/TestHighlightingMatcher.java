@@ -19,6 +19,8 @@ import org.junit.Test;
 import uk.co.flax.luwak.*;
 import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
 import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+import uk.co.flax.luwak.util.ForceNoBulkScoringQuery;
+import uk.co.flax.luwak.util.SpanRewriter;
 
 import static uk.co.flax.luwak.assertions.HighlightingMatchAssert.assertThat;
 
@@ -298,6 +300,163 @@ public class TestHighlightingMatcher {
         assertThat(matches).matchesQuery("1", "1").withHitCount(2);
     }
 
+    @Test
+    public void testEachMatchingDocumentInBatchIsHighlighted() throws IOException {
+
+        monitor.update(new MonitorQuery("1", "test"));
+        DocumentBatch batch = DocumentBatch.of(buildDoc("doc1", "this is a test document"),
+                buildDoc("doc2", "no matches here"), buildDoc("doc3", "test"));
+
+        Matches<HighlightsMatch> matches = monitor.match(batch, HighlightingMatcher.FACTORY);
+        assertThat(matches)
+                .hasMatchCount("doc1", 1)
+                .hasMatchCount("doc2", 0)
+                .hasMatchCount("doc3", 1);
+        assertThat(matches)
+                .matchesQuery("1", "doc1")
+                    .inField(textfield)
+                        .withHit(new HighlightsMatch.Hit(3, 10, 3, 14));
+        assertThat(matches)
+                .matchesQuery("1", "doc3")
+                    .inField(textfield)
+                        .withHit(new HighlightsMatch.Hit(0, 0, 0, 4));
+    }
+
+    @Test
+    public void testMinimumShouldMatch() throws Exception {
+
+        final BooleanQuery bq = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term(textfield, "term1")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term(textfield, "term2")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term(textfield, "term3")), BooleanClause.Occur.SHOULD)
+                .setMinimumNumberShouldMatch(2)
+                .build();
+
+        monitor = new Monitor(new MonitorQueryParser() {
+            @Override
+            public Query parse(String queryString, Map<String, String> metadata) throws Exception {
+                return bq;
+            }
+        }, new MatchAllPresearcher());
+
+        monitor.update(new MonitorQuery("1", ""));
+        assertThat(monitor.match(buildDoc("1", "term1 term4"), HighlightingMatcher.FACTORY))
+                .hasMatchCount("1", 0);
+        assertThat(monitor.match(buildDoc("1", "term1 term3"), HighlightingMatcher.FACTORY))
+                .matchesQuery("1", "1")
+                .withHitCount(2);
+    }
+
+    @Test
+    public void testUnrewritableQueriesThatDoNotMatchAreNotErrors() throws Exception {
+
+        monitor = new Monitor(new MonitorQueryParser() {
+            @Override
+            public Query parse(String queryString, Map<String, String> metadata) throws Exception {
+                return new ConstantScoreQuery(new TermQuery(new Term(textfield, queryString)));
+            }
+        }, new MatchAllPresearcher());
+
+        monitor.update(new MonitorQuery("1", "term1"), new MonitorQuery("2", "missing"));
+        assertThat(monitor.match(buildDoc("1", "term1 term2"), HighlightingMatcher.FACTORY))
+                .hasMatchCount("1", 0)
+                .hasErrorCount(1);
+    }
+
+    @Test
+    public void testOriginalQueryDecidesMatches() throws Exception {
+
+        final BooleanQuery bq = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term(textfield, "term1")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term(textfield, "term2")), BooleanClause.Occur.SHOULD)
+                .setMinimumNumberShouldMatch(2)
+                .build();
+
+        monitor = new Monitor(new MonitorQueryParser() {
+            @Override
+            public Query parse(String queryString, Map<String, String> metadata) throws Exception {
+                return bq;
+            }
+        }, new MatchAllPresearcher());
+
+        // a lossy rewrite that drops minimumShouldMatch
+        SpanRewriter rewriter = new SpanRewriter() {
+            @Override
+            protected Query rewriteBoolean(BooleanQuery bq) {
+                BooleanQuery.Builder newbq = new BooleanQuery.Builder();
+                for (BooleanClause clause : bq) {
+                    newbq.add(rewrite(clause.getQuery()), BooleanClause.Occur.SHOULD);
+                }
+                return new ForceNoBulkScoringQuery(newbq.build());
+            }
+        };
+
+        monitor.update(new MonitorQuery("1", ""));
+        assertThat(monitor.match(buildDoc("1", "term1 term3"), HighlightingMatcher.factory(rewriter)))
+                .hasMatchCount("1", 0);
+        assertThat(monitor.match(buildDoc("1", "term1 term2"), HighlightingMatcher.factory(rewriter)))
+                .matchesQuery("1", "1")
+                .withHitCount(2);
+    }
+
+    @Test
+    public void testRewritesWithTooManyClausesAreOnlyErrorsIfTheyMatch() throws Exception {
+
+        // a rewriter that expands wildcards into more clauses than a BooleanQuery allows
+        SpanRewriter rewriter = new SpanRewriter() {
+            @Override
+            protected Query rewriteMultiTermQuery(MultiTermQuery mtq) {
+                return new Query() {
+                    @Override
+                    public String toString(String field) {
+                        return "";
+                    }
+
+                    @Override
+                    public Query rewrite(IndexReader reader) throws IOException {
+                        throw new BooleanQuery.TooManyClauses();
+                    }
+
+                    @Override
+                    public boolean equals(Object o) {
+                        return false;
+                    }
+
+                    @Override
+                    public int hashCode() {
+                        return 0;
+                    }
+                };
+            }
+        };
+
+        monitor.update(new MonitorQuery("1", "+term* +missing"), new MonitorQuery("2", "+term* +present"));
+
+        assertThat(monitor.match(buildDoc("1", "present term1 term2"), HighlightingMatcher.factory(rewriter)))
+                .hasMatchCount("1", 0)
+                .hasErrorCount(1);
+    }
+
+    @Test
+    public void testSpanRewritesAreReusedBetweenBatches() throws IOException {
+
+        final int[] rewrites = new int[]{ 0 };
+        SpanRewriter rewriter = new SpanRewriter() {
+            @Override
+            protected Query rewriteTermQuery(TermQuery tq) {
+                rewrites[0]++;
+                return super.rewriteTermQuery(tq);
+            }
+        };
+
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "document"));
+        for (int i = 0; i < 3; i++) {
+            assertThat(monitor.match(buildDoc("doc1", "this is a test document"), HighlightingMatcher.factory(rewriter)))
+                    .hasMatchCount("doc1", 2);
+        }
+        Assertions.assertThat(rewrites[0]).isEqualTo(2);
+    }
+
     @Test
     public void testEquality() {
 
@@ -321,4 +480,69 @@ public class TestHighlightingMatcher {
 
     }
 
+    @Test
+    public void testHitsAreSortedByPosition() {
+
+        HighlightsMatch match = new HighlightsMatch("1", "1");
+        match.addHit("field", 4, 4, 20, 24);
+        match.addHit("field", 0, 0, 0, 4);
+        match.addHit("field", 2, 3, 10, 18);
+        match.addHit("field", 2, 2, 10, 14);
+        match.addHit("field", 0, 0, 1, 5);
+
+        Assertions.assertThat(match.getHits("field")).containsExactly(
+                new HighlightsMatch.Hit(0, 0, 0, 4),
+                new HighlightsMatch.Hit(2, 10, 2, 14),
+                new HighlightsMatch.Hit(2, 10, 3, 18),
+                new HighlightsMatch.Hit(4, 20, 4, 24));
+        Assertions.assertThat(match.getHitCount()).isEqualTo(4);
+        Assertions.assertThat(match.getHits("nofield")).isEmpty();
+
+    }
+
+    @Test
+    public void testMerge() {
+
+        HighlightsMatch m1 = new HighlightsMatch("1", "1");
+        m1.addHit("field", 0, 0, 0, 4);
+        m1.addHit("field", 4, 4, 20, 24);
+
+        HighlightsMatch m2 = new HighlightsMatch("1", "1");
+        m2.addHit("field", 2, 2, 10, 14);
+        m2.addHit("field", 4, 4, 21, 25);
+        m2.addHit("field", 6, 6, 30, 34);
+        m2.addHit("afield", 1, 1, 5, 9);
+
+        HighlightsMatch merged = HighlightsMatch.merge("1", "1", m1, m2);
+        Assertions.assertThat(merged.getFields()).containsExactly("afield", "field");
+        Assertions.assertThat(merged.getHits("field")).containsExactly(
+                new HighlightsMatch.Hit(0, 0, 0, 4),
+                new HighlightsMatch.Hit(2, 10, 2, 14),
+                new HighlightsMatch.Hit(4, 20, 4, 24),
+                new HighlightsMatch.Hit(6, 30, 6, 34));
+        Assertions.assertThat(merged.getHits("afield")).containsExactly(new HighlightsMatch.Hit(1, 5, 1, 9));
+
+        // merging doesn't change the original matches
+        Assertions.assertThat(m1.getHitCount()).isEqualTo(2);
+        merged.addHit("afield", 0, 0, 0, 4);
+        Assertions.assertThat(m2.getHits("afield")).hasSize(1);
+
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testDeprecatedDoMatchStillReturnsHighlights() throws IOException {
+        try (DocumentBatch batch = DocumentBatch.of(buildDoc("doc1", "this is a test document"))) {
+            HighlightingMatcher matcher = new HighlightingMatcher(batch, SpanRewriter.INSTANCE);
+
+            HighlightsMatch match = matcher.doMatch("1", new TermQuery(new Term(textfield, "test")));
+            Assertions.assertThat(match).isNotNull();
+            Assertions.assertThat(match.getHits(textfield)).containsExactly(new HighlightsMatch.Hit(3, 10, 3, 14));
+            Assertions.assertThat(matcher.doMatch("2", new TermQuery(new Term(textfield, "missing")))).isNull();
+
+            // the shims don't record matches
+            Assertions.assertThat(matcher.getMatches().getMatchCount("doc1")).isEqualTo(0);
+        }
+    }
+
 }
@@ -0,0 +1,195 @@
+package uk.co.flax.luwak.matchers;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+import uk.co.flax.luwak.util.SpanRewriter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static uk.co.flax.luwak.matchers.TestHighlightingMatcher.buildDoc;
+import static uk.co.flax.luwak.matchers.TestHighlightingMatcher.textfield;
+
+public class TestLazyHighlightingMatcher {
+
+    private Monitor monitor;
+
+    @Before
+    public void setUp() throws IOException {
+        monitor = new Monitor(new LuceneQueryParser(textfield), new MatchAllPresearcher());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        monitor.close();
+    }
+
+    @Test
+    public void testHighlightsAreCalculatedOnDemand() throws IOException {
+
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "document"), new MonitorQuery("3", "missing"));
+        InputDocument doc = buildDoc("doc1", "this is a test document");
+
+        Matches<LazyHighlightsMatch> matches = monitor.match(doc, LazyHighlightingMatcher.FACTORY);
+        assertThat(matches.getMatchCount("doc1")).isEqualTo(2);
+
+        Matches<HighlightsMatch> expected = monitor.match(doc, HighlightingMatcher.FACTORY);
+        try {
+            assertThat(matches.matches("1", "doc1").getHighlights()).isEqualTo(expected.matches("1", "doc1"));
+            assertThat(matches.matches("2", "doc1").getHighlights().getHits(textfield))
+                    .containsExactly(new HighlightsMatch.Hit(4, 15, 4, 23));
+        }
+        finally {
+            LazyHighlightsMatch.release(matches);
+        }
+        assertThat(matches.matches("1", "doc1").isReleased()).isTrue();
+    }
+
+    @Test
+    public void testSpanRewritesAreSharedWithTheQueryCache() throws IOException {
+
+        final int[] rewrites = new int[]{ 0 };
+        SpanRewriter rewriter = new SpanRewriter() {
+            @Override
+            protected Query rewriteTermQuery(TermQuery tq) {
+                rewrites[0]++;
+                return super.rewriteTermQuery(tq);
+            }
+        };
+
+        monitor.update(new MonitorQuery("1", "test"));
+        InputDocument doc = buildDoc("doc1", "this is a test document");
+
+        monitor.match(doc, HighlightingMatcher.factory(rewriter));
+        Matches<LazyHighlightsMatch> matches = monitor.match(doc, LazyHighlightingMatcher.factory(rewriter));
+        try {
+            assertThat(matches.matches("1", "doc1").getHighlights().getHitCount()).isEqualTo(1);
+        }
+        finally {
+            LazyHighlightsMatch.release(matches);
+        }
+        assertThat(rewrites[0]).isEqualTo(1);
+    }
+
+    @Test
+    public void testDisjunctsAreHighlightedTogether() throws IOException {
+
+        monitor.update(new MonitorQuery("1", "test OR document"));
+
+        try (DocumentBatch batch = DocumentBatch.of(buildDoc("doc1", "this is a test document"), buildDoc("doc2", "test"))) {
+            Matches<LazyHighlightsMatch> matches = monitor.match(batch, LazyHighlightingMatcher.FACTORY);
+            try {
+                assertThat(matches.matches("1", "doc1").getHighlights().getHitCount()).isEqualTo(2);
+                assertThat(matches.matches("1", "doc2").getHighlights().getHits(textfield))
+                        .containsExactly(new HighlightsMatch.Hit(0, 0, 0, 4));
+            }
+            finally {
+                LazyHighlightsMatch.release(matches);
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesCannotBeHighlightedOnceReleased() throws IOException {
+
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "document"));
+
+        Matches<LazyHighlightsMatch> matches = monitor.match(buildDoc("doc1", "this is a test document"),
+                LazyHighlightingMatcher.FACTORY);
+        LazyHighlightsMatch highlighted = matches.matches("1", "doc1");
+        HighlightsMatch highlights = highlighted.getHighlights();
+
+        // releasing one match releases all the matches from the same run
+        matches.matches("2", "doc1").release();
+        assertThat(highlighted.isReleased()).isTrue();
+        assertThat(highlighted.getHighlights()).isSameAs(highlights);
+
+        try {
+            matches.matches("2", "doc1").getHighlights();
+            fail("Expected an IllegalStateException");
+        }
+        catch (IllegalStateException e) {
+            assertThat(e.getMessage()).contains("released");
+        }
+    }
+
+    @Test
+    public void testRetainedBatchesAreNotReturnedToThePool() throws IOException {
+
+        monitor.update(new MonitorQuery("1", "test"));
+
+        try (DocumentBatchPool pool = new DocumentBatchPool()) {
+
+            Matches<LazyHighlightsMatch> matches;
+            try (DocumentBatch batch = pool.acquire(buildDoc("doc1", "test"))) {
+                matches = monitor.match(batch, LazyHighlightingMatcher.FACTORY);
+            }
+            assertThat(pool.getIdleCount()).isEqualTo(0);
+            assertThat(matches.matches("1", "doc1").getHighlights().getHitCount()).isEqualTo(1);
+            LazyHighlightsMatch.release(matches);
+
+            // a batch with no matches isn't held
+            try (DocumentBatch batch = pool.acquire(buildDoc("doc2", "no matches"))) {
+                matches = monitor.match(batch, LazyHighlightingMatcher.FACTORY);
+            }
+            assertThat(matches.getMatchCount("doc2")).isEqualTo(0);
+            assertThat(pool.getIdleCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testBatchesThatCannotBeRetainedAreRejected() throws IOException {
+
+        DocumentBatch batch = new DocumentBatch(Collections.<InputDocument>emptyList(), new BM25Similarity()) {
+            @Override
+            public LeafReader getIndexReader() throws IOException {
+                return null;
+            }
+
+            @Override
+            public String resolveDocId(int docId) {
+                return null;
+            }
+
+            @Override
+            public void close() throws IOException {
+
+            }
+        };
+
+        try {
+            LazyHighlightingMatcher.FACTORY.createMatcher(batch);
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).contains("retain");
+        }
+    }
+
+}
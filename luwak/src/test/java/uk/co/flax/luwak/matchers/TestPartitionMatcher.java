@@ -1,9 +1,24 @@
 package uk.co.flax.luwak.matchers;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import uk.co.flax.luwak.MatcherFactory;
-import uk.co.flax.luwak.QueryMatch;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
 
 /**
  * Copyright (c) 2014 Lemur Consulting Ltd.
@@ -27,4 +42,161 @@ public class TestPartitionMatcher extends ConcurrentMatcherTestBase {
     protected <T extends QueryMatch> MatcherFactory<T> matcherFactory(ExecutorService executor, MatcherFactory<T> factory, int threads) {
         return PartitionMatcher.factory(executor, factory, threads);
     }
+
+    @Test
+    public void testPartitionsAreBalancedByPreviousQueryTimes() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher())) {
+            List<MonitorQuery> queries = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                queries.add(new MonitorQuery(Integer.toString(i), "test " + i));
+            }
+            queries.add(new MonitorQuery("span", "\"test doc\"~5"));
+            monitor.update(queries);
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            MatcherFactory<QueryMatch> factory = PartitionMatcher.factory(executor, SimpleMatcher.FACTORY, 4);
+            InputDocument doc = InputDocument.builder("1").addField("field", "test doc", ANALYZER).build();
+
+            // the first run has no query times, and schedules its queries dynamically;
+            // later runs partition them by the times recorded on earlier runs
+            for (int i = 0; i < 3; i++) {
+                Matches<QueryMatch> matches = monitor.match(doc, factory);
+                assertThat(matches.getMatchCount("1")).isEqualTo(101);
+                assertThat(matches.getQueriesRun()).isEqualTo(201);
+                assertThat(matches.getErrors()).isEmpty();
+            }
+            executor.shutdown();
+        }
+    }
+
+    private static PartitionMatcher<QueryMatch> buildMatcher(DocumentBatch batch, ConcurrentMap<String, Long> costs,
+                                                             String... queryIds) throws IOException {
+        PartitionMatcher<QueryMatch> matcher = new PartitionMatcher<>(batch, null, SimpleMatcher.FACTORY, 4, costs);
+        Query query = new TermQuery(new Term("field", "test"));
+        for (String queryId : queryIds) {
+            matcher.matchQuery(queryId, query, null);
+        }
+        return matcher;
+    }
+
+    private static String[] queryIds(int count) {
+        String[] ids = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = Integer.toString(i);
+        }
+        return ids;
+    }
+
+    @Test
+    public void testPartitionsHaveEqualCosts() throws IOException {
+        ConcurrentMap<String, Long> costs = new ConcurrentHashMap<>();
+        String[] ids = queryIds(31);
+        costs.put("0", 3000L);
+        for (int i = 1; i < ids.length; i++) {
+            costs.put(ids[i], 100L);
+        }
+
+        try (DocumentBatch batch = DocumentBatch.of(InputDocument.builder("1").build())) {
+            List<List<PartitionMatcher.MatchTask>> partitions = buildMatcher(batch, costs, ids).partitionTasks();
+            assertThat(partitions).hasSize(4);
+            for (List<PartitionMatcher.MatchTask> partition : partitions) {
+                long total = 0;
+                for (PartitionMatcher.MatchTask task : partition) {
+                    total += costs.get(task.queryId);
+                }
+                // the expensive query is given a partition to itself
+                assertThat(total).isEqualTo(partition.size() == 1 ? 3000L : 1000L);
+            }
+        }
+    }
+
+    @Test
+    public void testQueriesAreScheduledDynamicallyIfTooFewHaveBeenTimed() throws IOException {
+        ConcurrentMap<String, Long> costs = new ConcurrentHashMap<>();
+        String[] ids = queryIds(10);
+        for (int i = 0; i < 4; i++) {
+            costs.put(ids[i], 100L);
+        }
+
+        try (DocumentBatch batch = DocumentBatch.of(InputDocument.builder("1").build())) {
+            assertThat(buildMatcher(batch, costs, ids).partitionTasks()).isNull();
+            costs.put(ids[4], 100L);
+            assertThat(buildMatcher(batch, costs, ids).partitionTasks()).hasSize(4);
+            // without a cost map, partitions are of equal size
+            assertThat(buildMatcher(batch, null, ids).partitionTasks()).hasSize(4);
+        }
+    }
+
+    @Test
+    public void testQueryTimesRecordedByOtherMatchersAreKept() throws IOException {
+        final ConcurrentMap<String, Long> costs = new ConcurrentHashMap<>();
+        costs.put("other", 100L);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        MatcherFactory<QueryMatch> factory = new MatcherFactory<QueryMatch>() {
+            @Override
+            public CandidateMatcher<QueryMatch> createMatcher(DocumentBatch docs) {
+                return new PartitionMatcher<>(docs, executor, SimpleMatcher.FACTORY, 4, costs);
+            }
+        };
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher())) {
+            List<MonitorQuery> queries = new ArrayList<>();
+            for (String id : queryIds(20)) {
+                queries.add(new MonitorQuery(id, "test"));
+            }
+            monitor.update(queries);
+
+            InputDocument doc = InputDocument.builder("1").addField("field", "test", ANALYZER).build();
+            assertThat(monitor.match(doc, factory).getMatchCount("1")).isEqualTo(20);
+            assertThat(costs).hasSize(21);
+            assertThat(costs.get("other")).isEqualTo(100L);
+            for (String id : queryIds(20)) {
+                assertThat(costs.get(id)).isGreaterThan(0L);
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testQueriesThatReportNoTimeCountAsTimed() throws IOException {
+        ConcurrentMap<String, Long> costs = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        // a matcher that records matches without timing its queries
+        MatcherFactory<QueryMatch> untimed = new MatcherFactory<QueryMatch>() {
+            @Override
+            public CandidateMatcher<QueryMatch> createMatcher(DocumentBatch docs) {
+                return new CandidateMatcher<QueryMatch>(docs) {
+                    @Override
+                    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) {
+                        addMatch(new QueryMatch(queryId, "1"));
+                    }
+
+                    @Override
+                    public QueryMatch resolve(QueryMatch match1, QueryMatch match2) {
+                        return match1;
+                    }
+                };
+            }
+        };
+
+        String[] ids = queryIds(10);
+        try (DocumentBatch batch = DocumentBatch.of(InputDocument.builder("1").build())) {
+            PartitionMatcher<QueryMatch> matcher = new PartitionMatcher<>(batch, executor, untimed, 4, costs);
+            Query query = new TermQuery(new Term("field", "test"));
+            for (String queryId : ids) {
+                matcher.matchQuery(queryId, query, null);
+            }
+            matcher.finish(0, ids.length);
+            assertThat(matcher.getMatches().getMatchCount("1")).isEqualTo(10);
+
+            assertThat(costs).hasSize(10);
+            assertThat(buildMatcher(batch, costs, ids).partitionTasks()).hasSize(4);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
 }
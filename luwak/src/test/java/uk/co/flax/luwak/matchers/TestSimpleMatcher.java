@@ -0,0 +1,234 @@
+package uk.co.flax.luwak.matchers;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.FixedBitSet;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class TestSimpleMatcher {
+
+    // A TermQuery that records whether or not its Weights were asked for scores
+    private static class RecordingQuery extends Query {
+
+        final List<Boolean> needsScores = new ArrayList<>();
+        final Query in;
+
+        RecordingQuery(String term) {
+            this.in = new TermQuery(new Term("field", term));
+        }
+
+        @Override
+        public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+            this.needsScores.add(needsScores);
+            return in.createWeight(searcher, needsScores);
+        }
+
+        @Override
+        public String toString(String field) {
+            return "Recording(" + in.toString(field) + ")";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+    }
+
+    private static Monitor buildMonitor(final List<RecordingQuery> queries) throws IOException {
+        Monitor monitor = new Monitor(new MonitorQueryParser() {
+            @Override
+            public Query parse(String queryString, Map<String, String> metadata) throws Exception {
+                RecordingQuery query = new RecordingQuery(queryString);
+                queries.add(query);
+                return query;
+            }
+        }, new MatchAllPresearcher());
+        monitor.update(new MonitorQuery("1", "alpha"));
+        return monitor;
+    }
+
+    private static List<Boolean> runMatcher(MatcherFactory<? extends QueryMatch> factory) throws IOException {
+        List<RecordingQuery> queries = new ArrayList<>();
+        InputDocument doc = InputDocument.builder("doc").addField("field", "alpha", new StandardAnalyzer()).build();
+        try (Monitor monitor = buildMonitor(queries)) {
+            assertThat(monitor.match(doc, factory).getMatchCount("doc")).isEqualTo(1);
+        }
+        assertThat(queries).hasSize(1);
+        return queries.get(0).needsScores;
+    }
+
+    @Test
+    public void testSimpleMatcherDoesNotNeedScores() throws IOException {
+        assertThat(runMatcher(SimpleMatcher.FACTORY)).containsOnly(false);
+    }
+
+    @Test
+    public void testScoringMatcherNeedsScores() throws IOException {
+        assertThat(runMatcher(ScoringMatcher.FACTORY)).containsOnly(true);
+    }
+
+    // Records the number of documents that each disjunct is run against
+    private static class CountingMatcherFactory implements MatcherFactory<QueryMatch> {
+
+        final List<Integer> candidateCounts = new ArrayList<>();
+
+        @Override
+        public CandidateMatcher<QueryMatch> createMatcher(DocumentBatch docs) {
+            final int batchSize = docs.getBatchSize();
+            return new SimpleMatcher(docs) {
+                @Override
+                protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata,
+                                            BitSet candidateDocs) throws IOException {
+                    candidateCounts.add(candidateDocs == null ? batchSize : candidateDocs.cardinality());
+                    super.doMatchQuery(queryId, matchQuery, metadata, candidateDocs);
+                }
+            };
+        }
+    }
+
+    private static Monitor buildDisjunctionMonitor() throws IOException {
+        Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher());
+        monitor.update(new MonitorQuery("1", "alpha bravo charlie"));
+        return monitor;
+    }
+
+    @Test
+    public void testMatchedDocumentsSkipRemainingDisjuncts() throws IOException {
+        InputDocument doc = InputDocument.builder("doc").addField("field", "alpha bravo charlie", new StandardAnalyzer()).build();
+        CountingMatcherFactory factory = new CountingMatcherFactory();
+        try (Monitor monitor = buildDisjunctionMonitor()) {
+            Matches<QueryMatch> matches = monitor.match(doc, factory);
+            assertThat(matches.matches("1", "doc")).isNotNull();
+            assertThat(matches.getQueriesRun()).isEqualTo(3);
+        }
+        assertThat(factory.candidateCounts).containsExactly(1);
+    }
+
+    @Test
+    public void testDisjunctsOnlyRunAgainstUnmatchedDocuments() throws IOException {
+        List<InputDocument> docs = new ArrayList<>();
+        for (String text : new String[]{ "alpha", "bravo", "charlie", "delta" }) {
+            docs.add(InputDocument.builder(text).addField("field", text, new StandardAnalyzer()).build());
+        }
+        CountingMatcherFactory factory = new CountingMatcherFactory();
+        try (Monitor monitor = buildDisjunctionMonitor();
+             DocumentBatch batch = DocumentBatch.of(docs)) {
+            Matches<QueryMatch> matches = monitor.match(batch, factory);
+            assertThat(matches.matches("1", "alpha")).isNotNull();
+            assertThat(matches.matches("1", "bravo")).isNotNull();
+            assertThat(matches.matches("1", "charlie")).isNotNull();
+            assertThat(matches.matches("1", "delta")).isNull();
+        }
+        assertThat(factory.candidateCounts).containsExactly(4, 3, 2);
+    }
+
+    @Test
+    public void testMatchesForUnknownDocumentsAreRejected() throws IOException {
+        try (DocumentBatch batch = DocumentBatch.of(InputDocument.builder("doc").build())) {
+            SimpleMatcher matcher = new SimpleMatcher(batch) {
+                @Override
+                protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+                    addMatch(new QueryMatch(queryId, "unknown"));
+                }
+            };
+            try {
+                matcher.matchQuery("1", new TermQuery(new Term("field", "alpha")), null);
+                fail("Expected an IllegalArgumentException");
+            }
+            catch (IllegalArgumentException e) {
+                assertThat(e.getMessage()).contains("unknown");
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesCanBeLookedUpByQueryId() throws IOException {
+        List<InputDocument> docs = new ArrayList<>();
+        for (String text : new String[]{ "alpha", "bravo", "alpha bravo" }) {
+            docs.add(InputDocument.builder(text).addField("field", text, new StandardAnalyzer()).build());
+        }
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher());
+             DocumentBatch batch = DocumentBatch.of(docs)) {
+            monitor.update(new MonitorQuery("1", "alpha"), new MonitorQuery("2", "bravo"),
+                    new MonitorQuery("3", "+alpha +bravo"), new MonitorQuery("4", "charlie"));
+            Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+
+            DocumentMatches<QueryMatch> docMatches = matches.getMatches("alpha bravo");
+            assertThat(docMatches.getMatches()).hasSize(3);
+            for (String queryId : new String[]{ "1", "2", "3" }) {
+                assertThat(docMatches.getMatch(queryId).getQueryId()).isEqualTo(queryId);
+                assertThat(docMatches.getMatch(queryId).getDocId()).isEqualTo("alpha bravo");
+            }
+            assertThat(docMatches.getMatch("4")).isNull();
+            assertThat(matches.getMatches("bravo").getMatch("1")).isNull();
+            assertThat(matches.getMatches("bravo").getMatch("2")).isNotNull();
+            assertThat(matches.getPresearcherHits()).containsOnly("1", "2", "3", "4");
+        }
+
+        // DocumentMatches built from a collection find matches by scanning it
+        DocumentMatches<QueryMatch> docMatches = new DocumentMatches<>("doc",
+                Arrays.asList(new QueryMatch("1", "doc"), new QueryMatch("2", "doc")));
+        assertThat(docMatches.getMatch("2").getQueryId()).isEqualTo("2");
+        assertThat(docMatches.getMatch("3")).isNull();
+    }
+
+    @Test
+    public void testExactAndKnownQueriesAreTimed() throws IOException {
+        InputDocument doc = InputDocument.builder("doc").addField("field", "alpha", new StandardAnalyzer()).build();
+        try (DocumentBatch batch = DocumentBatch.of(doc)) {
+            SimpleMatcher matcher = new SimpleMatcher(batch);
+            matcher.setSlowLogLimit(0);
+            FixedBitSet matchingDocs = new FixedBitSet(1);
+            matchingDocs.set(0);
+            matcher.matchExactQuery("1", new TermQuery(new Term("field", "alpha")), null, null);
+            matcher.matchKnownQuery("2", new TermQuery(new Term("field", "alpha")), null, matchingDocs);
+
+            Matches<QueryMatch> matches = matcher.getMatches();
+            assertThat(matches.getMatchCount("doc")).isEqualTo(2);
+            List<String> timed = new ArrayList<>();
+            for (SlowLog.Entry entry : matches.getSlowLog()) {
+                timed.add(entry.getQueryId());
+            }
+            assertThat(timed).containsOnly("1", "2");
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package uk.co.flax.luwak.matchers;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestTopKScoringMatcher {
+
+    private static final Analyzer ANALYZER = new StandardAnalyzer();
+
+    private static Monitor buildMonitor() throws IOException {
+        Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher());
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            queries.add(new MonitorQuery(Integer.toString(i), "alpha^" + i));
+        }
+        // a disjunction, whose best branch should be kept
+        queries.add(new MonitorQuery("disjunction", "alpha^0.5 bravo^50"));
+        monitor.update(queries);
+        return monitor;
+    }
+
+    private static List<String> queryIds(Matches<ScoringMatch> matches, String docId) {
+        List<String> ids = new ArrayList<>();
+        for (ScoringMatch match : matches.getMatches(docId)) {
+            ids.add(match.getQueryId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testOnlyBestMatchesAreKeptForEachDocument() throws IOException {
+        try (Monitor monitor = buildMonitor();
+             DocumentBatch batch = DocumentBatch.of(
+                     InputDocument.builder("doc1").addField("field", "alpha", ANALYZER).build(),
+                     InputDocument.builder("doc2").addField("field", "alpha bravo", ANALYZER).build())) {
+
+            Matches<ScoringMatch> matches = monitor.match(batch, TopKScoringMatcher.factory(3));
+            assertThat(queryIds(matches, "doc1")).containsOnly("20", "19", "18");
+            assertThat(queryIds(matches, "doc2")).containsOnly("disjunction", "20", "19");
+        }
+    }
+
+    @Test
+    public void testScoresMatchScoringMatcher() throws IOException {
+        InputDocument doc = InputDocument.builder("doc").addField("field", "alpha bravo", ANALYZER).build();
+        try (Monitor monitor = buildMonitor()) {
+            Matches<ScoringMatch> expected = monitor.match(doc, ScoringMatcher.FACTORY);
+            Matches<ScoringMatch> actual = monitor.match(doc, TopKScoringMatcher.factory(50));
+            assertThat(actual.getMatchCount("doc")).isEqualTo(21);
+            for (ScoringMatch match : actual.getMatches("doc")) {
+                assertThat(match).isEqualTo(expected.matches(match.getQueryId(), "doc"));
+            }
+        }
+    }
+
+    @Test
+    public void testMinimumScore() throws IOException {
+        InputDocument doc = InputDocument.builder("doc").addField("field", "alpha", ANALYZER).build();
+        try (Monitor monitor = buildMonitor()) {
+            Matches<ScoringMatch> all = monitor.match(doc, ScoringMatcher.FACTORY);
+            float threshold = all.matches("15", "doc").getScore();
+
+            Matches<ScoringMatch> matches = monitor.match(doc, TopKScoringMatcher.factory(10, threshold));
+            assertThat(queryIds(matches, "doc")).containsOnly("15", "16", "17", "18", "19", "20");
+        }
+    }
+
+    private static Query boosted(float boost) {
+        return new BoostQuery(new TermQuery(new Term("field", "alpha")), boost);
+    }
+
+    @Test
+    public void testGetMatchesCanBeCalledMoreThanOnce() throws IOException {
+        try (DocumentBatch batch = DocumentBatch.of(InputDocument.builder("doc").addField("field", "alpha", ANALYZER).build())) {
+            TopKScoringMatcher matcher = new TopKScoringMatcher(batch, 2, 0);
+            for (int i = 1; i <= 3; i++) {
+                matcher.matchQuery(Integer.toString(i), boosted(i), null);
+            }
+            assertThat(queryIds(matcher.getMatches(), "doc")).containsOnly("3", "2");
+            assertThat(queryIds(matcher.getMatches(), "doc")).containsOnly("3", "2");
+
+            // matches added later are still limited to the best k
+            ScoringMatcher other = new ScoringMatcher(batch);
+            other.matchQuery("4", boosted(4), null);
+            matcher.addMatches(other.getMatches());
+            assertThat(queryIds(matcher.getMatches(), "doc")).containsOnly("4", "3");
+        }
+    }
+
+    @Test
+    public void testTiesAreBrokenByQueryId() throws IOException {
+        try (DocumentBatch batch = DocumentBatch.of(InputDocument.builder("doc").addField("field", "alpha", ANALYZER).build())) {
+            TopKScoringMatcher matcher = new TopKScoringMatcher(batch, 2, 0);
+            for (String queryId : new String[]{ "c", "b", "d", "a" }) {
+                matcher.matchQuery(queryId, boosted(1), null);
+            }
+            assertThat(queryIds(matcher.getMatches(), "doc")).containsOnly("a", "b");
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKMustBePositive() throws IOException {
+        try (DocumentBatch batch = DocumentBatch.of(InputDocument.builder("doc").build())) {
+            new TopKScoringMatcher(batch, 0, 0);
+        }
+    }
+
+}
@@ -46,6 +46,27 @@ public class TestCollectionUtils {
 
     }
 
+    @Test
+    public void testCostBalancedPartitions() {
+
+        List<String> terms = ImmutableList.of("1", "2", "3", "4", "5", "6", "7", "8", "9", "10");
+
+        assertThat(CollectionUtils.partition(terms, new double[]{ 9, 1, 1, 1, 1, 1, 1, 1, 1, 1 }, 2))
+                .containsExactly(list("1"), list("2", "3", "4", "5", "6", "7", "8", "9", "10"));
+
+        assertThat(CollectionUtils.partition(terms, new double[]{ 1, 5, 1, 4, 1, 3, 1, 2, 1, 1 }, 3))
+                .containsExactly(list("2", "3", "9"), list("1", "4", "5", "10"), list("6", "7", "8"));
+
+        assertThat(CollectionUtils.partition(terms.subList(0, 2), new double[]{ 1, 1 }, 3))
+                .containsExactly(list("1"), list("2"), list());
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCostsMustMatchItems() {
+        CollectionUtils.partition(list("1", "2"), new double[]{ 1 }, 2);
+    }
+
     public static List<String> list(String... terms) {
         return ImmutableList.copyOf(terms);
     }
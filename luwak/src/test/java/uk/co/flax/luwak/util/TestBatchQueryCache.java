@@ -0,0 +1,124 @@
+package uk.co.flax.luwak.util;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestBatchQueryCache {
+
+    private static final Analyzer ANALYZER = new StandardAnalyzer();
+
+    private static final String SPAM_FILTER = " -(spam1 spam2 spam3)";
+
+    private Monitor monitor;
+
+    @Before
+    public void setUp() throws IOException {
+        monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher());
+        monitor.update(new MonitorQuery("1", "+alpha" + SPAM_FILTER),
+                       new MonitorQuery("2", "+bravo" + SPAM_FILTER),
+                       new MonitorQuery("3", "+charlie" + SPAM_FILTER),
+                       new MonitorQuery("4", "+delta" + SPAM_FILTER));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        monitor.close();
+    }
+
+    private static List<InputDocument> buildDocs() {
+        List<InputDocument> docs = new ArrayList<>();
+        docs.add(InputDocument.builder("doc0").addField("field", "alpha bravo charlie delta", ANALYZER).build());
+        docs.add(InputDocument.builder("doc1").addField("field", "alpha bravo charlie delta spam2", ANALYZER).build());
+        docs.add(InputDocument.builder("doc2").addField("field", "bravo delta", ANALYZER).build());
+        return docs;
+    }
+
+    @Test
+    public void testSharedClausesAreCachedWithinABatch() throws IOException {
+
+        Matches<QueryMatch> cached;
+        try (DocumentBatch batch = DocumentBatch.of(buildDocs())) {
+            cached = monitor.match(batch, SimpleMatcher.FACTORY);
+            BatchQueryCache cache = (BatchQueryCache) batch.getSearcher().getQueryCache();
+            assertThat(cache.getCacheCount()).isEqualTo(1);
+            assertThat(cache.getHitCount()).isGreaterThan(0);
+        }
+
+        Matches<QueryMatch> uncached;
+        try (DocumentBatch batch = new DocumentBatch.Builder().addAll(buildDocs()).setQueryCacheSize(0).build()) {
+            uncached = monitor.match(batch, SimpleMatcher.FACTORY);
+            assertThat(batch.getSearcher().getQueryCache()).isNull();
+        }
+
+        for (String docId : new String[]{ "doc0", "doc1", "doc2" }) {
+            assertThat(cached.getMatchCount(docId)).isEqualTo(uncached.getMatchCount(docId));
+        }
+        assertThat(cached.getMatchCount("doc0")).isEqualTo(4);
+        assertThat(cached.getMatchCount("doc1")).isEqualTo(0);
+        assertThat(cached.getMatchCount("doc2")).isEqualTo(2);
+    }
+
+    @Test
+    public void testOnlySubQueriesAreTracked() throws IOException {
+        try (DocumentBatch batch = DocumentBatch.of(buildDocs())) {
+            monitor.match(batch, SimpleMatcher.FACTORY);
+            BatchQueryCache cache = (BatchQueryCache) batch.getSearcher().getQueryCache();
+            // only the shared spam filter is counted, not the four candidate queries
+            assertThat(cache.getTrackedQueryCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testSingleDocumentBatchesAreNotCached() throws IOException {
+        try (DocumentBatch batch = DocumentBatch.of(buildDocs().get(0))) {
+            assertThat(batch.getSearcher().getQueryCache()).isNull();
+        }
+    }
+
+    @Test
+    public void testPooledBatchesGetANewCache() throws IOException {
+        try (DocumentBatchPool pool = new DocumentBatchPool()) {
+            Object first;
+            try (DocumentBatch batch = pool.acquire(buildDocs())) {
+                monitor.match(batch, SimpleMatcher.FACTORY);
+                first = batch.getSearcher().getQueryCache();
+            }
+            try (DocumentBatch batch = pool.acquire(buildDocs())) {
+                BatchQueryCache cache = (BatchQueryCache) batch.getSearcher().getQueryCache();
+                assertThat(cache).isNotSameAs(first);
+                assertThat(cache.getCacheCount()).isEqualTo(0);
+                assertThat(monitor.match(batch, SimpleMatcher.FACTORY).getMatchCount("doc0")).isEqualTo(4);
+            }
+        }
+    }
+
+}
@@ -18,9 +18,12 @@ package uk.co.flax.luwak.util;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queries.TermsQuery;
 import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
 import org.junit.Test;
+import uk.co.flax.luwak.QueryCacheEntry;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
 public class TestSpanRewriter {
 
@@ -53,4 +56,76 @@ public class TestSpanRewriter {
 
     }
 
+    @Test
+    public void testMinimumShouldMatchIsPreserved() {
+
+        BooleanQuery bq = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("f", "t1")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term("f", "t2")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term("f", "t3")), BooleanClause.Occur.SHOULD)
+                .setMinimumNumberShouldMatch(2)
+                .build();
+
+        Query q = new SpanRewriter().rewrite(bq);
+        assertThat(q).isInstanceOf(ForceNoBulkScoringQuery.class);
+        Query rewritten = ((ForceNoBulkScoringQuery) q).getWrappedQuery();
+        assertThat(((BooleanQuery) rewritten).getMinimumNumberShouldMatch()).isEqualTo(2);
+
+    }
+
+    static class CountingRewriter extends SpanRewriter {
+
+        int rewrites = 0;
+
+        @Override
+        public Query rewrite(Query in) {
+            rewrites++;
+            return super.rewrite(in);
+        }
+    }
+
+    @Test
+    public void testQueryCacheEntryRewritesAreCached() {
+
+        QueryCacheEntry entry = new QueryCacheEntry(new BytesRef("hash"), new TermQuery(new Term("f", "t")), null);
+
+        CountingRewriter rewriter = new CountingRewriter();
+        Query spanQuery = entry.getSpanQuery(rewriter);
+        assertThat(entry.getSpanQuery(rewriter)).isSameAs(spanQuery);
+        assertThat(rewriter.rewrites).isEqualTo(1);
+
+        // a different rewriter gets its own rewrite
+        CountingRewriter other = new CountingRewriter();
+        assertThat(entry.getSpanQuery(other)).isNotSameAs(spanQuery);
+        assertThat(other.rewrites).isEqualTo(1);
+
+    }
+
+    @Test
+    public void testFailedQueryCacheEntryRewritesAreCached() {
+
+        QueryCacheEntry entry = new QueryCacheEntry(new BytesRef("hash"),
+                new ConstantScoreQuery(new TermQuery(new Term("f", "t"))), null);
+        CountingRewriter rewriter = new CountingRewriter();
+
+        IllegalArgumentException first = null;
+        try {
+            entry.getSpanQuery(rewriter);
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            first = e;
+        }
+        try {
+            entry.getSpanQuery(rewriter);
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e).isNotSameAs(first);
+            assertThat(e.getMessage()).isEqualTo(first.getMessage());
+        }
+        assertThat(rewriter.rewrites).isEqualTo(1);
+
+    }
+
 }
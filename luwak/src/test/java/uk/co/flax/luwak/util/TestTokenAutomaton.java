@@ -0,0 +1,68 @@
+package uk.co.flax.luwak.util;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestTokenAutomaton {
+
+    private static Set<Integer> run(TokenAutomaton automaton, int... tokens) {
+        Set<Integer> found = new TreeSet<>();
+        int state = TokenAutomaton.ROOT;
+        for (int token : tokens) {
+            state = automaton.step(state, token);
+            for (int match : automaton.getMatches(state)) {
+                found.add(match);
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void testOverlappingPatterns() {
+        TokenAutomaton automaton = new TokenAutomaton(Arrays.asList(
+                new int[]{ 1, 2 },
+                new int[]{ 2 },
+                new int[]{ 1, 2, 3 },
+                new int[]{ 2, 3, 4 },
+                new int[]{ 1, 1 }
+        ));
+
+        assertThat(run(automaton, 1, 2, 3, 4)).containsOnly(0, 1, 2, 3);
+        assertThat(run(automaton, 1, 1, 2)).containsOnly(0, 1, 4);
+        assertThat(run(automaton, 2, 3)).containsOnly(1);
+        assertThat(run(automaton, 1, TokenAutomaton.NO_TOKEN, 2)).containsOnly(1);
+        assertThat(run(automaton, 5, 3, 4)).isEmpty();
+    }
+
+    @Test
+    public void testDuplicatePatterns() {
+        TokenAutomaton automaton = new TokenAutomaton(Arrays.asList(new int[]{ 7, 8 }, new int[]{ 7, 8 }));
+        assertThat(run(automaton, 7, 8)).containsOnly(0, 1);
+        assertThat(automaton.getStateCount()).isEqualTo(3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyPatternsAreRejected() {
+        new TokenAutomaton(Collections.singletonList(new int[0]));
+    }
+
+}